@@ -57,6 +57,8 @@ dependencies {
 val test by tasks.getting(Test::class) {
     // Use junit platform for unit tests
     useJUnitPlatform()
+    // Benchmarks only run with -Dwowsync.benchmark=true
+    systemProperty("wowsync.benchmark", System.getProperty("wowsync.benchmark", "false"))
 }
 
 tasks.register<Copy>("warToTomcat") {
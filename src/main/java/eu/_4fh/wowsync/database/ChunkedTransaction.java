@@ -0,0 +1,49 @@
+package eu._4fh.wowsync.database;
+
+import edu.umd.cs.findbugs.annotations.CleanupObligation;
+import edu.umd.cs.findbugs.annotations.CreatesObligation;
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.DischargesObligation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.database.Transaction.TransCnt;
+
+/**
+ * Commits on every {@link #commit()} and continues with a new transaction and an empty persistence context. The caller
+ * decides how big a chunk is. Entities loaded before a commit are detached afterwards. Uncommitted items are rolled
+ * back on close.
+ */
+@CleanupObligation
+@DefaultAnnotation(NonNull.class)
+public class ChunkedTransaction implements AutoCloseable {
+	private final Db db;
+	private TransCnt transaction;
+
+	@CreatesObligation
+	/*package*/ ChunkedTransaction(final Db db) {
+		this.db = db;
+		this.transaction = db.createTransaction();
+	}
+
+	/**
+	 * Commits the current chunk.
+	 */
+	public void commit() {
+		transaction.commit();
+		transaction.em.clear();
+		transaction.close();
+		transaction = db.createTransaction();
+	}
+
+	/**
+	 * Writes the pending changes of the current chunk and empties the persistence context, without a commit.
+	 */
+	public void checkpoint() {
+		transaction.checkpoint();
+	}
+
+	@Override
+	@DischargesObligation
+	public void close() {
+		transaction.close();
+	}
+}
@@ -1,24 +1,43 @@
 package eu._4fh.wowsync.database;
 
 import java.security.Key;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.sql.Types;
 import java.time.Clock;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.hibernate.Session;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import eu._4fh.abstract_bnet_api.oauth2.BattleNetRegion;
+import eu._4fh.abstract_bnet_api.restclient.data.BattleNetProfileInfo;
+import eu._4fh.abstract_bnet_api.restclient.data.BattleNetWowCharacter;
 import eu._4fh.wowsync.database.Transaction.TransCnt;
 import eu._4fh.wowsync.database.data.Account;
 import eu._4fh.wowsync.database.data.AccountRemoteId;
 import eu._4fh.wowsync.database.data.Character;
 import eu._4fh.wowsync.database.data.DiscordOnlineUser;
+import eu._4fh.wowsync.database.data.DiscordSettings;
 import eu._4fh.wowsync.database.data.Guild;
 import eu._4fh.wowsync.database.data.RemoteSystem;
 import eu._4fh.wowsync.database.data.RemoteSystemRankToGroup;
@@ -32,8 +51,33 @@ import jakarta.persistence.TypedQuery;
 
 @DefaultAnnotation(NonNull.class)
 public class Db {
+	private static final int JDBC_BATCH_SIZE = 500;
+	private static final int IN_LIST_CHUNK_SIZE = 1000;
+	private static final String INSERT_ROLE_SYNC_DIRTY = "INSERT INTO role_sync_dirty "
+			+ "(remote_system_id, remote_id, mark_seq) "
+			+ "SELECT DISTINCT ari.remote_system_id, ari.remote_id, 0 FROM account_remote_ids ari ";
+	private static final String ROLE_SYNC_DIRTY_NOT_EXISTS = " AND NOT EXISTS (SELECT 1 FROM role_sync_dirty d "
+			+ "WHERE d.remote_system_id = ari.remote_system_id AND d.remote_id = ari.remote_id)";
+	private static final String REMARK_ROLE_SYNC_DIRTY = "UPDATE role_sync_dirty SET mark_seq = mark_seq + 1 "
+			+ "WHERE EXISTS (SELECT 1 FROM account_remote_ids ari ";
+	private static final String REMARK_ROLE_SYNC_DIRTY_END = " AND ari.remote_system_id = "
+			+ "role_sync_dirty.remote_system_id AND ari.remote_id = role_sync_dirty.remote_id)";
+
 	public TransCnt createTransaction() {
-		return Transaction.create(sessionFactory);
+		return Transaction.create(sessionFactory, false);
+	}
+
+	/**
+	 * Entities loaded in a read only transaction are not dirty checked and changes are never written. Inside an open
+	 * transaction this is a normal nested transaction. Methods that write must not be called inside, they throw an
+	 * IllegalStateException.
+	 */
+	public TransCnt createReadOnlyTransaction() {
+		return Transaction.create(sessionFactory, true);
+	}
+
+	public ChunkedTransaction createChunkedTransaction() {
+		return new ChunkedTransaction(this);
 	}
 
 	private final EntityManagerFactory sessionFactory;
@@ -44,9 +88,27 @@ public class Db {
 	public final GuildQueries guilds = new GuildQueries();
 	public final RemoteSystemQueries remoteSystems = new RemoteSystemQueries();
 	public final RemoteSystemRankToGroupQueries remoteSystemRankToGroup = new RemoteSystemRankToGroupQueries();
+	public final DiscordSettingsQueries discordSettings = new DiscordSettingsQueries();
+	public final RoleSyncDirtyQueries roleSyncDirty = new RoleSyncDirtyQueries();
+
+	private final EntityCache<Long, Key> hmacKeyCache;
+	private final EntityCache<Long, Guild> guildByRemoteSystemCache;
+	private final EntityCache<Map.Entry<RemoteSystem.RemoteSystemType, Long>, RemoteSystem> remoteSystemByTypeCache;
+	private final EntityCache<Long, List<RemoteSystemRankToGroup>> rankToGroupCache;
+	private final EntityCache<Long, DiscordSettings> discordSettingsCache;
 
 	private Db() {
-		sessionFactory = Singletons.instance(Config.class).hibernateSessionFactory;
+		final Config config = Singletons.instance(Config.class);
+		sessionFactory = config.hibernateSessionFactory;
+		final Duration cacheTtl = Duration.ofSeconds(config.configCacheTtlSeconds);
+		hmacKeyCache = new EntityCache<>("hmac-key", Clock.systemUTC(), cacheTtl, config.configCacheMaxSize);
+		guildByRemoteSystemCache = new EntityCache<>("guild-by-remote-system", Clock.systemUTC(), cacheTtl,
+				config.configCacheMaxSize);
+		remoteSystemByTypeCache = new EntityCache<>("remote-system-by-type", Clock.systemUTC(), cacheTtl,
+				config.configCacheMaxSize);
+		rankToGroupCache = new EntityCache<>("rank-to-group", Clock.systemUTC(), cacheTtl, config.configCacheMaxSize);
+		discordSettingsCache = new EntityCache<>("discord-settings", Clock.systemUTC(), cacheTtl,
+				config.configCacheMaxSize);
 		try (final TransCnt trans = createTransaction()) {
 			for (final NamedQueries.NamedQuery<?> query : NamedQueries.getAllQueries()) {
 				final TypedQuery<?> typedQuery = trans.em.createQuery(query.jql, query.typeClass);
@@ -59,6 +121,51 @@ public class Db {
 		}
 	}
 
+	/**
+	 * Drops all cached configuration entities (guilds, remote systems, rank to group mappings and discord settings),
+	 * so changes made directly in the database are visible before the entries expire.
+	 */
+	public void invalidateConfigCaches() {
+		hmacKeyCache.invalidateAll();
+		guildByRemoteSystemCache.invalidateAll();
+		remoteSystemByTypeCache.invalidateAll();
+		rankToGroupCache.invalidateAll();
+		discordSettingsCache.invalidateAll();
+	}
+
+	private static boolean isConfigEntity(final Object object) {
+		return object instanceof Guild || object instanceof RemoteSystem || object instanceof RemoteSystemRankToGroup
+				|| object instanceof DiscordSettings;
+	}
+
+	private static void setNullableId(final PreparedStatement statement, final int index,
+			final @CheckForNull Long id) throws SQLException {
+		if (id == null) {
+			statement.setNull(index, Types.BIGINT);
+		} else {
+			statement.setLong(index, id);
+		}
+	}
+
+	/**
+	 * @param accountRemoteIdsFilter Joins and conditions for the account remote ids "ari" of the users to mark.
+	 * @return The statements to mark the users again that are already marked and to mark the others, both with the
+	 *         same parameters.
+	 */
+	private static List<String> markRoleSyncDirtySql(final String accountRemoteIdsFilter) {
+		return List.of(REMARK_ROLE_SYNC_DIRTY + accountRemoteIdsFilter + REMARK_ROLE_SYNC_DIRTY_END,
+				INSERT_ROLE_SYNC_DIRTY + accountRemoteIdsFilter + ROLE_SYNC_DIRTY_NOT_EXISTS);
+	}
+
+	private static int executeBatch(final PreparedStatement statement) throws SQLException {
+		int numChanged = 0;
+		for (final int result : statement.executeBatch()) {
+			// Some drivers dont report the number of changed rows for batches
+			numChanged += result == Statement.SUCCESS_NO_INFO ? 1 : result;
+		}
+		return numChanged;
+	}
+
 	private <T> TypedQuery<T> createQuery(final TransCnt trans, final NamedQueries.NamedQuery<T> query) {
 		return trans.em.createNamedQuery(query.name, query.typeClass);
 	}
@@ -69,8 +176,14 @@ public class Db {
 
 	public void save(final Object... objects) {
 		try (TransCnt trans = createTransaction()) {
+			boolean configChanged = false;
 			for (final Object object : objects) {
 				trans.em.persist(object);
+				configChanged |= isConfigEntity(object);
+			}
+			if (configChanged) {
+				// Before the commit other threads would cache the old rows again
+				trans.runAfterCommit(this::invalidateConfigCaches);
 			}
 		}
 	}
@@ -84,13 +197,13 @@ public class Db {
 	}
 
 	public <T> T find(final Class<T> clazz, final Object key) {
-		try (TransCnt trans = createTransaction()) {
+		try (TransCnt trans = createReadOnlyTransaction()) {
 			return trans.em.find(clazz, key);
 		}
 	}
 
 	public <T> List<T> forTestQuery(final Class<T> clazz, final String query) {
-		try (TransCnt trans = createTransaction()) {
+		try (TransCnt trans = createReadOnlyTransaction()) {
 			return trans.em.createQuery(query, clazz).getResultList();
 		}
 	}
@@ -100,22 +213,74 @@ public class Db {
 		}
 
 		public void updateLastOnline(final long guildId, final long memberId, final String memberName) {
+			updateLastOnline(guildId, Collections.singletonMap(memberId, memberName));
+		}
+
+		/**
+		 * Sets the last online date of all given members of one guild to today with one update per chunk of members and
+		 * inserts the members that are not known yet with a JDBC batch. The names of known members are not changed.
+		 * Commits.
+		 *
+		 * @param memberNames Names by member id
+		 */
+		public void updateLastOnline(final long guildId, final Map<Long, String> memberNames) {
+			if (memberNames.isEmpty()) {
+				return;
+			}
 			final LocalDate now = LocalDate.now(Clock.systemUTC());
 			try (final TransCnt trans = createTransaction()) {
-				final DiscordOnlineUser newUser = new DiscordOnlineUser(guildId, memberId, memberName, now);
-				final @CheckForNull DiscordOnlineUser existingUser = trans.em.find(DiscordOnlineUser.class, newUser);
-				if (existingUser == null) {
-					trans.em.persist(newUser);
-				} else {
-					existingUser.lastOnline = now;
-					trans.em.persist(existingUser);
+				final List<Long> memberIds = new ArrayList<>(memberNames.keySet());
+				final Set<Long> existingMemberIds = new HashSet<>();
+				for (int start = 0; start < memberIds.size(); start += IN_LIST_CHUNK_SIZE) {
+					final List<Long> chunk = memberIds.subList(start,
+							Math.min(start + IN_LIST_CHUNK_SIZE, memberIds.size()));
+					final List<Long> existingInChunk = createQuery(trans,
+							NamedQueries.discordOnlineUsersMemberIdsByGuildAndMemberIds)
+							.setParameter("guildId", guildId).setParameter("memberIds", chunk).getResultList();
+					if (!existingInChunk.isEmpty()) {
+						createUpdate(trans, NamedQueries.discordOnlineUsersUpdateLastOnline).setParameter("now", now)
+								.setParameter("guildId", guildId).setParameter("memberIds", existingInChunk)
+								.executeUpdate();
+						existingMemberIds.addAll(existingInChunk);
+					}
+				}
+				if (existingMemberIds.size() < memberNames.size()) {
+					insertBatch(trans, guildId, memberNames, existingMemberIds, now);
 				}
 				trans.commit();
 			}
 		}
 
+		private void insertBatch(final TransCnt trans, final long guildId, final Map<Long, String> memberNames,
+				final Set<Long> existingMemberIds, final LocalDate now) {
+			trans.em.unwrap(Session.class).doWork(connection -> {
+				try (PreparedStatement statement = connection.prepareStatement(
+						"INSERT INTO discord_online_users (guild_id, member_id, member_name, last_online)"
+								+ " VALUES (?, ?, ?, ?)")) {
+					int numInBatch = 0;
+					for (final Map.Entry<Long, String> member : memberNames.entrySet()) {
+						if (existingMemberIds.contains(member.getKey())) {
+							continue;
+						}
+						statement.setLong(1, guildId);
+						statement.setLong(2, member.getKey());
+						statement.setString(3, member.getValue());
+						statement.setObject(4, now);
+						statement.addBatch();
+						if (++numInBatch >= JDBC_BATCH_SIZE) {
+							executeBatch(statement);
+							numInBatch = 0;
+						}
+					}
+					if (numInBatch > 0) {
+						executeBatch(statement);
+					}
+				}
+			});
+		}
+
 		public List<DiscordOnlineUser> getLastOnlineBefore(final long guildIdLong, final LocalDate date) {
-			try (final TransCnt trans = createTransaction()) {
+			try (final TransCnt trans = createReadOnlyTransaction()) {
 				return createQuery(trans, NamedQueries.discordOnlineUsersByGuildAndLastOnlineLessThan)
 						.setParameter("guildId", guildIdLong).setParameter("date", date).getResultList();
 			}
@@ -127,7 +292,7 @@ public class Db {
 		}
 
 		public @CheckForNull Account byBnetId(long bnetId) {
-			try (TransCnt trans = createTransaction()) {
+			try (TransCnt trans = createReadOnlyTransaction()) {
 				try {
 					return createQuery(trans, NamedQueries.accountByBnetId).setParameter("bnetId", bnetId)
 							.getSingleResult();
@@ -137,8 +302,78 @@ public class Db {
 			}
 		}
 
-		public List<Account> withoutGuildCharacterAddedBefore(final LocalDate accountsLimitDate) {
+		/**
+		 * Loads all existing accounts with one query and inserts the missing accounts with a JDBC batch. Changed bnet
+		 * tags and last updates of existing accounts are written with the next flush in JDBC batches.
+		 *
+		 * @return The managed accounts by bnet id.
+		 */
+		public Map<Long, Account> upsert(final Collection<BattleNetProfileInfo> profileInfos) {
+			if (profileInfos.isEmpty()) {
+				return Collections.emptyMap();
+			}
+			final LocalDate today = LocalDate.now(Clock.systemUTC());
+			final Map<Long, BattleNetProfileInfo> profileInfosByBnetId = profileInfos.stream()
+					.collect(Collectors.toMap(info -> info.id, Function.identity(), (first, second) -> second));
 			try (TransCnt trans = createTransaction()) {
+				final Map<Long, Account> accounts = byBnetIds(trans, profileInfosByBnetId.keySet());
+				final List<BattleNetProfileInfo> missing = new ArrayList<>();
+				for (final BattleNetProfileInfo profileInfo : profileInfosByBnetId.values()) {
+					final @CheckForNull Account account = accounts.get(profileInfo.id);
+					if (account == null) {
+						missing.add(profileInfo);
+					} else {
+						account.setBnetTag(profileInfo.battleTag);
+						account.setLastUpdate(today);
+					}
+				}
+				if (!missing.isEmpty()) {
+					insertBatch(trans, missing, today);
+					accounts.putAll(byBnetIds(trans,
+							missing.stream().map(info -> info.id).collect(Collectors.toList())));
+				}
+				return accounts;
+			}
+		}
+
+		private Map<Long, Account> byBnetIds(final TransCnt trans, final Collection<Long> bnetIds) {
+			return createQuery(trans, NamedQueries.accountsByBnetIds).setParameter("bnetIds", bnetIds)
+					.getResultStream().collect(Collectors.toMap(Account::bnetId, Function.identity()));
+		}
+
+		private void insertBatch(final TransCnt trans, final Collection<BattleNetProfileInfo> profileInfos,
+				final LocalDate today) {
+			trans.em.unwrap(Session.class).doWork(connection -> {
+				try (PreparedStatement statement = connection.prepareStatement(
+						"INSERT INTO accounts (bnet_id, bnet_tag, added, last_update) VALUES (?, ?, ?, ?)")) {
+					int numInBatch = 0;
+					for (final BattleNetProfileInfo profileInfo : profileInfos) {
+						statement.setLong(1, profileInfo.id);
+						statement.setString(2, profileInfo.battleTag);
+						statement.setObject(3, today);
+						statement.setObject(4, today);
+						statement.addBatch();
+						if (++numInBatch >= JDBC_BATCH_SIZE) {
+							executeBatch(statement);
+							numInBatch = 0;
+						}
+					}
+					if (numInBatch > 0) {
+						executeBatch(statement);
+					}
+				}
+			});
+		}
+
+		public Set<Long> bnetIdsWithGuildCharacters(final BattleNetRegion region) {
+			try (TransCnt trans = createReadOnlyTransaction()) {
+				return new HashSet<>(createQuery(trans, NamedQueries.accountBnetIdsWithGuildCharacters)
+						.setParameter("region", region).getResultList());
+			}
+		}
+
+		public List<Account> withoutGuildCharacterAddedBefore(final LocalDate accountsLimitDate) {
+			try (TransCnt trans = createReadOnlyTransaction()) {
 				return createQuery(trans, NamedQueries.accountWithoutGuildCharacterAddedBefore)
 						.setParameter("dateAdded", accountsLimitDate).getResultList();
 			}
@@ -159,15 +394,182 @@ public class Db {
 		}
 
 		public List<Character> byBnetIds(final BattleNetRegion region, final Collection<Long> bnetIds) {
-			try (TransCnt trans = createTransaction()) {
+			try (TransCnt trans = createReadOnlyTransaction()) {
 				return createQuery(trans, NamedQueries.charactersByBnetIds).setParameter("region", region)
 						.setParameter("bnetIds", bnetIds).getResultList();
 			}
 		}
 
+		/**
+		 * @param entityGraph One of the Character.GRAPH_* constants, associations that are not part of the graph are
+		 *            not loaded.
+		 */
+		public List<Character> byBnetIds(final BattleNetRegion region, final Collection<Long> bnetIds,
+				final String entityGraph) {
+			try (TransCnt trans = createReadOnlyTransaction()) {
+				return createQuery(trans, NamedQueries.charactersByBnetIds).setParameter("region", region)
+						.setParameter("bnetIds", bnetIds)
+						.setHint("jakarta.persistence.fetchgraph", trans.em.getEntityGraph(entityGraph))
+						.getResultList();
+			}
+		}
+
+		/**
+		 * Inserts the characters with JDBC batches. Hibernate cant batch these inserts, because the database generates
+		 * the id. The characters are not added to the persistence context and their id stays unset.
+		 */
+		public int insertBatch(final Collection<Character> characters) {
+			if (characters.isEmpty()) {
+				return 0;
+			}
+			try (TransCnt trans = createTransaction()) {
+				// The characters may reference accounts or guilds that are not flushed yet
+				trans.em.flush();
+				return trans.em.unwrap(Session.class).doReturningWork(connection -> {
+					int numInserted = 0;
+					try (PreparedStatement statement = connection.prepareStatement(
+							"INSERT INTO characters (bnet_id, name, rank, region, server, account_id, guild_id) "
+									+ "VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+						int numInBatch = 0;
+						for (final Character character : characters) {
+							statement.setLong(1, character.bnetId);
+							statement.setString(2, character.name);
+							statement.setByte(3, character.rank);
+							statement.setString(4, character.region.name());
+							statement.setString(5, character.server);
+							setNullableId(statement, 6, character.account == null ? null : character.account.id());
+							setNullableId(statement, 7, character.guild == null ? null : character.guild.id());
+							statement.addBatch();
+							if (++numInBatch >= JDBC_BATCH_SIZE) {
+								numInserted += executeBatch(statement);
+								numInBatch = 0;
+							}
+						}
+						if (numInBatch > 0) {
+							numInserted += executeBatch(statement);
+						}
+					}
+					return numInserted;
+				});
+			}
+		}
+
+		/**
+		 * Merges a fetched guild roster into the characters with a few set based statements. The roster is written to
+		 * the staging table first, so no statement needs the bnet ids as parameter list. Managed characters are not
+		 * refreshed.
+		 *
+		 * @return The number of characters that are no longer in the guild.
+		 */
+		public int mergeGuildRoster(final Guild guild, final Collection<BattleNetWowCharacter> roster) {
+			final long batchId = ThreadLocalRandom.current().nextLong();
+			try (TransCnt trans = createTransaction()) {
+				trans.em.flush();
+				return trans.em.unwrap(Session.class).doReturningWork(connection -> {
+					try (PreparedStatement statement = connection.prepareStatement(
+							"INSERT INTO roster_staging (batch_id, bnet_id, name, server, rank) "
+									+ "VALUES (?, ?, ?, ?, ?)")) {
+						int numInBatch = 0;
+						for (final BattleNetWowCharacter character : roster) {
+							statement.setLong(1, batchId);
+							statement.setLong(2, character.id);
+							statement.setString(3, character.name);
+							statement.setString(4, character.realmSlug);
+							if (character.guildRank == null) {
+								statement.setNull(5, Types.TINYINT);
+							} else {
+								statement.setByte(5, character.guildRank);
+							}
+							statement.addBatch();
+							if (++numInBatch >= JDBC_BATCH_SIZE) {
+								executeBatch(statement);
+								numInBatch = 0;
+							}
+						}
+						if (numInBatch > 0) {
+							executeBatch(statement);
+						}
+					}
+					// Must run before the updates below, it compares the roster with the old state of the characters
+					for (final String sql : markRoleSyncDirtySql(
+							"JOIN characters c ON c.account_id = ari.account_id WHERE c.region = ? AND ("
+									+ "(c.guild_id = ? AND NOT EXISTS (SELECT 1 FROM roster_staging s "
+									+ "WHERE s.batch_id = ? AND s.bnet_id = c.bnet_id)) "
+									+ "OR EXISTS (SELECT 1 FROM roster_staging s "
+									+ "WHERE s.batch_id = ? AND s.bnet_id = c.bnet_id "
+									+ "AND (s.rank <> c.rank OR c.guild_id IS NULL OR c.guild_id <> ?)))")) {
+						try (PreparedStatement statement = connection.prepareStatement(sql)) {
+							statement.setString(1, guild.region().name());
+							statement.setLong(2, guild.id());
+							statement.setLong(3, batchId);
+							statement.setLong(4, batchId);
+							statement.setLong(5, guild.id());
+							statement.executeUpdate();
+						}
+					}
+					// Moves characters from other guilds to this guild, like updating single characters
+					try (PreparedStatement statement = connection.prepareStatement("UPDATE characters SET "
+							+ "name = (SELECT s.name FROM roster_staging s "
+							+ "WHERE s.batch_id = ? AND s.bnet_id = characters.bnet_id), "
+							+ "server = (SELECT s.server FROM roster_staging s "
+							+ "WHERE s.batch_id = ? AND s.bnet_id = characters.bnet_id), "
+							+ "rank = COALESCE((SELECT s.rank FROM roster_staging s "
+							+ "WHERE s.batch_id = ? AND s.bnet_id = characters.bnet_id), characters.rank), "
+							+ "guild_id = ? WHERE characters.region = ? AND EXISTS (SELECT 1 FROM roster_staging s "
+							+ "WHERE s.batch_id = ? AND s.bnet_id = characters.bnet_id AND (s.name <> characters.name "
+							+ "OR s.server <> characters.server OR s.rank <> characters.rank "
+							+ "OR characters.guild_id IS NULL OR characters.guild_id <> ?))")) {
+						statement.setLong(1, batchId);
+						statement.setLong(2, batchId);
+						statement.setLong(3, batchId);
+						statement.setLong(4, guild.id());
+						statement.setString(5, guild.region().name());
+						statement.setLong(6, batchId);
+						statement.setLong(7, guild.id());
+						statement.executeUpdate();
+					}
+					// Region and guild id come from the guilds table, parameters in the select list would need casts
+					try (PreparedStatement statement = connection.prepareStatement(
+							"INSERT INTO characters (bnet_id, name, rank, region, server, guild_id) "
+									+ "SELECT s.bnet_id, s.name, COALESCE(s.rank, 0), g.region, s.server, g.id "
+									+ "FROM roster_staging s JOIN guilds g ON g.id = ? WHERE s.batch_id = ? "
+									+ "AND NOT EXISTS (SELECT 1 FROM characters c "
+									+ "WHERE c.region = g.region AND c.bnet_id = s.bnet_id)")) {
+						statement.setLong(1, guild.id());
+						statement.setLong(2, batchId);
+						statement.executeUpdate();
+					}
+					final int removedFromGuild;
+					try (PreparedStatement statement = connection.prepareStatement(
+							"UPDATE characters SET guild_id = NULL "
+									+ "WHERE characters.region = ? AND characters.guild_id = ? "
+									+ "AND NOT EXISTS (SELECT 1 FROM roster_staging s "
+									+ "WHERE s.batch_id = ? AND s.bnet_id = characters.bnet_id)")) {
+						statement.setString(1, guild.region().name());
+						statement.setLong(2, guild.id());
+						statement.setLong(3, batchId);
+						removedFromGuild = statement.executeUpdate();
+					}
+					try (PreparedStatement statement = connection
+							.prepareStatement("DELETE FROM roster_staging WHERE batch_id = ?")) {
+						statement.setLong(1, batchId);
+						statement.executeUpdate();
+					}
+					return removedFromGuild;
+				});
+			}
+		}
+
+		/**
+		 * Also marks the remote users of the removed characters for the next role sync.
+		 */
 		public int removeGuildReferenceWhereBnetIdNotIn(final BattleNetRegion region, final Guild guild,
 				final Collection<Long> bnetIds) {
 			try (TransCnt trans = createTransaction()) {
+				roleSyncDirty.markCharacters(
+						createQuery(trans, NamedQueries.characterIdsWithAccountByGuildWhereBnetIdNotIn)
+								.setParameter("region", region).setParameter("guild", guild)
+								.setParameter("bnetIds", bnetIds).getResultList());
 				return createUpdate(trans, NamedQueries.charactersRemoveGuildReferenceWhereBnetIdNotIn)
 						.setParameter("region", region).setParameter("guild", guild).setParameter("bnetIds", bnetIds)
 						.executeUpdate();
@@ -189,17 +591,24 @@ public class Db {
 
 		public List<Character> byGuildAndRemoteSystemAndRemoteId(final Guild guild, final RemoteSystem remoteSystem,
 				final long remoteId) {
-			try (TransCnt trans = createTransaction()) {
+			try (TransCnt trans = createReadOnlyTransaction()) {
 				return createQuery(trans, NamedQueries.charactersByGuildAndRemoteSystemAndRemoteId)
 						.setParameter("guild", guild).setParameter("remoteSystem", remoteSystem)
 						.setParameter("remoteId", remoteId).getResultList();
 			}
 		}
 
+		/**
+		 * Also clears the characters hash of the accounts, because their characters no longer match the hashed list.
+		 */
 		public int deleteWithoutGuildAndAccountLastUpdateBefore(final LocalDate lastUpdate) {
 			try (TransCnt trans = createTransaction()) {
-				return createUpdate(trans, NamedQueries.charactersDeleteWithoutGuildAndAccountLastUpdateBefore)
+				createUpdate(trans, NamedQueries.accountsClearCharactersHashWithoutGuildCharacterLastUpdateBefore)
 						.setParameter("lastUpdate", lastUpdate).executeUpdate();
+				final int deleted = createUpdate(trans,
+						NamedQueries.charactersDeleteWithoutGuildAndAccountLastUpdateBefore)
+						.setParameter("lastUpdate", lastUpdate).executeUpdate();
+				return deleted;
 			}
 		}
 	}
@@ -209,7 +618,7 @@ public class Db {
 		}
 
 		public @CheckForNull AccountRemoteId byId(final Account account, final RemoteSystem remoteSystem) {
-			try (TransCnt trans = createTransaction()) {
+			try (TransCnt trans = createReadOnlyTransaction()) {
 				final AccountRemoteId primaryKey = new AccountRemoteId();
 				primaryKey.account = account;
 				primaryKey.remoteSystem = remoteSystem;
@@ -217,9 +626,46 @@ public class Db {
 			}
 		}
 
+		/**
+		 * Only loads the remote id and rank, no entities.
+		 */
+		public Map<Long, Set<Byte>> remoteIdWithRanksByGuildAndRemoteSystem(final Guild guild,
+				final RemoteSystem remoteSystem) {
+			try (TransCnt trans = createReadOnlyTransaction()) {
+				final Map<Long, Set<Byte>> result = new HashMap<>();
+				createQuery(trans, NamedQueries.accountRemoteIdRanksByGuildAndRemoteSystem)
+						.setParameter("guild", guild).setParameter("remoteSystem", remoteSystem).getResultStream()
+						.forEach(data -> result.computeIfAbsent(((Number) data[0]).longValue(), id -> new HashSet<>())
+								.add(((Number) data[1]).byteValue()));
+				return result;
+			}
+		}
+
+		/**
+		 * Like {@link #remoteIdWithRanksByGuildAndRemoteSystem(Guild, RemoteSystem)}, but only for the given remote
+		 * ids. Remote ids without characters in the guild are missing.
+		 */
+		public Map<Long, Set<Byte>> remoteIdWithRanksByGuildAndRemoteSystemAndRemoteIds(final Guild guild,
+				final RemoteSystem remoteSystem, final List<Long> remoteIds) {
+			try (TransCnt trans = createReadOnlyTransaction()) {
+				final Map<Long, Set<Byte>> result = new HashMap<>();
+				for (int start = 0; start < remoteIds.size(); start += IN_LIST_CHUNK_SIZE) {
+					final List<Long> chunk = remoteIds.subList(start,
+							Math.min(start + IN_LIST_CHUNK_SIZE, remoteIds.size()));
+					createQuery(trans, NamedQueries.accountRemoteIdRanksByGuildAndRemoteSystemAndRemoteIds)
+							.setParameter("guild", guild).setParameter("remoteSystem", remoteSystem)
+							.setParameter("remoteIds", chunk).getResultStream()
+							.forEach(data -> result
+									.computeIfAbsent(((Number) data[0]).longValue(), id -> new HashSet<>())
+									.add(((Number) data[1]).byteValue()));
+				}
+				return result;
+			}
+		}
+
 		public Map<Long, List<Character>> remoteIdWithCharactersByGuildAndRemoteSystem(Guild guild,
 				RemoteSystem remoteSystem) {
-			try (TransCnt trans = createTransaction()) {
+			try (TransCnt trans = createReadOnlyTransaction()) {
 				final Map<Long, List<Character>> result = new HashMap<>();
 				createQuery(trans, NamedQueries.accountRemoteIdWithCharactersByGuildAndRemoteSystem)
 						.setParameter("guild", guild).setParameter("remoteSystem", remoteSystem).getResultStream()
@@ -234,15 +680,20 @@ public class Db {
 		private GuildQueries() {
 		}
 
+		/**
+		 * Cached, the result must not be changed.
+		 */
 		public Guild byRemoteSystem(final long remoteSystemId) {
-			try (final TransCnt trans = createTransaction()) {
-				return createQuery(trans, NamedQueries.guildByRemoteSystemId).setParameter("id", remoteSystemId)
-						.getSingleResult();
-			}
+			return guildByRemoteSystemCache.get(remoteSystemId, id -> {
+				try (final TransCnt trans = createReadOnlyTransaction()) {
+					return createQuery(trans, NamedQueries.guildByRemoteSystemId).setParameter("id", id)
+							.getSingleResult();
+				}
+			});
 		}
 
 		public List<Guild> byRegion(final BattleNetRegion region) {
-			try (TransCnt trans = createTransaction()) {
+			try (TransCnt trans = createReadOnlyTransaction()) {
 				return createQuery(trans, NamedQueries.guildsByRegion).setParameter("region", region).getResultList();
 			}
 		}
@@ -253,37 +704,48 @@ public class Db {
 		}
 
 		public RemoteSystem byId(final long id) {
-			try (TransCnt trans = createTransaction()) {
+			try (TransCnt trans = createReadOnlyTransaction()) {
 				return Objects.requireNonNull(trans.em.find(RemoteSystem.class, id));
 			}
 		}
 
 		public List<RemoteSystem> all() {
-			try (TransCnt trans = createTransaction()) {
+			try (TransCnt trans = createReadOnlyTransaction()) {
 				return createQuery(trans, NamedQueries.remoteSystemAll).getResultList();
 			}
 		}
 
 		public List<RemoteSystem> byGuild(final long guildId) {
-			try (TransCnt trans = createTransaction()) {
+			try (TransCnt trans = createReadOnlyTransaction()) {
 				return createQuery(trans, NamedQueries.remoteSystemByGuild).setParameter("guildId", guildId)
 						.getResultList();
 			}
 		}
 
+		/**
+		 * Cached.
+		 */
 		public Key hmacKeyById(final long id) {
-			try (TransCnt trans = createTransaction()) {
-				final String hmacKeyStr = createQuery(trans, NamedQueries.remoteSystemOnlyHmacKey)
-						.setParameter("id", id).getSingleResult();
-				return MacCalculator.fromString(hmacKeyStr);
-			}
+			return hmacKeyCache.get(id, remoteSystemId -> {
+				try (TransCnt trans = createReadOnlyTransaction()) {
+					final String hmacKeyStr = createQuery(trans, NamedQueries.remoteSystemOnlyHmacKey)
+							.setParameter("id", remoteSystemId).getSingleResult();
+					return MacCalculator.fromString(hmacKeyStr);
+				}
+			});
 		}
 
+		/**
+		 * Cached, the result must not be changed.
+		 */
 		public RemoteSystem byTypeAndRemoteId(final RemoteSystem.RemoteSystemType type, final long systemId) {
-			try (TransCnt trans = createTransaction()) {
-				return createQuery(trans, NamedQueries.remoteSystemByTypeAndRemoteId).setParameter("type", type)
-						.setParameter("systemId", systemId).getSingleResult();
-			}
+			return remoteSystemByTypeCache.get(Map.entry(type, systemId), key -> {
+				try (TransCnt trans = createReadOnlyTransaction()) {
+					return createQuery(trans, NamedQueries.remoteSystemByTypeAndRemoteId)
+							.setParameter("type", key.getKey()).setParameter("systemId", key.getValue())
+							.getSingleResult();
+				}
+			});
 		}
 	}
 
@@ -291,11 +753,188 @@ public class Db {
 		private RemoteSystemRankToGroupQueries() {
 		}
 
+		/**
+		 * Cached, the result must not be changed.
+		 */
 		public List<RemoteSystemRankToGroup> byRemoteSystem(final RemoteSystem remoteSystem) {
+			return rankToGroupCache.get(remoteSystem.id, id -> {
+				try (TransCnt trans = createReadOnlyTransaction()) {
+					return List.copyOf(createQuery(trans, NamedQueries.remoteSystemRankToGroupByRemoteSystem)
+							.setParameter("remoteSystem", remoteSystem).getResultList());
+				}
+			});
+		}
+	}
+
+	/**
+	 * Remote users whose expected roles may have changed since the last role sync of their remote system. Written by
+	 * the Battle.net sync, read and cleared by the role sync.
+	 */
+	public final class RoleSyncDirtyQueries {
+		private RoleSyncDirtyQueries() {
+		}
+
+		/**
+		 * Marks the remote users of the accounts of all given characters. Flushes first, so changed accounts of
+		 * managed characters are used.
+		 */
+		public void markCharacters(final Collection<Long> characterIds) {
+			mark(markRoleSyncDirtySql("JOIN characters c ON c.account_id = ari.account_id WHERE c.id = ?"),
+					characterIds);
+		}
+
+		/**
+		 * Marks the remote users of all given accounts in all remote systems.
+		 */
+		public void markAccounts(final Collection<Long> accountIds) {
+			mark(markRoleSyncDirtySql("WHERE ari.account_id = ?"), accountIds);
+		}
+
+		private void mark(final List<String> sqls, final Collection<Long> ids) {
+			if (ids.isEmpty()) {
+				return;
+			}
+			try (TransCnt trans = createTransaction()) {
+				trans.em.flush();
+				trans.em.unwrap(Session.class).doWork(connection -> {
+					for (final String sql : sqls) {
+						try (PreparedStatement statement = connection.prepareStatement(sql)) {
+							int numInBatch = 0;
+							for (final Long id : ids) {
+								statement.setLong(1, id);
+								statement.addBatch();
+								if (++numInBatch >= JDBC_BATCH_SIZE) {
+									executeBatch(statement);
+									numInBatch = 0;
+								}
+							}
+							if (numInBatch > 0) {
+								executeBatch(statement);
+							}
+						}
+					}
+				});
+			}
+		}
+
+		/**
+		 * Inserts the mark or, when the user is already marked, increments its mark_seq. Doesnt commit.
+		 */
+		public void markRemoteUser(final RemoteSystem remoteSystem, final long remoteId) {
 			try (TransCnt trans = createTransaction()) {
-				return createQuery(trans, NamedQueries.remoteSystemRankToGroupByRemoteSystem)
-						.setParameter("remoteSystem", remoteSystem).getResultList();
+				trans.em.unwrap(Session.class).doWork(connection -> {
+					if (remarkRemoteUser(connection, remoteSystem, remoteId)) {
+						return;
+					}
+					try (PreparedStatement insert = connection.prepareStatement(
+							"INSERT INTO role_sync_dirty (remote_system_id, remote_id, mark_seq) VALUES (?, ?, 0)")) {
+						insert.setLong(1, remoteSystem.id);
+						insert.setLong(2, remoteId);
+						insert.executeUpdate();
+					} catch (SQLIntegrityConstraintViolationException e) {
+						// Another transaction marked the user after the update above
+						if (!remarkRemoteUser(connection, remoteSystem, remoteId)) {
+							throw e;
+						}
+					}
+				});
+			}
+		}
+
+		private boolean remarkRemoteUser(final Connection connection, final RemoteSystem remoteSystem,
+				final long remoteId) throws SQLException {
+			try (PreparedStatement update = connection.prepareStatement("UPDATE role_sync_dirty "
+					+ "SET mark_seq = mark_seq + 1 WHERE remote_system_id = ? AND remote_id = ?")) {
+				update.setLong(1, remoteSystem.id);
+				update.setLong(2, remoteId);
+				return update.executeUpdate() > 0;
 			}
 		}
+
+		public List<Long> remoteIds(final RemoteSystem remoteSystem) {
+			return new ArrayList<>(marks(remoteSystem).keySet());
+		}
+
+		/**
+		 * @return The mark_seq of every marked remote user, to delete the marks with
+		 *         {@link #delete(RemoteSystem, Map)}.
+		 */
+		public Map<Long, Long> marks(final RemoteSystem remoteSystem) {
+			try (TransCnt trans = createReadOnlyTransaction()) {
+				return trans.em.unwrap(Session.class).doReturningWork(connection -> {
+					final Map<Long, Long> result = new HashMap<>();
+					try (PreparedStatement statement = connection.prepareStatement(
+							"SELECT remote_id, mark_seq FROM role_sync_dirty WHERE remote_system_id = ?")) {
+						statement.setLong(1, remoteSystem.id);
+						try (ResultSet resultSet = statement.executeQuery()) {
+							while (resultSet.next()) {
+								result.put(resultSet.getLong(1), resultSet.getLong(2));
+							}
+						}
+					}
+					return result;
+				});
+			}
+		}
+
+		/**
+		 * Only deletes the marks that are unchanged since {@link #marks(RemoteSystem)} returned them, users marked
+		 * again in the meantime stay marked. Commits.
+		 */
+		public void delete(final RemoteSystem remoteSystem, final Map<Long, Long> marks) {
+			if (marks.isEmpty()) {
+				return;
+			}
+			try (TransCnt trans = createTransaction()) {
+				trans.em.unwrap(Session.class).doWork(connection -> {
+					try (PreparedStatement statement = connection.prepareStatement("DELETE FROM role_sync_dirty "
+							+ "WHERE remote_system_id = ? AND remote_id = ? AND mark_seq = ?")) {
+						int numInBatch = 0;
+						for (final Map.Entry<Long, Long> mark : marks.entrySet()) {
+							statement.setLong(1, remoteSystem.id);
+							statement.setLong(2, mark.getKey());
+							statement.setLong(3, mark.getValue());
+							statement.addBatch();
+							if (++numInBatch >= JDBC_BATCH_SIZE) {
+								executeBatch(statement);
+								numInBatch = 0;
+							}
+						}
+						if (numInBatch > 0) {
+							executeBatch(statement);
+						}
+					}
+				});
+				trans.commit();
+			}
+		}
+
+		/**
+		 * Commits.
+		 */
+		public void deleteAll(final RemoteSystem remoteSystem) {
+			try (TransCnt trans = createTransaction()) {
+				trans.em.unwrap(Session.class).doWork(connection -> {
+					try (PreparedStatement statement = connection
+							.prepareStatement("DELETE FROM role_sync_dirty WHERE remote_system_id = ?")) {
+						statement.setLong(1, remoteSystem.id);
+						statement.executeUpdate();
+					}
+				});
+				trans.commit();
+			}
+		}
+	}
+
+	public final class DiscordSettingsQueries {
+		private DiscordSettingsQueries() {
+		}
+
+		/**
+		 * Cached, the result must not be changed.
+		 */
+		public DiscordSettings byRemoteSystem(final RemoteSystem remoteSystem) {
+			return discordSettingsCache.get(remoteSystem.id, id -> find(DiscordSettings.class, id));
+		}
 	}
 }
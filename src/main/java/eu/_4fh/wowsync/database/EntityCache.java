@@ -0,0 +1,114 @@
+package eu._4fh.wowsync.database;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.Statistics;
+
+/**
+ * Size bounded cache with a time to live for configuration entities that almost never change. The cached entities
+ * are detached, callers must not change them. Hits, misses and evictions are counted as db.cache.&lt;name&gt;.*
+ */
+@DefaultAnnotation(NonNull.class)
+/*package*/ class EntityCache<K, V> {
+	private static class Entry<V> {
+		private final V value;
+		private final Instant expires;
+
+		private Entry(final V value, final Instant expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	private final Statistics statistics;
+	private final String name;
+	private final Clock clock;
+	private final Duration ttl;
+	private final Map<K, Entry<V>> entries;
+	// Incremented by every invalidation, guarded by entries
+	private long generation = 0;
+
+	/*package*/ EntityCache(final String name, final Clock clock, final Duration ttl, final int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be at least 1, but is " + maxSize);
+		}
+		this.statistics = Singletons.instance(Statistics.class);
+		this.name = name;
+		this.clock = clock;
+		this.ttl = ttl;
+		// Access order, so the least recently used entry is evicted first
+		this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<K, Entry<V>> eldest) {
+				if (size() > maxSize) {
+					statistics.increment(metricName("evictions"));
+					return true;
+				}
+				return false;
+			}
+		};
+		statistics.registerGauge(metricName("size"), this::size);
+	}
+
+	private String metricName(final String metric) {
+		return "db.cache." + name + "." + metric;
+	}
+
+	/**
+	 * The loader runs outside of the lock, so two threads can load the same key at the same time. That is cheaper than
+	 * blocking every reader while the database is queried. A value whose load raced with an invalidation is returned,
+	 * but not cached, because it may have been loaded before the change.
+	 */
+	/*package*/ V get(final K key, final Function<K, V> loader) {
+		final Instant now = clock.instant();
+		final long loadGeneration;
+		synchronized (entries) {
+			final Entry<V> entry = entries.get(key);
+			if (entry != null && entry.expires.isAfter(now)) {
+				statistics.increment(metricName("hits"));
+				return entry.value;
+			}
+			loadGeneration = generation;
+		}
+		statistics.increment(metricName("misses"));
+		final V value = loader.apply(key);
+		synchronized (entries) {
+			if (loadGeneration == generation) {
+				entries.put(key, new Entry<>(value, now.plus(ttl)));
+			} else {
+				statistics.increment(metricName("stale-loads"));
+			}
+		}
+		return value;
+	}
+
+	/*package*/ void invalidate(final K key) {
+		synchronized (entries) {
+			generation++;
+			entries.remove(key);
+		}
+	}
+
+	/*package*/ void invalidateAll() {
+		synchronized (entries) {
+			generation++;
+			entries.clear();
+		}
+	}
+
+	/*package*/ long size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+}
@@ -57,6 +57,11 @@ import eu._4fh.wowsync.database.data.RemoteSystemRankToGroup;
 			DiscordOnlineUser.class, "ByGuildAndLastOnlineLessThan",
 			"SELECT dou FROM DiscordOnlineUser dou WHERE dou.guildId = :guildId AND dou.lastOnline <= :date");
 
+	public static final NamedQuery<Long> discordOnlineUsersMemberIdsByGuildAndMemberIds = new NamedQuery<>(Long.class,
+			"DiscordOnlineUsersMemberIdsByGuildAndMemberIds",
+			"SELECT dou.memberId FROM DiscordOnlineUser dou"
+					+ " WHERE dou.guildId = :guildId AND dou.memberId in :memberIds");
+
 	public static final NamedUpdate discordOnlineUsersUpdateLastOnline = new NamedUpdate(
 			"DiscordOnlineUsersUpdateLastOnline",
 			"UPDATE DiscordOnlineUser dou SET dou.lastOnline = :now WHERE dou.guildId = :guildId AND dou.memberId in :memberIds");
@@ -82,6 +87,13 @@ import eu._4fh.wowsync.database.data.RemoteSystemRankToGroup;
 	public static final NamedQuery<Account> accountByBnetId = new NamedQuery<>(Account.class, "ByBnetId",
 			"SELECT a FROM Account a WHERE bnetId = :bnetId");
 
+	public static final NamedQuery<Account> accountsByBnetIds = new NamedQuery<>(Account.class, "ByBnetIds",
+			"SELECT a FROM Account a WHERE a.bnetId IN :bnetIds");
+
+	public static final NamedQuery<Long> accountBnetIdsWithGuildCharacters = new NamedQuery<>(Long.class,
+			"AccountBnetIdsWithGuildCharacters",
+			"SELECT DISTINCT c.account.bnetId FROM Character c WHERE c.region = :region AND c.guild IS NOT NULL AND c.account IS NOT NULL");
+
 	public static final NamedQuery<Account> accountWithoutGuildCharacterAddedBefore = new NamedQuery<>(Account.class,
 			"WithoutGuildCharacterAddedBefore",
 			"SELECT a FROM Account a WHERE a.added < :dateAdded AND a NOT IN (SELECT c.account FROM Character c WHERE c.guild IS NOT NULL AND c.account IS NOT NULL)");
@@ -91,6 +103,16 @@ import eu._4fh.wowsync.database.data.RemoteSystemRankToGroup;
 			"SELECT ari.remoteId, c" + " FROM AccountRemoteId ari INNER JOIN Character c ON ari.account = c.account"
 					+ " WHERE ari.remoteSystem = :remoteSystem AND c.guild = :guild");
 
+	public static final NamedQuery<Object[]> accountRemoteIdRanksByGuildAndRemoteSystem = new NamedQuery<>(
+			Object[].class, "remoteIdRanksByGuildAndRemoteSystem",
+			"SELECT ari.remoteId, c.rank FROM AccountRemoteId ari INNER JOIN Character c ON ari.account = c.account"
+					+ " WHERE ari.remoteSystem = :remoteSystem AND c.guild = :guild");
+
+	public static final NamedQuery<Object[]> accountRemoteIdRanksByGuildAndRemoteSystemAndRemoteIds = new NamedQuery<>(
+			Object[].class, "remoteIdRanksByGuildAndRemoteSystemAndRemoteIds",
+			"SELECT ari.remoteId, c.rank FROM AccountRemoteId ari INNER JOIN Character c ON ari.account = c.account"
+					+ " WHERE ari.remoteSystem = :remoteSystem AND c.guild = :guild AND ari.remoteId IN :remoteIds");
+
 	public static final NamedUpdate accountRemoteIdDeleteByAccounts = new NamedUpdate("accountRemoteIdDeleteByAccounts",
 			"DELETE FROM AccountRemoteId ari WHERE ari.account IN :accounts");
 
@@ -101,6 +123,10 @@ import eu._4fh.wowsync.database.data.RemoteSystemRankToGroup;
 			Character.class, "ByRemoteSystemAndRemoteId",
 			"SELECT c FROM Character c WHERE c.guild = :guild AND c.account = (SELECT ari.account FROM AccountRemoteId ari WHERE ari.remoteSystem = :remoteSystem AND ari.remoteId = :remoteId)");
 
+	public static final NamedQuery<Long> characterIdsWithAccountByGuildWhereBnetIdNotIn = new NamedQuery<>(Long.class,
+			"IdsWithAccountByGuildWhereBnetIdNotIn", "SELECT c.id FROM Character c WHERE c.region = :region"
+					+ " AND c.guild = :guild AND c.bnetId NOT IN :bnetIds AND c.account IS NOT NULL");
+
 	public static final NamedUpdate charactersRemoveGuildReferenceWhereBnetIdNotIn = new NamedUpdate(
 			"charactersRemoveGuildReferenceWhereBnetIdNotIn",
 			"UPDATE Character c SET c.guild = NULL WHERE c.region = :region AND c.guild = :guild AND c.bnetId NOT IN :bnetIds");
@@ -112,6 +138,11 @@ import eu._4fh.wowsync.database.data.RemoteSystemRankToGroup;
 	public static final NamedUpdate charactersDeleteByAccounts = new NamedUpdate("charactersDeleteByAccounts",
 			"DELETE FROM Character c WHERE c.account IN :accounts");
 
+	public static final NamedUpdate accountsClearCharactersHashWithoutGuildCharacterLastUpdateBefore = new NamedUpdate(
+			"accountsClearCharactersHashWithoutGuildCharacterLastUpdateBefore",
+			"UPDATE Account a SET a.charactersHash = NULL WHERE a.lastUpdate < :lastUpdate"
+					+ " AND EXISTS (SELECT c FROM Character c WHERE c.account = a AND c.guild IS NULL)");
+
 	public static final NamedUpdate charactersDeleteWithoutGuildAndAccountLastUpdateBefore = new NamedUpdate(
 			"charactersDeleteWithoutGuildAndAccountLastUpdateBefore",
 			"DELETE FROM Character c WHERE c.guild IS NULL AND c.account IN (SELECT a FROM Account a WHERE a.lastUpdate < :lastUpdate)");
@@ -1,7 +1,12 @@
 package eu._4fh.wowsync.database;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+
 import edu.umd.cs.findbugs.annotations.CleanupObligation;
 import edu.umd.cs.findbugs.annotations.CreatesObligation;
 import edu.umd.cs.findbugs.annotations.DischargesObligation;
@@ -35,14 +40,47 @@ public class Transaction implements AutoCloseable {
 
 		public void commit() {
 			em.getTransaction().commit();
+			final List<Runnable> actions = new ArrayList<>(afterCommit);
+			afterCommit.clear();
+			actions.forEach(Runnable::run);
+		}
+
+		/**
+		 * Runs the action after the next commit of this thread's transaction. Nothing is run on a rollback.
+		 */
+		public void runAfterCommit(final Runnable action) {
+			afterCommit.add(action);
+		}
+
+		/**
+		 * Writes all pending changes to the database and detaches all entities, so the persistence context doesnt grow
+		 * with every loaded entity. Does not commit.
+		 */
+		public void checkpoint() {
+			if (!readOnly) {
+				em.flush();
+			}
+			em.clear();
+		}
+
+		public boolean isReadOnly() {
+			return readOnly;
 		}
 	}
 
-	/*package*/ static TransCnt create(final EntityManagerFactory sessionFactory) {
+	/**
+	 * @param readOnly A read only transaction inside a writable transaction is part of the writable transaction. A
+	 *            writable transaction inside a read only transaction is not allowed, its changes would never be
+	 *            written.
+	 * @throws IllegalStateException If a writable transaction is requested inside a read only transaction.
+	 */
+	/*package*/ static TransCnt create(final EntityManagerFactory sessionFactory, final boolean readOnly) {
 		// Transaction will be cleaned up when all TransCnt are closed
 		Transaction transaction = threadTransaction.get();
 		if (transaction == null) {
-			transaction = new Transaction(sessionFactory);
+			transaction = new Transaction(sessionFactory, readOnly);
+		} else if (transaction.readOnly && !readOnly) {
+			throw new IllegalStateException("Cant open a writable transaction inside a read only transaction");
 		}
 		return transaction.new TransCnt();
 	}
@@ -50,11 +88,20 @@ public class Transaction implements AutoCloseable {
 	private static final ThreadLocal<Transaction> threadTransaction = new ThreadLocal<>();
 
 	private final EntityManager em;
+	private final boolean readOnly;
 	private final AtomicInteger counter = new AtomicInteger(0);
+	private final List<Runnable> afterCommit = new ArrayList<>();
 
 	@CreatesObligation
-	private Transaction(final EntityManagerFactory sessionFactory) {
+	private Transaction(final EntityManagerFactory sessionFactory, final boolean readOnly) {
 		em = sessionFactory.createEntityManager();
+		this.readOnly = readOnly;
+		if (readOnly) {
+			// Loaded entities get no snapshot for dirty checking and nothing is ever flushed
+			final Session session = em.unwrap(Session.class);
+			session.setDefaultReadOnly(true);
+			session.setHibernateFlushMode(FlushMode.MANUAL);
+		}
 		threadTransaction.set(this);
 	}
 
@@ -2,6 +2,7 @@ package eu._4fh.wowsync.database.data;
 
 import java.time.LocalDate;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.GeneratedValue;
@@ -35,10 +36,13 @@ public class Account {
 	@Temporal(TemporalType.DATE)
 	private LocalDate lastUpdate;
 
+	@Column(name = "characters_hash", nullable = true)
+	private @CheckForNull Long charactersHash;
+
 	@Override
 	public String toString() {
 		return "Account [id=" + id + ", bnetId=" + bnetId + ", bnetTag=" + bnetTag + ", added=" + added
-				+ ", lastUpdate=" + lastUpdate + "]";
+				+ ", lastUpdate=" + lastUpdate + ", charactersHash=" + charactersHash + "]";
 	}
 
 	public long id() {
@@ -76,4 +80,12 @@ public class Account {
 	public void setLastUpdate(LocalDate lastUpdate) {
 		this.lastUpdate = lastUpdate;
 	}
+
+	public @CheckForNull Long charactersHash() {
+		return charactersHash;
+	}
+
+	public void setCharactersHash(@CheckForNull Long charactersHash) {
+		this.charactersHash = charactersHash;
+	}
 }
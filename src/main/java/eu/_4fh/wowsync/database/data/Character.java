@@ -14,14 +14,28 @@ import jakarta.persistence.Id;
 import jakarta.persistence.Index;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.ManyToOne;
+import jakarta.persistence.NamedAttributeNode;
+import jakarta.persistence.NamedEntityGraph;
 import jakarta.persistence.Table;
 
 @Entity
+@NamedEntityGraph(name = Character.GRAPH_WITH_GUILD, attributeNodes = @NamedAttributeNode("guild"))
+@NamedEntityGraph(name = Character.GRAPH_WITH_ACCOUNT, attributeNodes = @NamedAttributeNode("account"))
 @Table(name = "characters", indexes = {
 		@Index(name = "idx_characters_bnet_id_region", unique = true, columnList = "bnet_id, region"),
 		@Index(name = "idx_characters_account_id", columnList = "account_id"),
 		@Index(name = "idx_characters_guild_id", columnList = "guild_id") })
 public class Character {
+	/**
+	 * Fetches the guild with a join. The account is EAGER, but as a fetch graph this only loads a proxy of it, which
+	 * is initialized with another select when it is used.
+	 */
+	public static final String GRAPH_WITH_GUILD = "Character.withGuild";
+	/**
+	 * Fetches the account with a join, the guild is not loaded.
+	 */
+	public static final String GRAPH_WITH_ACCOUNT = "Character.withAccount";
+
 	@Id
 	@GeneratedValue(strategy = GenerationType.IDENTITY)
 	@Column(name = "id", nullable = false, updatable = false, insertable = false)
@@ -0,0 +1,63 @@
+package eu._4fh.wowsync.database.data;
+
+import java.util.Objects;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.FetchType;
+import jakarta.persistence.ForeignKey;
+import jakarta.persistence.Id;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.OneToOne;
+import jakarta.persistence.Table;
+
+@Entity
+@Table(name = "guild_roster_states")
+public class GuildRosterState {
+	@Id
+	@OneToOne(fetch = FetchType.EAGER, optional = false)
+	@JoinColumn(name = "guild_id", nullable = false, updatable = false, foreignKey = @ForeignKey(name = "fk_guild_roster_states_guild_id"))
+	private Guild guild;
+
+	@Column(name = "roster_hash", nullable = true)
+	private @CheckForNull Long rosterHash;
+
+	public Guild guild() {
+		return guild;
+	}
+
+	public void setGuild(Guild guild) {
+		this.guild = guild;
+	}
+
+	public @CheckForNull Long rosterHash() {
+		return rosterHash;
+	}
+
+	public void setRosterHash(final @CheckForNull Long rosterHash) {
+		this.rosterHash = rosterHash;
+	}
+
+	@Override
+	public String toString() {
+		return "GuildRosterState [guild=" + guild + ", rosterHash=" + rosterHash + "]";
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(guild);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof GuildRosterState)) {
+			return false;
+		}
+		GuildRosterState other = (GuildRosterState) obj;
+		return Objects.equals(guild, other.guild);
+	}
+}
@@ -0,0 +1,50 @@
+package eu._4fh.wowsync.database.data;
+
+import java.util.Objects;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+/**
+ * Remote user whose expected roles may have changed since the last role sync of the remote system, because the rank,
+ * guild or account of one of the characters or the account link changed. Only written and read with native SQL.
+ * Marking an already marked user increments markSeq, so a role sync only deletes the marks it has seen.
+ */
+@Entity
+@Table(name = "role_sync_dirty")
+public class RoleSyncDirtyEntry {
+	@Id
+	@Column(name = "remote_system_id", nullable = false)
+	public long remoteSystemId;
+
+	@Id
+	@Column(name = "remote_id", nullable = false)
+	public long remoteId;
+
+	@Column(name = "mark_seq", nullable = false)
+	public long markSeq;
+
+	@SuppressWarnings("unused")
+	private RoleSyncDirtyEntry() {
+		// Used by Hibernate
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(remoteSystemId, remoteId);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof RoleSyncDirtyEntry)) {
+			return false;
+		}
+		RoleSyncDirtyEntry other = (RoleSyncDirtyEntry) obj;
+		return remoteSystemId == other.remoteSystemId && remoteId == other.remoteId;
+	}
+}
@@ -0,0 +1,56 @@
+package eu._4fh.wowsync.database.data;
+
+import java.util.Objects;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Table;
+
+/**
+ * Fetched guild roster, so it can be merged into the characters with a few set based statements. The rows of a merge
+ * share the batch id and are deleted in the same transaction. Only written and read with native SQL.
+ */
+@Entity
+@Table(name = "roster_staging")
+public class RosterStagingEntry {
+	@Id
+	@Column(name = "batch_id", nullable = false)
+	public long batchId;
+
+	@Id
+	@Column(name = "bnet_id", nullable = false)
+	public long bnetId;
+
+	@Column(name = "name", nullable = false, length = 32)
+	public String name;
+
+	@Column(name = "server", nullable = false, length = 32)
+	public String server;
+
+	@Column(name = "rank", nullable = true)
+	public @CheckForNull Byte rank;
+
+	@SuppressWarnings("unused")
+	private RosterStagingEntry() {
+		// Used by Hibernate
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(batchId, bnetId);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof RosterStagingEntry)) {
+			return false;
+		}
+		RosterStagingEntry other = (RosterStagingEntry) obj;
+		return batchId == other.batchId && bnetId == other.bnetId;
+	}
+}
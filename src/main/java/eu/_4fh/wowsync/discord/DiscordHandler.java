@@ -1,33 +1,43 @@
 package eu._4fh.wowsync.discord;
 
-import java.time.Clock;
-import java.time.LocalDate;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.CleanupObligation;
 import edu.umd.cs.findbugs.annotations.CreatesObligation;
 import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
 import edu.umd.cs.findbugs.annotations.DischargesObligation;
 import edu.umd.cs.findbugs.annotations.NonNull;
-import eu._4fh.abstract_bnet_api.util.Pair;
 import eu._4fh.wowsync.database.Db;
 import eu._4fh.wowsync.database.data.RemoteSystem.RemoteSystemType;
 import eu._4fh.wowsync.modules.Module.RoleChange;
 import eu._4fh.wowsync.modules.ModuleService;
+import eu._4fh.wowsync.modules.MutationScheduler;
+import eu._4fh.wowsync.modules.MutationScheduler.Priority;
 import eu._4fh.wowsync.util.ClosableSingleton;
 import eu._4fh.wowsync.util.Config;
 import eu._4fh.wowsync.util.Singletons;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDABuilder;
+import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Role;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
@@ -43,28 +53,87 @@ import net.dv8tion.jda.api.utils.cache.CacheFlag;
 @CleanupObligation
 /*package*/ class DiscordHandler extends ListenerAdapter implements ClosableSingleton {
 
+	private final Logger log = LoggerFactory.getLogger(getClass());
 	private final JDA jda;
 	private final Db db;
 	private final Set<Long> messageReactions = ConcurrentHashMap.newKeySet();
-	private volatile LocalDate lastOnlineUserUpdateDay = LocalDate.now(Clock.systemUTC());
-	private final Set<Pair<Long, Long>> alreadyUpdatedOnlineUsers = ConcurrentHashMap.newKeySet();
+	private final OnlineMemberTracker alreadyUpdatedOnlineUsers = new OnlineMemberTracker(System.currentTimeMillis());
+	private final OnlineUserBuffer onlineUserBuffer;
+	private final MemberRoleIndex memberRoleIndex;
+	private final ScheduledExecutorService memberRoleIndexReconciler;
+	private final MutationScheduler mutations;
 
 	@CreatesObligation
 	private DiscordHandler() {
+		final Config config = Singletons.instance(Config.class);
+		// Before the JDA is built, the events can arrive before awaitReady returns
+		db = Singletons.instance(Db.class);
+		onlineUserBuffer = new OnlineUserBuffer(db, config.discordOnlineUsersFlushSeconds);
+		memberRoleIndex = new MemberRoleIndex();
+		memberRoleIndexReconciler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "discord-member-index-reconcile");
+			thread.setDaemon(true);
+			return thread;
+		});
+		mutations = new MutationScheduler("discord", config.discordMutationIntervalMillis,
+				config.discordMutationsInFlight, config.discordMutationBatchQueueSize,
+				TimeUnit.SECONDS.toMillis(config.discordMutationTimeoutSeconds));
 		jda = JDABuilder
-				.createDefault(Singletons.instance(Config.class).discordToken, GatewayIntent.GUILD_MESSAGE_REACTIONS,
+				.createDefault(config.discordToken, GatewayIntent.GUILD_MESSAGE_REACTIONS,
 						GatewayIntent.GUILD_MEMBERS, GatewayIntent.GUILD_PRESENCES)
 				.disableCache(CacheFlag.VOICE_STATE, CacheFlag.EMOJI, CacheFlag.STICKER, CacheFlag.SCHEDULED_EVENTS)
 				.enableCache(CacheFlag.ONLINE_STATUS).setAutoReconnect(true)
 				.setMemberCachePolicy(MemberCachePolicy.ONLINE).setChunkingFilter(ChunkingFilter.NONE)
-				.addEventListeners(this).build();
+				.addEventListeners(this, new MemberRoleIndexListener(memberRoleIndex)).build();
 		try {
 			jda.awaitReady();
 		} catch (InterruptedException e) {
 			Thread.currentThread().interrupt();
 		}
 		jda.upsertCommand("bnet-auth", "Authenticates yourself with battlenet").queue();
-		db = Singletons.instance(Db.class);
+		// The first run loads the index, until then the members are requested from Discord
+		memberRoleIndexReconciler.scheduleWithFixedDelay(this::reconcileMemberRoleIndex, 0,
+				config.discordMemberIndexReconcileMinutes, TimeUnit.MINUTES);
+	}
+
+	private void reconcileMemberRoleIndex() {
+		for (final Guild guild : jda.getGuilds()) {
+			try {
+				reconcileMemberRoleIndex(guild);
+			} catch (RuntimeException e) {
+				log.error("Cant load members of discord guild " + guild.getIdLong(), e);
+			}
+		}
+	}
+
+	private void reconcileMemberRoleIndex(final Guild guild) {
+		memberRoleIndex.startLoad(guild.getIdLong());
+		try {
+			final Map<Long, List<Long>> roleIdsByMember = new HashMap<>();
+			for (final Member member : guild.findMembers(m -> true).get()) {
+				roleIdsByMember.put(member.getIdLong(), MemberRoleIndexListener.roleIds(member.getRoles()));
+			}
+			final int numDifferences = memberRoleIndex.finishLoad(guild.getIdLong(), roleIdsByMember);
+			if (numDifferences > 0) {
+				log.info("Corrected {} members in the member index of discord guild {}", numDifferences,
+						guild.getIdLong());
+			}
+		} catch (RuntimeException e) {
+			memberRoleIndex.abortLoad(guild.getIdLong());
+			throw e;
+		}
+	}
+
+	private static Set<String> roleNames(final Guild guild, final Set<Long> roleIds) {
+		final Set<String> result = new HashSet<>();
+		for (final Long roleId : roleIds) {
+			// Roles are always cached by JDA
+			final @CheckForNull Role role = guild.getRoleById(roleId);
+			if (role != null) {
+				result.add(role.getName());
+			}
+		}
+		return Collections.unmodifiableSet(result);
 	}
 
 	/*package*/ void addMessageToReactTo(final long messageId) {
@@ -77,17 +146,12 @@ import net.dv8tion.jda.api.utils.cache.CacheFlag;
 
 	@Override
 	public void onUserUpdateOnlineStatus(final UserUpdateOnlineStatusEvent event) {
-		final LocalDate today = LocalDate.now(Clock.systemUTC());
-		if (!lastOnlineUserUpdateDay.equals(today)) {
-			alreadyUpdatedOnlineUsers.clear();
-			lastOnlineUserUpdateDay = today;
-		}
 		final long guildId = event.getGuild().getIdLong();
 		final long memberId = event.getMember().getIdLong();
-		if (alreadyUpdatedOnlineUsers.add(new Pair<>(guildId, memberId))) {
+		if (alreadyUpdatedOnlineUsers.markOnline(guildId, memberId, System.currentTimeMillis())) {
 			// This event is only fired for cached users. Because of that, we cache all online users.
 			// We dont test for new or last onlineState, because we dont care because when any event is fired, the user is currently online.
-			db.discordOnlineUsers.updateLastOnline(guildId, memberId, event.getMember().getEffectiveName());
+			onlineUserBuffer.touch(guildId, memberId, event.getMember().getEffectiveName());
 		}
 	}
 
@@ -122,20 +186,63 @@ import net.dv8tion.jda.api.utils.cache.CacheFlag;
 	@Override
 	@DischargesObligation
 	public void close() {
+		memberRoleIndexReconciler.shutdownNow();
+		// Queued changes are cancelled, before the JDA cant run them anymore
+		mutations.close();
 		jda.shutdown();
+		try {
+			// The buffer is written last, no presence event may arrive after that
+			if (!jda.awaitShutdown(Duration.ofSeconds(30))) {
+				log.warn("Discord connection did not shut down in time");
+				jda.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			jda.shutdownNow();
+		}
+		onlineUserBuffer.close();
 	}
 
-	public Map<Long, Set<String>> getAllUsersWithRoles(final long guildId) {
-		final Map<Long, Set<String>> result = new HashMap<>();
-		final List<Member> members = jda.getGuildById(guildId).findMembers(m -> true).get();
-		for (final Member member : members) {
-			final Set<String> roles = member.getRoles().stream().map(Role::getName).collect(Collectors.toSet());
-			result.put(member.getIdLong(), Collections.unmodifiableSet(roles));
+	/**
+	 * Pages over the members of the index. Until the index is loaded, all members are fetched from Discord and paged
+	 * afterwards.
+	 */
+	public void forEachUsersPage(final long guildId, final int pageSize,
+			final Consumer<Map<Long, Set<String>>> pageHandler) {
+		final Guild guild = jda.getGuildById(guildId);
+		final @CheckForNull long[] memberIds = memberRoleIndex.memberIds(guildId);
+		if (memberIds != null) {
+			for (int start = 0; start < memberIds.length; start += pageSize) {
+				final int end = Math.min(start + pageSize, memberIds.length);
+				final Map<Long, Set<String>> page = new HashMap<>();
+				for (int i = start; i < end; ++i) {
+					final @CheckForNull Set<Long> roleIds = memberRoleIndex.roleIds(guildId, memberIds[i]);
+					// Null if the member left after the ids were copied
+					if (roleIds != null) {
+						page.put(memberIds[i], roleNames(guild, roleIds));
+					}
+				}
+				pageHandler.accept(page);
+			}
+			return;
+		}
+		final List<Member> members = guild.findMembers(m -> true).get();
+		for (int start = 0; start < members.size(); start += pageSize) {
+			final Map<Long, Set<String>> page = new HashMap<>();
+			for (final Member member : members.subList(start, Math.min(start + pageSize, members.size()))) {
+				final Set<String> roles = member.getRoles().stream().map(Role::getName).collect(Collectors.toSet());
+				page.put(member.getIdLong(), Collections.unmodifiableSet(roles));
+			}
+			pageHandler.accept(page);
 		}
-		return result;
 	}
 
 	public Set<String> getRolesForUser(final long guildId, final long userId) {
+		final @CheckForNull Set<Long> roleIds = memberRoleIndex.roleIds(guildId, userId);
+		if (roleIds != null) {
+			return roleNames(jda.getGuildById(guildId), roleIds);
+		}
+		// The member may have joined just now, so ask Discord
 		try {
 			return Collections.unmodifiableSet(jda.getGuildById(guildId).retrieveMemberById(userId).submit().get()
 					.getRoles().stream().map(Role::getName).collect(Collectors.toSet()));
@@ -144,20 +251,68 @@ import net.dv8tion.jda.api.utils.cache.CacheFlag;
 		}
 	}
 
-	public void changeRole(final long guildId, final Map<Long, RoleChange> roleChanges) {
+	/**
+	 * @return Roles by user id, only for the given users that are on the server.
+	 */
+	public Map<Long, Set<String>> getRolesForUsers(final long guildId, final Collection<Long> userIds) {
+		final Map<Long, Set<String>> result = new HashMap<>();
+		if (userIds.isEmpty()) {
+			return result;
+		}
+		if (memberRoleIndex.isLoaded(guildId)) {
+			final Guild guild = jda.getGuildById(guildId);
+			for (final Long userId : userIds) {
+				final @CheckForNull Set<Long> roleIds = memberRoleIndex.roleIds(guildId, userId);
+				if (roleIds != null) {
+					result.put(userId, roleNames(guild, roleIds));
+				}
+			}
+			return result;
+		}
+		final List<Member> members = jda.getGuildById(guildId).retrieveMembersByIds(userIds).get();
+		for (final Member member : members) {
+			final Set<String> roles = member.getRoles().stream().map(Role::getName).collect(Collectors.toSet());
+			result.put(member.getIdLong(), Collections.unmodifiableSet(roles));
+		}
+		return result;
+	}
+
+	/**
+	 * Every member is changed with its own request through the {@link MutationScheduler}. Blocks while the queue of
+	 * batch changes is full.
+	 */
+	public void changeRole(final long guildId, final Map<Long, RoleChange> roleChanges, final Priority priority) {
 		final Map<String, List<Role>> roles = new HashMap<>();
 		for (final Role role : jda.getGuildById(guildId).getRoleCache().asList()) {
 			roles.computeIfAbsent(role.getName(), name -> new ArrayList<>()).add(role);
 		}
-		final List<Member> members = jda.getGuildById(guildId).retrieveMembersByIds(roleChanges.keySet()).get();
+		final Guild guild = jda.getGuildById(guildId);
+		final List<Member> members = guild.retrieveMembersByIds(roleChanges.keySet()).get();
 		for (final Member member : members) {
 			final RoleChange roleChange = roleChanges.get(member.getIdLong());
 			final List<Role> rolesToAdd = collectRoles(roles, roleChange.toAdd);
 			final List<Role> rolesToRemove = collectRoles(roles, roleChange.toRemove);
-			jda.getGuildById(guildId).modifyMemberRoles(member, rolesToAdd, rolesToRemove).queue();
+			final String description = "role change of " + member.getIdLong() + " in " + guildId;
+			mutations.submit(priority, description, (onSuccess, onFailure) -> guild
+					.modifyMemberRoles(member, rolesToAdd, rolesToRemove).queue(result -> onSuccess.run(), onFailure),
+					logFailure(description));
 		}
 	}
 
+	private MutationScheduler.Callback logFailure(final String description) {
+		return new MutationScheduler.Callback() {
+			@Override
+			public void succeeded() {
+				// Nothing to do
+			}
+
+			@Override
+			public void failed(final Throwable failure) {
+				log.error("Failed " + description, failure);
+			}
+		};
+	}
+
 	private List<Role> collectRoles(final Map<String, List<Role>> roles, final Set<String> roleNamesToReturn) {
 		return roles.entrySet().stream().filter(entry -> roleNamesToReturn.contains(entry.getKey()))
 				.flatMap(entry -> entry.getValue().stream()).collect(Collectors.toList());
@@ -165,13 +320,23 @@ import net.dv8tion.jda.api.utils.cache.CacheFlag;
 	}
 
 	public void setNickname(final long guildId, final long userId, final String newNickname) {
-		jda.getGuildById(guildId).retrieveMemberById(userId)
-				.queue(member -> member.modifyNickname(newNickname).queue());
+		final String description = "nickname change of " + userId + " in " + guildId;
+		// The user waits for the new nickname
+		mutations.submit(Priority.Interactive, description,
+				(onSuccess, onFailure) -> jda.getGuildById(guildId).retrieveMemberById(userId).queue(
+						member -> member.modifyNickname(newNickname).queue(result -> onSuccess.run(), onFailure),
+						onFailure),
+				logFailure(description));
 	}
 
 	public int kickUsers(final long guildId, final Collection<Long> userIds, final String reason) {
 		final List<Member> members = jda.getGuildById(guildId).retrieveMembersByIds(userIds).get();
-		members.forEach(member -> member.kick().reason(reason).queue());
+		for (final Member member : members) {
+			final String description = "kick of " + member.getIdLong() + " from " + guildId;
+			mutations.submit(Priority.Batch, description,
+					(onSuccess, onFailure) -> member.kick().reason(reason).queue(result -> onSuccess.run(), onFailure),
+					logFailure(description));
+		}
 		return members.size();
 	}
 }
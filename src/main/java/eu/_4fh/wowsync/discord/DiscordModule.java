@@ -1,9 +1,11 @@
 package eu._4fh.wowsync.discord;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
 import edu.umd.cs.findbugs.annotations.NonNull;
@@ -11,6 +13,7 @@ import eu._4fh.wowsync.database.Db;
 import eu._4fh.wowsync.database.data.DiscordSettings;
 import eu._4fh.wowsync.database.data.RemoteSystem;
 import eu._4fh.wowsync.modules.Module;
+import eu._4fh.wowsync.modules.MutationScheduler.Priority;
 import eu._4fh.wowsync.util.Singletons;
 
 @DefaultAnnotation(NonNull.class)
@@ -21,7 +24,7 @@ public class DiscordModule implements Module {
 
 	public DiscordModule(final RemoteSystem remoteSystem) {
 		this.remoteSystem = remoteSystem;
-		settings = Singletons.instance(Db.class).find(DiscordSettings.class, remoteSystem.id);
+		settings = Singletons.instance(Db.class).discordSettings.byRemoteSystem(remoteSystem);
 		handler = Singletons.instance(DiscordHandler.class);
 		Optional.ofNullable(settings.reactionMessageId()).ifPresent(handler::addMessageToReactTo);
 	}
@@ -32,13 +35,13 @@ public class DiscordModule implements Module {
 	}
 
 	@Override
-	public Map<Long, Set<String>> getAllUsersWithRoles() {
-		return handler.getAllUsersWithRoles(remoteSystem.systemId);
+	public void forEachUsersPage(final int pageSize, final Consumer<Map<Long, Set<String>>> pageHandler) {
+		handler.forEachUsersPage(remoteSystem.systemId, pageSize, pageHandler);
 	}
 
 	@Override
-	public void changeRoles(final Map<Long, RoleChange> roleChanges) {
-		handler.changeRole(remoteSystem.systemId, roleChanges);
+	public void changeRoles(final Map<Long, RoleChange> roleChanges, final Priority priority) {
+		handler.changeRole(remoteSystem.systemId, roleChanges, priority);
 	}
 
 	@Override
@@ -46,6 +49,11 @@ public class DiscordModule implements Module {
 		return handler.getRolesForUser(remoteSystem.systemId, userId);
 	}
 
+	@Override
+	public Map<Long, Set<String>> getRolesForUsers(final Collection<Long> userIds) {
+		return handler.getRolesForUsers(remoteSystem.systemId, userIds);
+	}
+
 	@Override
 	public void setCharacterNames(final long userId, final List<String> sortedCharnames) {
 		if (sortedCharnames.isEmpty()) {
@@ -0,0 +1,260 @@
+package eu._4fh.wowsync.discord;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.Statistics;
+
+/**
+ * The role ids of all members per guild, so the role sync doesnt fetch the whole member list from Discord. A guild is
+ * loaded with a full member fetch and then kept current with the gateway events. The full fetch is repeated from time
+ * to time to correct missed events. Events that arrive while a fetch runs win over the fetched state of their member.
+ */
+@DefaultAnnotation(NonNull.class)
+/*package*/ class MemberRoleIndex {
+	private static class GuildIndex {
+		private final Map<Long, Set<Long>> roleIdsByMember = new HashMap<>();
+		// Members changed by events since the running load started, null if no load runs
+		private @CheckForNull Set<Long> changedDuringLoad;
+		private boolean loaded;
+	}
+
+	private final Statistics statistics;
+	private final Map<Long, GuildIndex> guilds = new ConcurrentHashMap<>();
+
+	/*package*/ MemberRoleIndex() {
+		statistics = Singletons.instance(Statistics.class);
+		statistics.registerGauge("discord.member-index.members", () -> guilds.values().stream().mapToLong(guild -> {
+			synchronized (guild) {
+				return guild.roleIdsByMember.size();
+			}
+		}).sum());
+	}
+
+	/**
+	 * Must be called before the members are fetched, so the events during the fetch are not overwritten.
+	 */
+	/*package*/ void startLoad(final long guildId) {
+		final GuildIndex guild = guilds.computeIfAbsent(guildId, id -> new GuildIndex());
+		synchronized (guild) {
+			guild.changedDuringLoad = new HashSet<>();
+		}
+	}
+
+	/**
+	 * @param roleIdsByMember The fetched members, members that are not contained are not on the server.
+	 * @return The number of members that differed from the fetched members and were not changed by events during the
+	 *         load. 0 for the first load of the guild.
+	 */
+	/*package*/ int finishLoad(final long guildId, final Map<Long, ? extends Collection<Long>> roleIdsByMember) {
+		final GuildIndex guild = guilds.computeIfAbsent(guildId, id -> new GuildIndex());
+		synchronized (guild) {
+			final Set<Long> changed = guild.changedDuringLoad == null ? Collections.emptySet()
+					: guild.changedDuringLoad;
+			int numDifferences = 0;
+			for (final Iterator<Long> it = guild.roleIdsByMember.keySet().iterator(); it.hasNext();) {
+				final Long memberId = it.next();
+				if (!roleIdsByMember.containsKey(memberId) && !changed.contains(memberId)) {
+					it.remove();
+					numDifferences++;
+				}
+			}
+			for (final Map.Entry<Long, ? extends Collection<Long>> member : roleIdsByMember.entrySet()) {
+				if (changed.contains(member.getKey())) {
+					continue;
+				}
+				final Set<Long> roleIds = Set.copyOf(member.getValue());
+				if (!roleIds.equals(guild.roleIdsByMember.put(member.getKey(), roleIds))) {
+					numDifferences++;
+				}
+			}
+			if (!guild.loaded) {
+				numDifferences = 0;
+			}
+			guild.changedDuringLoad = null;
+			guild.loaded = true;
+			statistics.add("discord.member-index.differences", numDifferences);
+			return numDifferences;
+		}
+	}
+
+	/**
+	 * The fetch failed, the guild keeps its previous state.
+	 */
+	/*package*/ void abortLoad(final long guildId) {
+		final @CheckForNull GuildIndex guild = guilds.get(guildId);
+		if (guild != null) {
+			synchronized (guild) {
+				guild.changedDuringLoad = null;
+			}
+		}
+	}
+
+	/*package*/ void removeGuild(final long guildId) {
+		guilds.remove(guildId);
+	}
+
+	/**
+	 * For joined members and member updates, which contain all roles of the member.
+	 */
+	/*package*/ void setRoles(final long guildId, final long memberId, final Collection<Long> roleIds) {
+		final Set<Long> newRoleIds = Set.copyOf(roleIds);
+		update(guildId, memberId, guild -> {
+			guild.roleIdsByMember.put(memberId, newRoleIds);
+			return true;
+		});
+	}
+
+	/**
+	 * Ignored for members that arent in the index, the event only contains the added roles. Their member update event
+	 * or the next load contains all roles.
+	 */
+	/*package*/ void addRoles(final long guildId, final long memberId, final Collection<Long> roleIds) {
+		update(guildId, memberId, guild -> {
+			final @CheckForNull Set<Long> oldRoleIds = guild.roleIdsByMember.get(memberId);
+			if (oldRoleIds == null) {
+				return false;
+			}
+			final Set<Long> newRoleIds = new HashSet<>(oldRoleIds);
+			newRoleIds.addAll(roleIds);
+			guild.roleIdsByMember.put(memberId, Set.copyOf(newRoleIds));
+			return true;
+		});
+	}
+
+	/**
+	 * Ignored for members that arent in the index, like {@link #addRoles(long, long, Collection)}.
+	 */
+	/*package*/ void removeRoles(final long guildId, final long memberId, final Collection<Long> roleIds) {
+		update(guildId, memberId, guild -> {
+			final @CheckForNull Set<Long> oldRoleIds = guild.roleIdsByMember.get(memberId);
+			if (oldRoleIds == null) {
+				return false;
+			}
+			final Set<Long> newRoleIds = new HashSet<>(oldRoleIds);
+			newRoleIds.removeAll(roleIds);
+			guild.roleIdsByMember.put(memberId, Set.copyOf(newRoleIds));
+			return true;
+		});
+	}
+
+	/*package*/ void removeMember(final long guildId, final long memberId) {
+		update(guildId, memberId, guild -> {
+			guild.roleIdsByMember.remove(memberId);
+			return true;
+		});
+	}
+
+	/*package*/ void removeRole(final long guildId, final long roleId) {
+		final @CheckForNull GuildIndex guild = guilds.get(guildId);
+		if (guild == null) {
+			return;
+		}
+		synchronized (guild) {
+			for (final Map.Entry<Long, Set<Long>> member : guild.roleIdsByMember.entrySet()) {
+				if (member.getValue().contains(roleId)) {
+					final Set<Long> newRoleIds = new HashSet<>(member.getValue());
+					newRoleIds.remove(roleId);
+					member.setValue(Set.copyOf(newRoleIds));
+					if (guild.changedDuringLoad != null) {
+						guild.changedDuringLoad.add(member.getKey());
+					}
+				}
+			}
+		}
+		statistics.increment("discord.member-index.events");
+	}
+
+	/**
+	 * @param change Returns false if the event was ignored, then the load doesnt keep the member.
+	 */
+	private void update(final long guildId, final long memberId, final Predicate<GuildIndex> change) {
+		final @CheckForNull GuildIndex guild = guilds.get(guildId);
+		if (guild == null) {
+			// Not loaded yet, the first load contains the change
+			return;
+		}
+		synchronized (guild) {
+			if (!change.test(guild)) {
+				statistics.increment("discord.member-index.ignored-events");
+				return;
+			}
+			if (guild.changedDuringLoad != null) {
+				guild.changedDuringLoad.add(memberId);
+			}
+		}
+		statistics.increment("discord.member-index.events");
+	}
+
+	/*package*/ boolean isLoaded(final long guildId) {
+		final @CheckForNull GuildIndex guild = guilds.get(guildId);
+		if (guild == null) {
+			return false;
+		}
+		synchronized (guild) {
+			return guild.loaded;
+		}
+	}
+
+	/**
+	 * @return A copy of the role ids by member id, null if the guild isnt loaded.
+	 */
+	/*package for test*/ @CheckForNull
+	Map<Long, Set<Long>> roleIdsByMember(final long guildId) {
+		final @CheckForNull GuildIndex guild = guilds.get(guildId);
+		if (guild == null) {
+			return null;
+		}
+		synchronized (guild) {
+			return guild.loaded ? new HashMap<>(guild.roleIdsByMember) : null;
+		}
+	}
+
+	/**
+	 * @return The ids of all members, null if the guild isnt loaded. Only the ids are copied, so paging over a big
+	 *         guild doesnt copy all role sets.
+	 */
+	/*package*/ @CheckForNull
+	long[] memberIds(final long guildId) {
+		final @CheckForNull GuildIndex guild = guilds.get(guildId);
+		if (guild == null) {
+			return null;
+		}
+		synchronized (guild) {
+			if (!guild.loaded) {
+				return null;
+			}
+			final long[] result = new long[guild.roleIdsByMember.size()];
+			int i = 0;
+			for (final Long memberId : guild.roleIdsByMember.keySet()) {
+				result[i++] = memberId;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * @return The role ids of the member, null if the guild isnt loaded or the member isnt on the server.
+	 */
+	/*package*/ @CheckForNull
+	Set<Long> roleIds(final long guildId, final long memberId) {
+		final @CheckForNull GuildIndex guild = guilds.get(guildId);
+		if (guild == null) {
+			return null;
+		}
+		synchronized (guild) {
+			return guild.loaded ? guild.roleIdsByMember.get(memberId) : null;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package eu._4fh.wowsync.discord;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.events.guild.GuildLeaveEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberJoinEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRemoveEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleAddEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleRemoveEvent;
+import net.dv8tion.jda.api.events.guild.member.update.GuildMemberUpdateEvent;
+import net.dv8tion.jda.api.events.role.RoleDeleteEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+
+/**
+ * Keeps the {@link MemberRoleIndex} current with the gateway events.
+ */
+@DefaultAnnotation(NonNull.class)
+/*package*/ class MemberRoleIndexListener extends ListenerAdapter {
+	private final MemberRoleIndex memberRoleIndex;
+
+	/*package*/ MemberRoleIndexListener(final MemberRoleIndex memberRoleIndex) {
+		this.memberRoleIndex = memberRoleIndex;
+	}
+
+	/*package*/ static List<Long> roleIds(final List<Role> roles) {
+		return roles.stream().map(Role::getIdLong).collect(Collectors.toList());
+	}
+
+	@Override
+	public void onGuildMemberJoin(final GuildMemberJoinEvent event) {
+		memberRoleIndex.setRoles(event.getGuild().getIdLong(), event.getMember().getIdLong(),
+				roleIds(event.getMember().getRoles()));
+	}
+
+	@Override
+	public void onGuildMemberRemove(final GuildMemberRemoveEvent event) {
+		memberRoleIndex.removeMember(event.getGuild().getIdLong(), event.getUser().getIdLong());
+	}
+
+	@Override
+	public void onGuildMemberUpdate(final GuildMemberUpdateEvent event) {
+		// Also fired for members that are not cached, contains all roles
+		memberRoleIndex.setRoles(event.getGuild().getIdLong(), event.getMember().getIdLong(),
+				roleIds(event.getMember().getRoles()));
+	}
+
+	@Override
+	public void onGuildMemberRoleAdd(final GuildMemberRoleAddEvent event) {
+		memberRoleIndex.addRoles(event.getGuild().getIdLong(), event.getMember().getIdLong(),
+				roleIds(event.getRoles()));
+	}
+
+	@Override
+	public void onGuildMemberRoleRemove(final GuildMemberRoleRemoveEvent event) {
+		memberRoleIndex.removeRoles(event.getGuild().getIdLong(), event.getMember().getIdLong(),
+				roleIds(event.getRoles()));
+	}
+
+	@Override
+	public void onRoleDelete(final RoleDeleteEvent event) {
+		memberRoleIndex.removeRole(event.getGuild().getIdLong(), event.getRole().getIdLong());
+	}
+
+	@Override
+	public void onGuildLeave(final GuildLeaveEvent event) {
+		memberRoleIndex.removeGuild(event.getGuild().getIdLong());
+	}
+}
@@ -0,0 +1,76 @@
+package eu._4fh.wowsync.discord;
+
+import java.util.Arrays;
+
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.util.ConcurrentLongSet;
+
+/**
+ * Remembers which members of which guild were already seen online today, so the last online date is written only once
+ * per member and day. One {@link ConcurrentLongSet} per guild, the guilds are looked up in a copy on write array. There
+ * are only a few guilds and new ones are rare, so a presence event neither boxes nor allocates.
+ */
+@DefaultAnnotation(NonNull.class)
+/*package*/ class OnlineMemberTracker {
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+	private static final int EXPECTED_MEMBERS_PER_GUILD = 256;
+
+	private volatile long[] guildIds = new long[0];
+	private volatile ConcurrentLongSet[] members = new ConcurrentLongSet[0];
+	private volatile long day;
+
+	/*package*/ OnlineMemberTracker(final long nowMillis) {
+		day = nowMillis / MILLIS_PER_DAY;
+	}
+
+	/**
+	 * @param nowMillis Milliseconds since the epoch, the day changes at midnight UTC.
+	 * @return true if the member was not seen today.
+	 */
+	/*package*/ boolean markOnline(final long guildId, final long memberId, final long nowMillis) {
+		final long today = nowMillis / MILLIS_PER_DAY;
+		// A thread that read the clock before midnight may come after one that read it after midnight
+		if (today > day) {
+			newDay(today);
+		}
+		return membersOfGuild(guildId).add(memberId);
+	}
+
+	private synchronized void newDay(final long today) {
+		if (today > day) {
+			for (final ConcurrentLongSet guildMembers : members) {
+				guildMembers.clear();
+			}
+			day = today;
+		}
+	}
+
+	private ConcurrentLongSet membersOfGuild(final long guildId) {
+		final long[] currentGuildIds = guildIds;
+		final ConcurrentLongSet[] currentMembers = members;
+		// addGuild writes members before guildIds, so members is always at least as long as guildIds read before
+		for (int i = 0; i < currentGuildIds.length; ++i) {
+			if (currentGuildIds[i] == guildId) {
+				return currentMembers[i];
+			}
+		}
+		return addGuild(guildId);
+	}
+
+	private synchronized ConcurrentLongSet addGuild(final long guildId) {
+		for (int i = 0; i < guildIds.length; ++i) {
+			if (guildIds[i] == guildId) {
+				return members[i];
+			}
+		}
+		final ConcurrentLongSet guildMembers = new ConcurrentLongSet(EXPECTED_MEMBERS_PER_GUILD);
+		final ConcurrentLongSet[] newMembers = Arrays.copyOf(members, members.length + 1);
+		newMembers[newMembers.length - 1] = guildMembers;
+		final long[] newGuildIds = Arrays.copyOf(guildIds, guildIds.length + 1);
+		newGuildIds[newGuildIds.length - 1] = guildId;
+		members = newMembers;
+		guildIds = newGuildIds;
+		return guildMembers;
+	}
+}
@@ -0,0 +1,125 @@
+package eu._4fh.wowsync.discord;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.CleanupObligation;
+import edu.umd.cs.findbugs.annotations.CreatesObligation;
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.DischargesObligation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.database.Db;
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.Statistics;
+
+/**
+ * Collects the online members from the presence events and writes them to the database every few seconds, one
+ * statement and one insert batch per guild. So the event thread never waits for the database and a reconnect, that
+ * fires events for every online member at once, doesnt end in one transaction per member.
+ */
+@DefaultAnnotation(NonNull.class)
+@CleanupObligation
+/*package*/ class OnlineUserBuffer implements AutoCloseable {
+	private final Logger log = LoggerFactory.getLogger(getClass());
+	private final Db db;
+	private final Statistics statistics;
+	// Member names by member id by guild id
+	private final Map<Long, Map<Long, String>> pending = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService flusher;
+
+	/**
+	 * @param flushSeconds 0 doesnt start the background flush, then only {@link #flush()} writes.
+	 */
+	@CreatesObligation
+	/*package*/ OnlineUserBuffer(final Db db, final int flushSeconds) {
+		this.db = db;
+		this.statistics = Singletons.instance(Statistics.class);
+		flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "discord-online-user-flush");
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (flushSeconds > 0) {
+			flusher.scheduleWithFixedDelay(this::flushAndLog, flushSeconds, flushSeconds, TimeUnit.SECONDS);
+		}
+		statistics.registerGauge("discord.online-users.pending",
+				() -> pending.values().stream().mapToLong(Map::size).sum());
+	}
+
+	/*package*/ void touch(final long guildId, final long memberId, final String memberName) {
+		// compute is atomic with the remove in flush, so no member is added to a map that is already written
+		pending.compute(guildId, (id, members) -> {
+			final Map<Long, String> result = members == null ? new HashMap<>() : members;
+			result.put(memberId, memberName);
+			return result;
+		});
+		statistics.increment("discord.online-users.touched");
+	}
+
+	private void flushAndLog() {
+		try {
+			flush();
+		} catch (RuntimeException e) {
+			log.error("Cant write online discord users", e);
+		}
+	}
+
+	/**
+	 * Writes all pending members. When the write of a guild fails, its members stay pending for the next flush and
+	 * the other guilds are still written.
+	 *
+	 * @throws RuntimeException The failure of the first failed guild, the failures of further guilds are suppressed.
+	 */
+	/*package for test*/ synchronized void flush() {
+		@CheckForNull RuntimeException failure = null;
+		for (final Long guildId : pending.keySet()) {
+			final @CheckForNull Map<Long, String> members = pending.remove(guildId);
+			if (members == null || members.isEmpty()) {
+				continue;
+			}
+			try {
+				db.discordOnlineUsers.updateLastOnline(guildId, members);
+				statistics.add("discord.online-users.flushed", members.size());
+			} catch (RuntimeException e) {
+				statistics.increment("discord.online-users.flush-failures");
+				pending.merge(guildId, members, (newer, older) -> {
+					older.putAll(newer);
+					return older;
+				});
+				if (failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Stops the background flush and writes what is still pending.
+	 */
+	@Override
+	@DischargesObligation
+	public void close() {
+		flusher.shutdown();
+		try {
+			if (!flusher.awaitTermination(30, TimeUnit.SECONDS)) {
+				log.warn("Background flush of online discord users did not finish");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flushAndLog();
+	}
+}
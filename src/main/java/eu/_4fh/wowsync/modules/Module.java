@@ -1,14 +1,17 @@
 package eu._4fh.wowsync.modules;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.modules.MutationScheduler.Priority;
 import eu._4fh.wowsync.util.ClosableSingleton;
 
 @DefaultAnnotation(NonNull.class)
@@ -46,18 +49,30 @@ public interface Module extends ClosableSingleton {
 	}
 
 	/**
+	 * Calls the pageHandler for all users of the remote system, in pages of at most pageSize users, so not all users
+	 * and their roles are in memory at once. The pageHandler may change roles with {@link #changeRoles(Map, Priority)}.
 	 *
-	 * @return Map. Keys=RemoteId des Users. Set&lt;String&gt; mit allen Rollen
-	 *         des Benutzers. Leeres Set, wenn der Benutzer überhaupt auf dem
-	 *         Server vorhanden ist.
+	 * @param pageHandler Gets a Map per page. Keys=RemoteId of the user, Set&lt;String&gt; with all roles of the
+	 *            user. Empty Set, if the user is on the server without roles.
 	 */
-	Map<Long, Set<String>> getAllUsersWithRoles();
+	void forEachUsersPage(final int pageSize, final Consumer<Map<Long, Set<String>>> pageHandler);
 
 	int deleteUsersAfterInactiveDays();
 
 	Set<String> getRolesForUser(final long userId);
 
-	void changeRoles(final Map<Long, RoleChange> roleChanges);
+	/**
+	 * @return Roles by remote id of the user. Users that are not on the server are missing.
+	 */
+	Map<Long, Set<String>> getRolesForUsers(final Collection<Long> userIds);
+
+	/**
+	 * Queues the role changes, may block while the remote system is busy with earlier changes.
+	 *
+	 * @param roleChanges Callers pass at most one page of users at once.
+	 * @param priority Interactive for changes a user waits for, Batch for the sync of all users.
+	 */
+	void changeRoles(final Map<Long, RoleChange> roleChanges, final Priority priority);
 
 	void setCharacterNames(final long remoteUserId, final List<String> sortedCharnames);
 
@@ -0,0 +1,325 @@
+package eu._4fh.wowsync.modules;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.CleanupObligation;
+import edu.umd.cs.findbugs.annotations.CreatesObligation;
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.DischargesObligation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.Statistics;
+
+/**
+ * Starts the changes of a remote system (role changes, nicknames, kicks) one after another with a minimum interval
+ * and a limit of running changes, so a big sync doesnt fill the rate limit buckets of the remote system at once.
+ * Interactive changes are started before all queued batch changes. The batch queue is bounded, a full queue blocks
+ * {@link #submit} until changes are started, so the sync that produces the changes is slowed down to their pace.
+ * A change is only taken from the queue when it can start at once, so an interactive change never waits behind a
+ * batch change that was taken before it. A change that doesnt call back in time fails with a {@link TimeoutException}
+ * and frees its place.
+ */
+@DefaultAnnotation(NonNull.class)
+@CleanupObligation
+public class MutationScheduler implements AutoCloseable {
+	public enum Priority {
+		Interactive,
+		Batch,
+	}
+
+	/**
+	 * One change of the remote system, for example one queued request. Must call exactly one of the callbacks when
+	 * the change is done. Callbacks after the timeout are ignored.
+	 */
+	public interface Mutation {
+		void start(Runnable onSuccess, Consumer<Throwable> onFailure);
+	}
+
+	public interface Callback {
+		void succeeded();
+
+		void failed(Throwable failure);
+	}
+
+	public static class Progress {
+		public final long submitted;
+		public final long succeeded;
+		public final long failed;
+
+		private Progress(final long submitted, final long succeeded, final long failed) {
+			this.submitted = submitted;
+			this.succeeded = succeeded;
+			this.failed = failed;
+		}
+
+		public long pending() {
+			return submitted - succeeded - failed;
+		}
+
+		@Override
+		public String toString() {
+			return "Progress [submitted=" + submitted + ", succeeded=" + succeeded + ", failed=" + failed + "]";
+		}
+	}
+
+	private static class Counters {
+		private final AtomicLong submitted = new AtomicLong();
+		private final AtomicLong succeeded = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+	}
+
+	private static class Entry {
+		private final Priority priority;
+		private final long sequence;
+		private final String description;
+		private final Mutation mutation;
+		private final Callback callback;
+
+		private Entry(final Priority priority, final long sequence, final String description,
+				final Mutation mutation, final Callback callback) {
+			this.priority = priority;
+			this.sequence = sequence;
+			this.description = description;
+			this.mutation = mutation;
+			this.callback = callback;
+		}
+	}
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+	private final Statistics statistics;
+	private final String metricPrefix;
+	private final long minIntervalNanos;
+	private final long timeoutMillis;
+	private final LongSupplier nanoTime;
+	private final PriorityBlockingQueue<Entry> queue = new PriorityBlockingQueue<>(64,
+			Comparator.<Entry, Priority>comparing(entry -> entry.priority).thenComparingLong(entry -> entry.sequence));
+	private final AtomicLong nextSequence = new AtomicLong();
+	private final Semaphore batchSlots;
+	private final Semaphore inFlight;
+	private final Map<Priority, Counters> counters = new EnumMap<>(Priority.class);
+	private final ExecutorService worker;
+	private final ScheduledExecutorService timeouts;
+	private volatile boolean closed;
+
+	/**
+	 * @param name Prefix of the metrics and name of the worker thread.
+	 * @param minIntervalMillis Minimum time between the start of two changes.
+	 * @param maxInFlight Maximum number of started but not yet finished changes.
+	 * @param batchQueueSize Maximum number of queued batch changes, before {@link #submit} blocks.
+	 * @param timeoutMillis Time after the start of a change until it fails, if it didnt call back.
+	 */
+	@CreatesObligation
+	public MutationScheduler(final String name, final long minIntervalMillis, final int maxInFlight,
+			final int batchQueueSize, final long timeoutMillis) {
+		this(name, minIntervalMillis, maxInFlight, batchQueueSize, timeoutMillis, System::nanoTime);
+	}
+
+	@CreatesObligation
+	/*package for test*/ MutationScheduler(final String name, final long minIntervalMillis, final int maxInFlight,
+			final int batchQueueSize, final long timeoutMillis, final LongSupplier nanoTime) {
+		if (maxInFlight < 1 || batchQueueSize < 1 || timeoutMillis < 1) {
+			throw new IllegalArgumentException("maxInFlight " + maxInFlight + ", batchQueueSize " + batchQueueSize
+					+ " and timeoutMillis " + timeoutMillis + " must be at least 1");
+		}
+		this.statistics = Singletons.instance(Statistics.class);
+		this.metricPrefix = name + ".mutations.";
+		this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+		this.timeoutMillis = timeoutMillis;
+		this.nanoTime = nanoTime;
+		this.batchSlots = new Semaphore(batchQueueSize);
+		this.inFlight = new Semaphore(maxInFlight);
+		for (final Priority priority : Priority.values()) {
+			counters.put(priority, new Counters());
+		}
+		statistics.registerGauge(metricPrefix + "queued", queue::size);
+		statistics.registerGauge(metricPrefix + "in-flight", () -> maxInFlight - inFlight.availablePermits());
+		worker = Executors.newSingleThreadExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, name + "-mutations");
+			thread.setDaemon(true);
+			return thread;
+		});
+		timeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, name + "-mutation-timeouts");
+			thread.setDaemon(true);
+			return thread;
+		});
+		worker.execute(this::run);
+	}
+
+	/**
+	 * Queues the change. Blocks while the batch queue is full, interactive changes never block.
+	 *
+	 * @param description For logging only.
+	 */
+	public void submit(final Priority priority, final String description, final Mutation mutation,
+			final Callback callback) {
+		if (closed) {
+			callback.failed(new IllegalStateException("Mutation scheduler is closed"));
+			return;
+		}
+		if (Priority.Batch.equals(priority)) {
+			try {
+				if (!batchSlots.tryAcquire()) {
+					statistics.increment(metricPrefix + "backpressure");
+					batchSlots.acquire();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				callback.failed(e);
+				return;
+			}
+		}
+		counters.get(priority).submitted.incrementAndGet();
+		statistics.increment(metricPrefix + priority.name() + ".submitted");
+		final Entry entry = new Entry(priority, nextSequence.getAndIncrement(), description, mutation, callback);
+		queue.add(entry);
+		// A submit that waited for a batch slot can add its entry after close() drained the queue
+		if (closed && queue.remove(entry)) {
+			cancelQueued(entry);
+		}
+	}
+
+	public Progress progress(final Priority priority) {
+		final Counters priorityCounters = counters.get(priority);
+		return new Progress(priorityCounters.submitted.get(), priorityCounters.succeeded.get(),
+				priorityCounters.failed.get());
+	}
+
+	/**
+	 * @return true if all submitted changes are finished.
+	 */
+	public boolean awaitIdle(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (progress(Priority.Interactive).pending() > 0 || progress(Priority.Batch).pending() > 0) {
+			if (System.nanoTime() >= deadline) {
+				return false;
+			}
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+		return true;
+	}
+
+	private void run() {
+		long lastStart = nanoTime.getAsLong() - minIntervalNanos;
+		while (!closed) {
+			// Wait for the start before the take, a taken entry would keep changes with a higher priority waiting
+			try {
+				final long waitNanos = lastStart + minIntervalNanos - nanoTime.getAsLong();
+				if (waitNanos > 0) {
+					TimeUnit.NANOSECONDS.sleep(waitNanos);
+				}
+				inFlight.acquire();
+			} catch (InterruptedException e) {
+				// Closed
+				return;
+			}
+			final Entry entry;
+			try {
+				entry = queue.take();
+			} catch (InterruptedException e) {
+				// Closed
+				inFlight.release();
+				return;
+			}
+			if (Priority.Batch.equals(entry.priority)) {
+				batchSlots.release();
+			}
+			lastStart = nanoTime.getAsLong();
+			start(entry);
+		}
+	}
+
+	private void start(final Entry entry) {
+		final AtomicBoolean done = new AtomicBoolean();
+		final ScheduledFuture<?> timeout = timeouts.schedule(() -> {
+			if (finishStarted(entry, done, new TimeoutException(
+					entry.description + " didnt finish within " + timeoutMillis + " milliseconds"))) {
+				log.warn("{} didnt finish within {} milliseconds", entry.description, timeoutMillis);
+				statistics.increment(metricPrefix + "timeouts");
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+		try {
+			entry.mutation.start(() -> {
+				timeout.cancel(false);
+				finishStarted(entry, done, null);
+			}, failure -> {
+				timeout.cancel(false);
+				finishStarted(entry, done, failure);
+			});
+		} catch (RuntimeException e) {
+			timeout.cancel(false);
+			finishStarted(entry, done, e);
+		}
+	}
+
+	/**
+	 * @return false if the change was already finished, by its callback or its timeout.
+	 */
+	private boolean finishStarted(final Entry entry, final AtomicBoolean done, final @CheckForNull Throwable failure) {
+		if (!done.compareAndSet(false, true)) {
+			return false;
+		}
+		inFlight.release();
+		finished(entry, failure);
+		return true;
+	}
+
+	private void finished(final Entry entry, final @CheckForNull Throwable failure) {
+		final Counters priorityCounters = counters.get(entry.priority);
+		try {
+			if (failure == null) {
+				priorityCounters.succeeded.incrementAndGet();
+				statistics.increment(metricPrefix + entry.priority.name() + ".succeeded");
+				entry.callback.succeeded();
+			} else {
+				priorityCounters.failed.incrementAndGet();
+				statistics.increment(metricPrefix + entry.priority.name() + ".failed");
+				entry.callback.failed(failure);
+			}
+		} catch (RuntimeException e) {
+			log.error("Callback of " + entry.description + " failed", e);
+		}
+	}
+
+	/**
+	 * Queued changes are not started anymore, their callbacks get a {@link CancellationException}. Started changes
+	 * still call their callbacks, but dont time out anymore.
+	 */
+	@Override
+	@DischargesObligation
+	public void close() {
+		closed = true;
+		worker.shutdownNow();
+		timeouts.shutdownNow();
+		Entry entry;
+		while ((entry = queue.poll()) != null) {
+			cancelQueued(entry);
+		}
+	}
+
+	private void cancelQueued(final Entry entry) {
+		if (Priority.Batch.equals(entry.priority)) {
+			batchSlots.release();
+		}
+		finished(entry, new CancellationException("Mutation scheduler is closed"));
+	}
+}
@@ -7,7 +7,7 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import eu._4fh.wowsync.database.Db;
 import eu._4fh.wowsync.database.data.RemoteSystem;
 import eu._4fh.wowsync.sync.BattleNetToDbSync;
-import eu._4fh.wowsync.sync.DbToModuleSync;
+import eu._4fh.wowsync.sync.ModuleSyncs;
 import eu._4fh.wowsync.util.Singletons;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.Path;
@@ -22,13 +22,15 @@ public class Cron {
 	@Path("run")
 	@Produces(MediaType.TEXT_PLAIN)
 	public String run() {
+		final Db db = Singletons.instance(Db.class);
+		// Configuration changes made directly in the database are used from now on
+		db.invalidateConfigCaches();
 		new BattleNetToDbSync().updateAndDeleteAccounts();
-		final List<RemoteSystem> remoteSystems = Singletons.instance(Db.class).remoteSystems.all();
-		for (final RemoteSystem remoteSystem : remoteSystems) {
-			final DbToModuleSync sync = new DbToModuleSync(remoteSystem);
-			sync.deleteInactiveUsers();
-			sync.syncToModule();
+		final List<RemoteSystem> remoteSystems = db.remoteSystems.all();
+		final StringBuilder result = new StringBuilder();
+		for (final ModuleSyncs.Result syncResult : new ModuleSyncs().syncAll(remoteSystems)) {
+			result.append(syncResult).append('\n');
 		}
-		return "";
+		return result.toString();
 	}
 }
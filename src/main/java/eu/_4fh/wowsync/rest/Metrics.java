@@ -0,0 +1,27 @@
+package eu._4fh.wowsync.rest;
+
+import java.util.Map;
+
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.Statistics;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+
+@DefaultAnnotation(NonNull.class)
+@Path("metrics")
+public class Metrics {
+
+	@GET
+	@Produces(MediaType.TEXT_PLAIN)
+	public String get() {
+		final StringBuilder result = new StringBuilder();
+		for (final Map.Entry<String, Long> entry : Singletons.instance(Statistics.class).snapshot().entrySet()) {
+			result.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,70 @@
+package eu._4fh.wowsync.sync;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+
+import org.dmfs.httpessentials.exceptions.UnexpectedStatusException;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.util.Config;
+
+/**
+ * Exponential backoff with jitter. Client errors are not retried, except for timeouts and throttling. Throttled
+ * requests (429 and 503) wait at least throttledDelayMillis.
+ */
+@DefaultAnnotation(NonNull.class)
+/*package*/ class BackoffRetryPolicy implements RetryPolicy {
+	/*package*/ static final int NO_STATUS = -1;
+
+	private final int maxTries;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+	private final long throttledDelayMillis;
+	private final DoubleSupplier random;
+
+	/*package*/ BackoffRetryPolicy(final Config config) {
+		this(config.bnetNumRequestRetries, config.bnetRetryBaseDelayMillis, config.bnetRetryMaxDelayMillis,
+				config.bnetRetryThrottledDelayMillis, () -> ThreadLocalRandom.current().nextDouble());
+	}
+
+	/*package for test*/ BackoffRetryPolicy(final int maxTries, final long baseDelayMillis, final long maxDelayMillis,
+			final long throttledDelayMillis, final DoubleSupplier random) {
+		this.maxTries = maxTries;
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.throttledDelayMillis = throttledDelayMillis;
+		this.random = random;
+	}
+
+	/*package*/ static int httpStatusCode(final Throwable failure) {
+		for (@CheckForNull
+		Throwable t = failure; t != null; t = t.getCause()) {
+			if (t instanceof UnexpectedStatusException) {
+				return ((UnexpectedStatusException) t).status().statusCode();
+			}
+		}
+		return NO_STATUS;
+	}
+
+	private static boolean isThrottled(final int statusCode) {
+		return statusCode == 429 || statusCode == 503;
+	}
+
+	private static boolean isRetryable(final int statusCode) {
+		return statusCode == NO_STATUS || statusCode >= 500 || statusCode == 408 || statusCode == 429;
+	}
+
+	@Override
+	public long retryDelayMillis(final int failedTries, final Throwable failure) {
+		final int statusCode = httpStatusCode(failure);
+		if (failedTries >= maxTries || !isRetryable(statusCode)) {
+			return -1;
+		}
+		// Half of the delay is fixed, the other half is random
+		final long backoff = Math.min(maxDelayMillis, baseDelayMillis << Math.min(failedTries - 1, 20));
+		final long delay = backoff / 2 + (long) (random.getAsDouble() * (backoff - backoff / 2));
+		return isThrottled(statusCode) ? Math.max(throttledDelayMillis, delay) : delay;
+	}
+}
@@ -0,0 +1,141 @@
+package eu._4fh.wowsync.sync;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.abstract_bnet_api.oauth2.BattleNetRegion;
+import eu._4fh.wowsync.sync.BattleNetRateLimiter.Priority;
+import eu._4fh.wowsync.sync.BattleNetToDbSync.RequestExecutionFailure;
+import eu._4fh.wowsync.util.Config;
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.Statistics;
+
+/**
+ * Stops requests to a region after too many consecutive failures that look like an outage (network errors and server
+ * errors). An open circuit stays open for the rest of the run and becomes half open with the next run. In half open
+ * state the first success closes the circuit and the first failure opens it again. Interactive requests always pass,
+ * a user waits for them, so they probe an open circuit between the runs and close it with their success.
+ */
+@DefaultAnnotation(NonNull.class)
+/*package*/ class BattleNetCircuitBreaker {
+	/*package*/ enum State {
+		Closed,
+		Open,
+		HalfOpen,
+	}
+
+	/*package*/ static class CircuitOpenFailure extends RequestExecutionFailure {
+		private static final long serialVersionUID = -2880367826003851296L;
+
+		private CircuitOpenFailure(final BattleNetRegion region) {
+			super(new IllegalStateException("Circuit for region " + region + " is open"));
+		}
+	}
+
+	private static class RegionState {
+		private State state = State.Closed;
+		private int consecutiveFailures = 0;
+	}
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+	private final Statistics statistics;
+	private final int failureThreshold;
+	private final Map<BattleNetRegion, RegionState> states = new EnumMap<>(BattleNetRegion.class);
+
+	private BattleNetCircuitBreaker() {
+		this(Singletons.instance(Config.class).bnetCircuitBreakerFailures);
+	}
+
+	/*package for test*/ BattleNetCircuitBreaker(final int failureThreshold) {
+		this.statistics = Singletons.instance(Statistics.class);
+		this.failureThreshold = failureThreshold;
+		for (final BattleNetRegion region : BattleNetRegion.values()) {
+			final RegionState regionState = new RegionState();
+			states.put(region, regionState);
+			statistics.add(metricName(region, "opened"), 0);
+			statistics.add(metricName(region, "skipped"), 0);
+			statistics.registerGauge(metricName(region, "state"), () -> state(region).ordinal());
+		}
+	}
+
+	private static String metricName(final BattleNetRegion region, final String name) {
+		return "bnet.circuit-breaker." + region.name() + "." + name;
+	}
+
+	/*package*/ synchronized State state(final BattleNetRegion region) {
+		return states.get(region).state;
+	}
+
+	/**
+	 * Called at the start of every sync run. Open circuits get a new chance.
+	 */
+	/*package*/ synchronized void startRun() {
+		for (final Map.Entry<BattleNetRegion, RegionState> entry : states.entrySet()) {
+			if (State.Open.equals(entry.getValue().state)) {
+				log.info("Circuit for region {} is half open, probing Battle.net again", entry.getKey());
+				entry.getValue().state = State.HalfOpen;
+			}
+		}
+	}
+
+	/*package*/ synchronized void checkClosed(final BattleNetRegion region, final Priority priority)
+			throws CircuitOpenFailure {
+		if (Priority.Batch.equals(priority) && State.Open.equals(states.get(region).state)) {
+			throw new CircuitOpenFailure(region);
+		}
+	}
+
+	/*package*/ void skipped(final BattleNetRegion region, final int numSkipped) {
+		statistics.add(metricName(region, "skipped"), numSkipped);
+		log.warn("Skipped {} requests for region {}, because Battle.net seems to be down", numSkipped, region);
+	}
+
+	/*package*/ synchronized void onSuccess(final BattleNetRegion region) {
+		final RegionState regionState = states.get(region);
+		if (!State.Closed.equals(regionState.state)) {
+			log.info("Circuit for region {} is closed again", region);
+		}
+		regionState.state = State.Closed;
+		regionState.consecutiveFailures = 0;
+	}
+
+	/*package*/ synchronized void onFailure(final BattleNetRegion region, final Throwable failure) {
+		if (!isOutage(failure)) {
+			return;
+		}
+		final RegionState regionState = states.get(region);
+		regionState.consecutiveFailures++;
+		if (State.HalfOpen.equals(regionState.state)
+				|| (State.Closed.equals(regionState.state) && regionState.consecutiveFailures >= failureThreshold)) {
+			regionState.state = State.Open;
+			statistics.increment(metricName(region, "opened"));
+			log.error("Circuit for region {} opened after {} consecutive failures", region,
+					regionState.consecutiveFailures);
+		}
+	}
+
+	/**
+	 * Server errors (5xx) and network errors are an outage. Throttling (429) is handled by the retry policy and the
+	 * rate limiter, other client errors only concern the single request.
+	 */
+	/*package for test*/ static boolean isOutage(final Throwable failure) {
+		final int statusCode = BackoffRetryPolicy.httpStatusCode(failure);
+		if (statusCode != BackoffRetryPolicy.NO_STATUS) {
+			return statusCode >= 500;
+		}
+		for (@CheckForNull
+		Throwable t = failure; t != null; t = t.getCause()) {
+			if (t instanceof IOException) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
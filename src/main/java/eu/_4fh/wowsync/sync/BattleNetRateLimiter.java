@@ -0,0 +1,154 @@
+package eu._4fh.wowsync.sync;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.abstract_bnet_api.oauth2.BattleNetRegion;
+import eu._4fh.wowsync.sync.BattleNetToDbSync.RequestExecutionFailure;
+import eu._4fh.wowsync.util.Config;
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.Statistics;
+
+/**
+ * Process wide token buckets for the Battle.net quotas. Every region has one bucket for the requests per second and
+ * one for the requests per hour. Batch requests cant use the share that is reserved for interactive requests.
+ */
+@DefaultAnnotation(NonNull.class)
+/*package*/ class BattleNetRateLimiter {
+	/*package*/ enum Priority {
+		Interactive,
+		Batch,
+	}
+
+	private static class TokenBucket {
+		private final double capacity;
+		private final double tokensPerNano;
+		private final double reserved;
+		private double tokens;
+		private long lastRefill;
+
+		private TokenBucket(final long capacity, final long perNanos, final byte reservedPercent, final long now) {
+			this.capacity = capacity;
+			this.tokensPerNano = (double) capacity / perNanos;
+			this.reserved = capacity * reservedPercent / 100.0;
+			this.tokens = capacity;
+			this.lastRefill = now;
+		}
+
+		private void refill(final long now) {
+			tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+			lastRefill = now;
+		}
+
+		private double minimumAfterAcquire(final Priority priority) {
+			return Priority.Interactive.equals(priority) ? 0.0 : reserved;
+		}
+
+		private long nanosUntilAvailable(final Priority priority) {
+			final double missing = minimumAfterAcquire(priority) + 1.0 - tokens;
+			return missing <= 0.0 ? 0 : (long) Math.ceil(missing / tokensPerNano);
+		}
+	}
+
+	private class RegionLimiter {
+		private final TokenBucket perSecond;
+		private final TokenBucket perHour;
+
+		private RegionLimiter(final long now) {
+			perSecond = new TokenBucket(requestsPerSecond, TimeUnit.SECONDS.toNanos(1), reservedPercent, now);
+			perHour = new TokenBucket(requestsPerHour, TimeUnit.HOURS.toNanos(1), reservedPercent, now);
+		}
+
+		private synchronized long tryAcquire(final Priority priority, final long now) {
+			perSecond.refill(now);
+			perHour.refill(now);
+			final long waitNanos = Math.max(perSecond.nanosUntilAvailable(priority),
+					perHour.nanosUntilAvailable(priority));
+			if (waitNanos <= 0) {
+				perSecond.tokens -= 1.0;
+				perHour.tokens -= 1.0;
+			}
+			return waitNanos;
+		}
+	}
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+	private final Statistics statistics;
+	private final int requestsPerSecond;
+	private final int requestsPerHour;
+	private final byte reservedPercent;
+	private final long maxWaitNanos;
+	private final LongSupplier nanoTime;
+	private final Map<BattleNetRegion, RegionLimiter> limiters = new EnumMap<>(BattleNetRegion.class);
+
+	private BattleNetRateLimiter() {
+		this(Singletons.instance(Config.class).bnetRequestsPerSecond,
+				Singletons.instance(Config.class).bnetRequestsPerHour,
+				Singletons.instance(Config.class).bnetInteractiveReservedPercent,
+				TimeUnit.SECONDS.toNanos(Singletons.instance(Config.class).bnetMaxRateLimitWaitSeconds),
+				System::nanoTime);
+	}
+
+	/*package for test*/ BattleNetRateLimiter(final int requestsPerSecond, final int requestsPerHour,
+			final byte reservedPercent, final long maxWaitNanos, final LongSupplier nanoTime) {
+		this.statistics = Singletons.instance(Statistics.class);
+		this.requestsPerSecond = requestsPerSecond;
+		this.requestsPerHour = requestsPerHour;
+		this.reservedPercent = reservedPercent;
+		this.maxWaitNanos = maxWaitNanos;
+		this.nanoTime = nanoTime;
+		final long now = nanoTime.getAsLong();
+		for (final BattleNetRegion region : BattleNetRegion.values()) {
+			limiters.put(region, new RegionLimiter(now));
+			for (final Priority priority : Priority.values()) {
+				statistics.add(metricName(region, priority, "permits"), 0);
+				statistics.add(metricName(region, priority, "wait-millis"), 0);
+				statistics.add(metricName(region, priority, "rejected"), 0);
+			}
+		}
+	}
+
+	private static String metricName(final BattleNetRegion region, final Priority priority, final String name) {
+		return "bnet.rate-limiter." + region.name() + "." + priority.name() + "." + name;
+	}
+
+	/**
+	 * @return 0 if a permit was acquired, otherwise the nanoseconds until a permit might be available.
+	 */
+	/*package for test*/ long tryAcquire(final BattleNetRegion region, final Priority priority) {
+		return limiters.get(region).tryAcquire(priority, nanoTime.getAsLong());
+	}
+
+	/*package*/ void acquire(final BattleNetRegion region, final Priority priority) throws RequestExecutionFailure {
+		final long start = nanoTime.getAsLong();
+		long waitNanos;
+		while ((waitNanos = tryAcquire(region, priority)) > 0) {
+			final long waitedNanos = nanoTime.getAsLong() - start;
+			if (waitedNanos + waitNanos > maxWaitNanos) {
+				statistics.increment(metricName(region, priority, "rejected"));
+				statistics.add(metricName(region, priority, "wait-millis"),
+						TimeUnit.NANOSECONDS.toMillis(waitedNanos));
+				log.warn("Rejected {} request for {}, no permit available after waiting {}ms", priority, region,
+						TimeUnit.NANOSECONDS.toMillis(waitedNanos));
+				throw new RequestExecutionFailure(
+						new IllegalStateException("Rate limit exceeded for " + region + " " + priority));
+			}
+			try {
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RequestExecutionFailure(e);
+			}
+		}
+		statistics.increment(metricName(region, priority, "permits"));
+		statistics.add(metricName(region, priority, "wait-millis"),
+				TimeUnit.NANOSECONDS.toMillis(nanoTime.getAsLong() - start));
+	}
+}
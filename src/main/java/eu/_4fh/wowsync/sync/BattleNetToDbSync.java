@@ -2,14 +2,20 @@ package eu._4fh.wowsync.sync;
 
 import java.net.URI;
 import java.time.Clock;
+import java.time.Instant;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -30,20 +36,24 @@ import eu._4fh.abstract_bnet_api.restclient.data.BattleNetWowCharacter;
 import eu._4fh.abstract_bnet_api.restclient.requests.BattleNetGuildMembersRequest;
 import eu._4fh.abstract_bnet_api.restclient.requests.BattleNetProfileInfoRequest;
 import eu._4fh.abstract_bnet_api.restclient.requests.BattleNetProfileWowCharactersRequest;
+import eu._4fh.wowsync.database.ChunkedTransaction;
 import eu._4fh.wowsync.database.Db;
 import eu._4fh.wowsync.database.Transaction;
 import eu._4fh.wowsync.database.data.Account;
 import eu._4fh.wowsync.database.data.AccountRemoteId;
 import eu._4fh.wowsync.database.data.Character;
 import eu._4fh.wowsync.database.data.Guild;
+import eu._4fh.wowsync.database.data.GuildRosterState;
 import eu._4fh.wowsync.database.data.RemoteSystem;
 import eu._4fh.wowsync.database.data.RemoteSystem.RemoteSystemType;
+import eu._4fh.wowsync.sync.BattleNetCircuitBreaker.CircuitOpenFailure;
+import eu._4fh.wowsync.sync.BattleNetRateLimiter.Priority;
 import eu._4fh.wowsync.util.Config;
 import eu._4fh.wowsync.util.Singletons;
 
 @DefaultAnnotation(NonNull.class)
 public class BattleNetToDbSync {
-	private static class RequestExecutionFailure extends Exception {
+	/*package*/ static class RequestExecutionFailure extends Exception {
 		private static final long serialVersionUID = 5203535381881507987L;
 
 		public RequestExecutionFailure(final Throwable t) {
@@ -51,76 +61,273 @@ public class BattleNetToDbSync {
 		}
 	}
 
+	@FunctionalInterface
+	/*package for test*/ interface UserRequest<R> {
+		R execute() throws RequestExecutionFailure;
+	}
+
+	/*package for test*/ static class UserData {
+		private final BattleNetProfileInfo profileInfo;
+		private final List<BattleNetWowCharacter> characters;
+
+		/*package for test*/ UserData(final BattleNetProfileInfo profileInfo,
+				final List<BattleNetWowCharacter> characters) {
+			this.profileInfo = profileInfo;
+			this.characters = characters;
+		}
+	}
+
 	private final Logger log = LoggerFactory.getLogger(getClass());
 
 	private final Db db;
 	private final Config config;
+	private final BattleNetRateLimiter rateLimiter;
+	private final RetryPolicy retryPolicy;
+	private final BattleNetCircuitBreaker circuitBreaker;
+	private final TokenRefreshScheduler tokenRefreshScheduler;
 
 	public BattleNetToDbSync() {
 		db = Singletons.instance(Db.class);
 		config = Singletons.instance(Config.class);
+		rateLimiter = Singletons.instance(BattleNetRateLimiter.class);
+		retryPolicy = new BackoffRetryPolicy(config);
+		circuitBreaker = Singletons.instance(BattleNetCircuitBreaker.class);
+		tokenRefreshScheduler = Singletons.instance(TokenRefreshScheduler.class);
 	}
 
 	public void updateAndDeleteAccounts() {
+		circuitBreaker.startRun();
+		// No transaction around everything, so nothing stays locked while we wait for Battle.net
+		updateAccountsFromTokens();
+		updateAccountsFromGuildList();
 		try (final Transaction.TransCnt transaction = db.createTransaction()) {
-			updateAccountsFromTokens();
-			updateAccountsFromGuildList();
 			removeUnusedAccounts();
+			transaction.commit();
+		}
+		try (final Transaction.TransCnt transaction = db.createTransaction()) {
 			removeUnusedCharacters();
 			transaction.commit();
 		}
 	}
 
 	private void updateAccountsFromGuildList() {
-		for (final BattleNetRegion region : BattleNetRegion.values()) {
-			final List<Guild> guilds = db.guilds.byRegion(region);
-			final RequestExecutor executor = new RequestExecutor(config.battleNetClients.getApiClient(region),
-					region.locales.iterator().next().toString());
-			for (final Guild guild : guilds) {
+		final ExecutorService threadPool = Executors.newFixedThreadPool(config.bnetParallelGuildRequests);
+		try {
+			for (final BattleNetRegion region : BattleNetRegion.values()) {
+				updateAccountsFromGuildList(region, threadPool);
+			}
+		} finally {
+			threadPool.shutdownNow();
+		}
+	}
+
+	private void updateAccountsFromGuildList(final BattleNetRegion region, final ExecutorService threadPool) {
+		final List<Guild> guilds = db.guilds.byRegion(region);
+		log.debug("Request members for {} guilds in region {}", guilds.size(), region);
+		final BattleNetClient apiClient = config.battleNetClients.getApiClient(region);
+		final String locale = region.locales.iterator().next().toString();
+		final AtomicInteger skipped = new AtomicInteger(0);
+		// Only the requests run in parallel, the results are written to the database by this thread.
+		final ParallelRequests<Guild, List<BattleNetWowCharacter>> requests = new ParallelRequests<>("guilds",
+				threadPool, config.bnetParallelGuildRequests, config.syncWriteQueueSize, config.guildsPerTransaction);
+		try (final ChunkedTransaction transaction = db.createChunkedTransaction()) {
+			requests.execute(guilds, guild -> {
 				log.debug("Request members for {} {} {}", region, guild.server(), guild.name());
 				final String apiPath = BattleNetGuildMembersRequest.getApiPath(guild.server(), guild.name());
-				try {
-					final List<BattleNetWowCharacter> characters = executeRequest(executor, apiPath,
-							new BattleNetGuildMembersRequest());
-					final Set<Long> characterBnetIds = updateCharacters(region, null, guild, characters);
-					final int removedFromGuild = db.characters.removeGuildReferenceWhereBnetIdNotIn(region, guild,
-							characterBnetIds);
-					log.debug("Removed {} characters from guild", removedFromGuild);
-				} catch (RequestExecutionFailure e) {
+				return executeRequest(new RequestExecutor(apiClient, locale), region, Priority.Batch, apiPath,
+						new BattleNetGuildMembersRequest());
+			}, new ParallelRequests.ResultHandler<>() {
+				@Override
+				public void onResult(final Guild guild, final List<BattleNetWowCharacter> characters) {
+					final long rosterHash = RosterFingerprint.of(characters);
+					GuildRosterState state = db.find(GuildRosterState.class, guild.id());
+					if (state != null && Objects.equals(state.rosterHash(), rosterHash)) {
+						log.debug("Roster of {} {} {} is unchanged", region, guild.server(), guild.name());
+					} else {
+						final int removedFromGuild = mergeGuildRoster(region, guild, characters,
+								config.rosterMergeWithStagingTable);
+						log.debug("Removed {} characters from guild", removedFromGuild);
+						if (state == null) {
+							state = new GuildRosterState();
+							state.setGuild(guild);
+						}
+						state.setRosterHash(rosterHash);
+						db.save(state);
+					}
+					// The characters of one guild are not needed for the next guild of the chunk
+					transaction.checkpoint();
+				}
+
+				@Override
+				public void onFailure(final Guild guild, final RequestExecutionFailure e) {
+					if (e instanceof CircuitOpenFailure) {
+						skipped.incrementAndGet();
+						return;
+					}
 					log.atError().setCause(e).setMessage("Cant fetch members for {} {} {}").addArgument(region)
 							.addArgument(guild.server()).addArgument(guild.name()).log();
 				}
-			}
+
+				@Override
+				public void onBatchDone() {
+					transaction.commit();
+				}
+			});
+		}
+		if (skipped.get() > 0) {
+			circuitBreaker.skipped(region, skipped.get());
 		}
 	}
 
 	private void updateAccountsFromTokens() {
-		for (final BattleNetRegion region : BattleNetRegion.values()) {
-			final List<BattleNetClient> clients = config.battleNetClients.getUserClients(region);
-			log.debug("Update Accounts Region {}: {} Accounts", region, clients.size());
-			for (final BattleNetClient client : clients) {
-				if (!client.isAccessTokenValid()) {
-					continue;
+		// Every user request uses a second thread for the characters request, so we need two threads per user
+		final ExecutorService threadPool = Executors.newFixedThreadPool(2 * config.bnetParallelUserRequests);
+		try {
+			for (final BattleNetRegion region : BattleNetRegion.values()) {
+				updateAccountsFromTokens(region, threadPool);
+			}
+		} finally {
+			threadPool.shutdownNow();
+		}
+	}
+
+	private void updateAccountsFromTokens(final BattleNetRegion region, final ExecutorService threadPool) {
+		final List<BattleNetClient> validClients = config.battleNetClients.getUserClients(region).stream()
+				.filter(BattleNetClient::isAccessTokenValid).collect(Collectors.toList());
+		final List<BattleNetClient> clients = tokenRefreshScheduler.select(validClients,
+				db.accounts.bnetIdsWithGuildCharacters(region), Instant.now());
+		log.debug("Update Accounts Region {}: {} of {} Accounts", region, clients.size(), validClients.size());
+		updateAccountsFromTokens(region, threadPool, clients, client -> fetchUserData(threadPool, region, client));
+	}
+
+	/**
+	 * A failed user is only recorded in the {@link TokenRefreshScheduler}, the other users are still updated.
+	 */
+	/*package for test*/ <C> void updateAccountsFromTokens(final BattleNetRegion region,
+			final ExecutorService threadPool, final List<C> clients,
+			final ParallelRequests.Request<C, UserData> fetch) {
+		final AtomicInteger skipped = new AtomicInteger(0);
+		final List<UserData> batch = new ArrayList<>(config.accountsPerTransaction);
+		try (final ChunkedTransaction transaction = db.createChunkedTransaction()) {
+			final ParallelRequests<C, UserData> requests = new ParallelRequests<>("tokens", threadPool,
+					config.bnetParallelUserRequests, config.syncWriteQueueSize, config.accountsPerTransaction);
+			requests.execute(clients, fetch, new ParallelRequests.ResultHandler<>() {
+				@Override
+				public void onResult(final C client, final UserData userData) {
+					tokenRefreshScheduler.refreshed(client, userData.profileInfo.id, Instant.now());
+					batch.add(userData);
 				}
-				try {
-					final RequestExecutor executor = new RequestExecutor(client,
-							region.locales.iterator().next().toString());
-					final BattleNetProfileInfo profileInfo = executeRequest(executor,
-							BattleNetProfileInfoRequest.API_PATH, new BattleNetProfileInfoRequest());
-					final Account account = insertOrUpdateAccount(profileInfo);
-					final List<BattleNetWowCharacter> characters = executeRequest(executor,
-							BattleNetProfileWowCharactersRequest.API_PATH, new BattleNetProfileWowCharactersRequest());
-					updateCharacters(region, account, null, characters);
-				} catch (RequestExecutionFailure e) {
-					try {
-						log.atError().setCause(e).setMessage("Cant fetch BattleNet-Data region {} for {}")
-								.addArgument(region).addArgument(client.getAccessToken().accessToken()).log();
-					} catch (ProtocolException e1) {
-						log.error("Cant event fetch access token", e1);
+
+				@Override
+				public void onFailure(final C client, final RequestExecutionFailure e) {
+					if (e instanceof CircuitOpenFailure) {
+						skipped.incrementAndGet();
+						return;
 					}
+					tokenRefreshScheduler.failed(client, Instant.now());
+				}
+
+				@Override
+				public void onBatchDone() {
+					updateAccounts(region, batch);
+					batch.clear();
+					transaction.commit();
 				}
+			});
+		}
+		if (skipped.get() > 0) {
+			circuitBreaker.skipped(region, skipped.get());
+		}
+	}
+
+	/*package for test*/ void updateAccounts(final BattleNetRegion region, final List<UserData> userDatas) {
+		final Map<Long, Account> accounts = db.accounts
+				.upsert(userDatas.stream().map(userData -> userData.profileInfo).collect(Collectors.toList()));
+		for (final UserData userData : userDatas) {
+			updateAccountCharacters(region, accounts.get(userData.profileInfo.id), userData.characters);
+		}
+	}
+
+	private UserData fetchUserData(final ExecutorService threadPool, final BattleNetRegion region,
+			final BattleNetClient client) throws RequestExecutionFailure {
+		final String locale = region.locales.iterator().next().toString();
+		try {
+			return fetchUserData(threadPool,
+					() -> executeRequest(new RequestExecutor(client, locale), region, Priority.Batch,
+							BattleNetProfileInfoRequest.API_PATH, new BattleNetProfileInfoRequest()),
+					() -> executeRequest(new RequestExecutor(client, locale), region, Priority.Batch,
+							BattleNetProfileWowCharactersRequest.API_PATH, new BattleNetProfileWowCharactersRequest()));
+		} catch (CircuitOpenFailure e) {
+			throw e;
+		} catch (RequestExecutionFailure e) {
+			try {
+				log.atError().setCause(e).setMessage("Cant fetch BattleNet-Data region {} for {}").addArgument(region)
+						.addArgument(client.getAccessToken().accessToken()).log();
+			} catch (ProtocolException e1) {
+				log.error("Cant event fetch access token", e1);
 			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs the characters request on the thread pool while the profile request runs on the current thread. Returns
+	 * only after both requests are finished, so no request of the user is still running when the next user starts.
+	 */
+	/*package for test*/ static UserData fetchUserData(final ExecutorService threadPool,
+			final UserRequest<BattleNetProfileInfo> profileRequest,
+			final UserRequest<List<BattleNetWowCharacter>> charactersRequest) throws RequestExecutionFailure {
+		final Future<List<BattleNetWowCharacter>> charactersFuture = threadPool.submit(charactersRequest::execute);
+		final BattleNetProfileInfo profileInfo;
+		try {
+			profileInfo = profileRequest.execute();
+		} catch (RequestExecutionFailure e) {
+			try {
+				charactersFuture.get();
+			} catch (InterruptedException e1) {
+				charactersFuture.cancel(true);
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e1) {
+				e.addSuppressed(e1.getCause());
+			}
+			throw e;
+		}
+		try {
+			return new UserData(profileInfo, charactersFuture.get());
+		} catch (InterruptedException e) {
+			charactersFuture.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new RequestExecutionFailure(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RequestExecutionFailure) {
+				throw (RequestExecutionFailure) e.getCause();
+			}
+			throw new RequestExecutionFailure(e.getCause());
+		}
+	}
+
+	private void updateAccountCharacters(final BattleNetRegion region, final Account account,
+			final List<BattleNetWowCharacter> characters) {
+		final long charactersHash = RosterFingerprint.of(characters);
+		if (Objects.equals(account.charactersHash(), charactersHash)) {
+			log.debug("Characters of {} are unchanged", account.bnetTag());
+			return;
+		}
+		updateCharacters(region, account, null, characters);
+		account.setCharactersHash(charactersHash);
+		db.save(account);
+	}
+
+	/**
+	 * @return The number of characters that are no longer in the guild.
+	 */
+	/*package for test*/ int mergeGuildRoster(final BattleNetRegion region, final Guild guild,
+			final List<BattleNetWowCharacter> characters, final boolean useStagingTable) {
+		if (useStagingTable) {
+			return db.characters.mergeGuildRoster(guild, characters);
 		}
+		final Set<Long> characterBnetIds = updateCharacters(region, null, guild, characters);
+		return db.characters.removeGuildReferenceWhereBnetIdNotIn(region, guild, characterBnetIds);
 	}
 
 	/*package for test*/ Set<Long> updateCharacters(final BattleNetRegion region, final @CheckForNull Account account,
@@ -131,12 +338,15 @@ public class BattleNetToDbSync {
 		}
 		final Map<Long, BattleNetWowCharacter> bnetCharacters = charactersList.stream()
 				.collect(Collectors.toMap(c -> c.id, Function.identity()));
-		final List<Character> existingCharacters = db.characters.byBnetIds(region, bnetCharacters.keySet());
+		// Only load the association we compare below
+		final List<Character> existingCharacters = db.characters.byBnetIds(region, bnetCharacters.keySet(),
+				account != null ? Character.GRAPH_WITH_ACCOUNT : Character.GRAPH_WITH_GUILD);
 		final Set<Long> existingCharactersIds = existingCharacters.stream().map(c -> c.bnetId)
 				.collect(Collectors.toSet());
 		{
 			final Set<Long> nonExistentCharacterIds = new HashSet<>(bnetCharacters.keySet());
 			nonExistentCharacterIds.removeAll(existingCharactersIds);
+			final List<Character> newCharacters = new ArrayList<>(nonExistentCharacterIds.size());
 			for (final long characterId : nonExistentCharacterIds) {
 				final BattleNetWowCharacter bnetCharacter = bnetCharacters.get(characterId);
 				final Character character = new Character();
@@ -144,35 +354,44 @@ public class BattleNetToDbSync {
 				character.server = bnetCharacter.realmSlug;
 				character.name = bnetCharacter.name;
 				character.bnetId = bnetCharacter.id;
+				if (bnetCharacter.guildRank != null) {
+					character.rank = bnetCharacter.guildRank;
+				}
 				character.account = account;
 				character.guild = guild;
-				db.save(character);
+				newCharacters.add(character);
 			}
+			db.characters.insertBatch(newCharacters);
 		}
 		{
+			// The existing characters are managed, Hibernate writes the changes with the next flush in JDBC batches
+			final List<Long> roleChangedCharacterIds = new ArrayList<>();
+			final Set<Long> previousAccountIds = new HashSet<>();
 			for (final Character character : existingCharacters) {
 				final BattleNetWowCharacter bnetCharacter = bnetCharacters.get(character.bnetId);
-				boolean needToSave = false;
+				if (isRoleRelevantChange(character, account, guild, bnetCharacter)) {
+					roleChangedCharacterIds.add(character.id);
+					if (account != null && character.account != null) {
+						previousAccountIds.add(character.account.id());
+					}
+				}
 				if (isCharacterChanged(character, bnetCharacter)) {
 					character.server = bnetCharacter.realmSlug;
 					character.name = bnetCharacter.name;
 					if (bnetCharacter.guildRank != null) {
 						character.rank = bnetCharacter.guildRank;
 					}
-					needToSave = true;
 				}
 				if (account != null && (character.account == null || character.account.bnetId() != account.bnetId())) {
 					character.account = account;
-					needToSave = true;
 				}
 				if (guild != null && (character.guild == null || character.guild.id() != guild.id())) {
 					character.guild = guild;
-					needToSave = true;
-				}
-				if (needToSave) {
-					db.save(character);
 				}
 			}
+			// The characters are flushed first, so the new accounts are marked. The old accounts lost a character.
+			db.roleSyncDirty.markCharacters(roleChangedCharacterIds);
+			db.roleSyncDirty.markAccounts(previousAccountIds);
 		}
 		return bnetCharacters.keySet();
 	}
@@ -213,6 +432,21 @@ public class BattleNetToDbSync {
 		return account;
 	}
 
+	/**
+	 * @return true if the change can change the roles of the remote users of the character: The rank, the guild or
+	 *         the account changes.
+	 */
+	private boolean isRoleRelevantChange(final Character character, final @CheckForNull Account account,
+			final @CheckForNull Guild guild, final BattleNetWowCharacter bnetCharacter) {
+		if (bnetCharacter.guildRank != null && character.rank != bnetCharacter.guildRank) {
+			return true;
+		}
+		if (account != null && (character.account == null || character.account.bnetId() != account.bnetId())) {
+			return true;
+		}
+		return guild != null && (character.guild == null || character.guild.id() != guild.id());
+	}
+
 	private boolean isCharacterChanged(final Character character, final BattleNetWowCharacter bnetCharacter) {
 		assert character.bnetId == bnetCharacter.id;
 		if ((bnetCharacter.guildRank == null || character.rank == bnetCharacter.guildRank)
@@ -223,31 +457,24 @@ public class BattleNetToDbSync {
 		return true;
 	}
 
-	private <R> R executeRequest(final RequestExecutor executor, final String path,
-			final AbstractBattleNetRequest<R> request) throws RequestExecutionFailure {
+	private <R> R executeRequest(final RequestExecutor executor, final BattleNetRegion region,
+			final Priority priority, final String path, final AbstractBattleNetRequest<R> request)
+			throws RequestExecutionFailure {
 		log.debug("Request {} ({})", path, request);
-		@CheckForNull
-		Throwable exception = null;
-		int numTries = 0;
-		do {
-			numTries++;
-			try {
+		circuitBreaker.checkClosed(region, priority);
+		try {
+			final R result = retryPolicy.execute(path + " " + request.toString(), () -> {
+				rateLimiter.acquire(region, priority);
 				return executor.executeRequest(path, request);
-			} catch (Exception e) {
-				log.debug("Cant execute " + path + " " + request.toString() + ". Retry "
-						+ Boolean.toString(numTries < config.bnetNumRequestRetries), e);
-				exception = e;
-			}
-			try {
-				TimeUnit.SECONDS.sleep(1);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-				// Otherwise ignore
-			}
-		} while (numTries < config.bnetNumRequestRetries);
-		log.atError().setCause(exception).setMessage("Cant execute request {} {}").addArgument(path)
-				.addArgument(request).log();
-		throw new RequestExecutionFailure(exception);
+			});
+			circuitBreaker.onSuccess(region);
+			return result;
+		} catch (RequestExecutionFailure e) {
+			circuitBreaker.onFailure(region, e.getCause());
+			log.atError().setCause(e.getCause()).setMessage("Cant execute request {} {}").addArgument(path)
+					.addArgument(request).log();
+			throw e;
+		}
 	}
 
 	public @CheckForNull URI authFinished(final RemoteSystem remoteSystem, final long remoteUserId,
@@ -269,14 +496,14 @@ public class BattleNetToDbSync {
 			}
 			final BattleNetRegion region = remoteSystem.guild.region();
 			final RequestExecutor executor = new RequestExecutor(client, region.locales.iterator().next().toString());
-			final BattleNetProfileInfo profileInfo = executeRequest(executor, BattleNetProfileInfoRequest.API_PATH,
-					new BattleNetProfileInfoRequest());
+			final BattleNetProfileInfo profileInfo = executeRequest(executor, region, Priority.Interactive,
+					BattleNetProfileInfoRequest.API_PATH, new BattleNetProfileInfoRequest());
 			account = insertOrUpdateAccount(profileInfo);
 			insertOrUpdateAccountRemoteId(account, remoteSystem, remoteUserId);
 
-			final List<BattleNetWowCharacter> characters = executeRequest(executor,
+			final List<BattleNetWowCharacter> characters = executeRequest(executor, region, Priority.Interactive,
 					BattleNetProfileWowCharactersRequest.API_PATH, new BattleNetProfileWowCharactersRequest());
-			updateCharacters(region, account, null, characters);
+			updateAccountCharacters(region, account, characters);
 			trans.commit();
 		} catch (RequestExecutionFailure e) {
 			throw new RuntimeException(e);
@@ -288,6 +515,7 @@ public class BattleNetToDbSync {
 			final long remoteUserId) {
 		try (Transaction.TransCnt trans = db.createTransaction()) {
 			AccountRemoteId accountRemoteId = db.accountRemoteIds.byId(account, remoteSystem);
+			db.roleSyncDirty.markRemoteUser(remoteSystem, remoteUserId);
 			if (accountRemoteId == null) {
 				accountRemoteId = new AccountRemoteId();
 				accountRemoteId.account = account;
@@ -295,6 +523,8 @@ public class BattleNetToDbSync {
 				accountRemoteId.remoteId = remoteUserId;
 				db.save(accountRemoteId);
 			} else if (accountRemoteId.remoteId != remoteUserId) {
+				// The old remote user loses the roles of the account
+				db.roleSyncDirty.markRemoteUser(remoteSystem, accountRemoteId.remoteId);
 				accountRemoteId.remoteId = remoteUserId;
 				db.save(accountRemoteId);
 			}
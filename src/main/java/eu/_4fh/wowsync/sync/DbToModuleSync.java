@@ -2,6 +2,8 @@ package eu._4fh.wowsync.sync;
 
 import java.time.Clock;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -9,6 +11,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
@@ -19,20 +22,22 @@ import eu._4fh.wowsync.database.Transaction;
 import eu._4fh.wowsync.database.data.Character;
 import eu._4fh.wowsync.database.data.DiscordOnlineUser;
 import eu._4fh.wowsync.database.data.RemoteSystem;
-import eu._4fh.wowsync.database.data.RemoteSystemRankToGroup;
 import eu._4fh.wowsync.modules.Module;
 import eu._4fh.wowsync.modules.Module.RoleChange;
 import eu._4fh.wowsync.modules.ModuleService;
-import eu._4fh.wowsync.util.Range;
+import eu._4fh.wowsync.modules.MutationScheduler.Priority;
+import eu._4fh.wowsync.util.Config;
 import eu._4fh.wowsync.util.Singletons;
 
 @DefaultAnnotation(NonNull.class)
 public class DbToModuleSync {
+	private static final RoleChange NO_CHANGE = new RoleChange(Collections.emptySet(), Collections.emptySet());
+
 	private final Db db;
 	private final RemoteSystem remoteSystem;
-	private final Map<Byte, Set<String>> rankToGroups;
-	private final Set<String> allGroups;
+	private final RankRoleTable rankRoleTable;
 	private final Module module;
+	private final int pageSize;
 
 	public DbToModuleSync(final RemoteSystem remoteSystem) {
 		this(remoteSystem,
@@ -40,47 +45,29 @@ public class DbToModuleSync {
 	}
 
 	/*package for test*/ DbToModuleSync(final RemoteSystem remoteSystem, final Module module) {
+		this(remoteSystem, module, Singletons.instance(Config.class).roleSyncPageSize);
+	}
+
+	/*package for test*/ DbToModuleSync(final RemoteSystem remoteSystem, final Module module, final int pageSize) {
 		this.db = Singletons.instance(Db.class);
 		this.remoteSystem = remoteSystem;
 		this.module = module;
-		this.rankToGroups = buildRankToGroupsMap(remoteSystem);
-		final Set<String> allGroupsTmp = rankToGroups.values().stream().flatMap(Set::stream)
-				.collect(Collectors.toCollection(HashSet::new));
-		allGroupsTmp.add(remoteSystem.memberGroup);
-		allGroups = Collections.unmodifiableSet(allGroupsTmp);
+		this.pageSize = pageSize;
+		this.rankRoleTable = Singletons.instance(RankRoleTables.class).get(remoteSystem);
 	}
 
-	/*package for test*/ Map<Byte, Set<String>> buildRankToGroupsMap(final RemoteSystem remoteSystem) {
-		try (Transaction.TransCnt transaction = db.createTransaction()) {
-			final List<RemoteSystemRankToGroup> rank2Group = db.remoteSystemRankToGroup.byRemoteSystem(remoteSystem);
-			if (rank2Group.isEmpty()) {
-				return Collections.emptyMap();
-			}
-			final Map<Range<Byte>, String> rankRangesMap = rank2Group.stream()
-					.collect(Collectors.toMap(r2g -> new Range<Byte>(r2g.guildRankFrom(), r2g.getGuildRankTo()),
-							RemoteSystemRankToGroup::groupName));
-			final byte maxRank = rankRangesMap.keySet().stream().map(r -> r.end)
-					.collect(Collectors.maxBy(Comparator.naturalOrder())).orElseThrow();
-
-			final Map<Byte, Set<String>> result = new HashMap<>(maxRank);
-			for (byte rank = maxRank; rank >= 0; --rank) {
-				final Set<String> rankGroups = new HashSet<>();
-				rankGroups.add(remoteSystem.memberGroup);
-				for (Map.Entry<Range<Byte>, String> rankRangeGroup : rankRangesMap.entrySet()) {
-					if (rankRangeGroup.getKey().fits(rank)) {
-						rankGroups.add(rankRangeGroup.getValue());
-					}
-				}
-				result.put(rank, Collections.unmodifiableSet(rankGroups));
-			}
-			return Collections.unmodifiableMap(result);
-		}
+	/*package for test*/ Map<Byte, Set<String>> buildRankToGroupsMap() {
+		return rankRoleTable.toRankToGroupsMap();
+	}
+
+	/*package for test*/ RankRoleTable rankRoleTable() {
+		return rankRoleTable;
 	}
 
 	public boolean syncForUser(final long remoteUserId) {
 		final Set<Byte> ranks;
 		final List<String> sortedCharnames;
-		try (Transaction.TransCnt transaction = db.createTransaction()) {
+		try (Transaction.TransCnt transaction = db.createReadOnlyTransaction()) {
 			final List<Character> characters = db.characters.byGuildAndRemoteSystemAndRemoteId(remoteSystem.guild,
 					remoteSystem, remoteUserId);
 			ranks = characters.stream().map(c -> c.rank).collect(Collectors.toUnmodifiableSet());
@@ -92,76 +79,128 @@ public class DbToModuleSync {
 			return false;
 		}
 		final Set<String> actualRoles = module.getRolesForUser(remoteUserId);
-		final Set<String> expectedRoles = ranks.stream().flatMap(
-				rank -> rankToGroups.getOrDefault(rank, Collections.singleton(remoteSystem.memberGroup)).stream())
-				.collect(Collectors.toUnmodifiableSet());
-		final RoleChange change = calculateRoleChanges(actualRoles, expectedRoles);
+		final RoleChange change = calculateRoleChanges(actualRoles, rankRoleTable.maskForRanks(ranks));
 		if (change == null || change.toAdd.isEmpty()) {
 			return false;
 		}
 		module.setCharacterNames(remoteUserId, sortedCharnames);
-		module.changeRoles(Collections.singletonMap(remoteUserId, change));
+		module.changeRoles(Collections.singletonMap(remoteUserId, change), Priority.Interactive);
 		return true;
 	}
 
-	public void syncToModule() {
-		final Map<Long, Set<String>> expectedRolesPerUser = new HashMap<>();
-		try (Transaction.TransCnt transaction = db.createTransaction()) {
-			final Map<Long, List<Character>> charactersByRemoteAccountId = db.accountRemoteIds
-					.remoteIdWithCharactersByGuildAndRemoteSystem(remoteSystem.guild, remoteSystem);
-			final Set<String> memberGroupSet = Collections.singleton(remoteSystem.memberGroup);
-			for (Map.Entry<Long, List<Character>> remoteIdWithCharacters : charactersByRemoteAccountId.entrySet()) {
-				final Set<String> roles = remoteIdWithCharacters.getValue().stream()
-						.flatMap(c -> rankToGroups.getOrDefault(c.rank, memberGroupSet).stream())
-						.collect(Collectors.toUnmodifiableSet());
-				expectedRolesPerUser.put(remoteIdWithCharacters.getKey(), roles);
+	/**
+	 * Compares the roles of all users. Also clears the changed users of the remote system, they are part of this sync.
+	 * The expected roles of the linked users are kept in memory, the users of the module are compared and changed page
+	 * by page.
+	 *
+	 * @return The number of users whose roles are changed.
+	 */
+	public int syncToModule() {
+		// Users marked after this point are synced again by the next incremental sync
+		db.roleSyncDirty.deleteAll(remoteSystem);
+		final Map<Long, Long> expectedRolesPerUser = new HashMap<>();
+		try (Transaction.TransCnt transaction = db.createReadOnlyTransaction()) {
+			final Map<Long, Set<Byte>> ranksByRemoteAccountId = db.accountRemoteIds
+					.remoteIdWithRanksByGuildAndRemoteSystem(remoteSystem.guild, remoteSystem);
+			for (Map.Entry<Long, Set<Byte>> remoteIdWithRanks : ranksByRemoteAccountId.entrySet()) {
+				expectedRolesPerUser.put(remoteIdWithRanks.getKey(),
+						rankRoleTable.maskForRanks(remoteIdWithRanks.getValue()));
 			}
 		}
-		final Map<Long, Set<String>> actualRolesPerUser = module.getAllUsersWithRoles();
+		// Users that are only expected are not on the server, we cant change their roles
+		final AtomicInteger numChanged = new AtomicInteger(0);
+		module.forEachUsersPage(pageSize, actualRolesPerUser -> numChanged
+				.addAndGet(changeRoles(actualRolesPerUser.keySet(), expectedRolesPerUser, actualRolesPerUser)));
+		return numChanged.get();
+	}
 
-		final Map<Long, RoleChange> roleChanges = new HashMap<>(expectedRolesPerUser.size());
-		final Set<Long> allRemoteIds = new HashSet<>(expectedRolesPerUser.size());
-		allRemoteIds.addAll(expectedRolesPerUser.keySet());
-		allRemoteIds.addAll(actualRolesPerUser.keySet());
-		for (final long remoteUserId : allRemoteIds) {
+	/**
+	 * Only compares the roles of the users that were marked as changed by the Battle.net sync since the last sync, so
+	 * the cost depends on the number of changes and not on the size of the guild. Removes the marks afterwards, users
+	 * marked again during this sync stay marked for the next one.
+	 *
+	 * @return The number of users whose roles are changed.
+	 */
+	public int syncChangedUsers() {
+		final Map<Long, Long> marks = db.roleSyncDirty.marks(remoteSystem);
+		if (marks.isEmpty()) {
+			return 0;
+		}
+		final List<Long> changedRemoteIds = new ArrayList<>(marks.keySet());
+		final Map<Long, Long> expectedRolesPerUser = new HashMap<>();
+		try (Transaction.TransCnt transaction = db.createReadOnlyTransaction()) {
+			final Map<Long, Set<Byte>> ranksByRemoteAccountId = db.accountRemoteIds
+					.remoteIdWithRanksByGuildAndRemoteSystemAndRemoteIds(remoteSystem.guild, remoteSystem,
+							changedRemoteIds);
+			for (Map.Entry<Long, Set<Byte>> remoteIdWithRanks : ranksByRemoteAccountId.entrySet()) {
+				expectedRolesPerUser.put(remoteIdWithRanks.getKey(),
+						rankRoleTable.maskForRanks(remoteIdWithRanks.getValue()));
+			}
+		}
+		int numChanged = 0;
+		for (int start = 0; start < changedRemoteIds.size(); start += pageSize) {
+			final List<Long> page = changedRemoteIds.subList(start,
+					Math.min(start + pageSize, changedRemoteIds.size()));
+			numChanged += changeRoles(page, expectedRolesPerUser, module.getRolesForUsers(page));
+		}
+		db.roleSyncDirty.delete(remoteSystem, marks);
+		return numChanged;
+	}
+
+	private int changeRoles(final Collection<Long> remoteIds, final Map<Long, Long> expectedRolesPerUser,
+			final Map<Long, Set<String>> actualRolesPerUser) {
+		final Map<Long, RoleChange> roleChanges = new HashMap<>();
+		for (final Long remoteUserId : remoteIds) {
 			final RoleChange change = calculateRoleChanges(actualRolesPerUser.get(remoteUserId),
-					expectedRolesPerUser.getOrDefault(remoteUserId, Collections.emptySet()));
-			if (change != null && (!change.toAdd.isEmpty() || !change.toRemove.isEmpty())) {
+					expectedRolesPerUser.getOrDefault(remoteUserId, 0L));
+			if (change != null && change != NO_CHANGE) {
 				roleChanges.put(remoteUserId, change);
 			}
 		}
-		module.changeRoles(roleChanges);
+		if (!roleChanges.isEmpty()) {
+			// Blocks while the module is busy, so the next page is only compared when this page is queued
+			module.changeRoles(roleChanges, Priority.Batch);
+		}
+		return roleChanges.size();
 	}
 
+	/**
+	 * @param expectedRoles Bitmask of the {@link RankRoleTable}
+	 * @return null if the user isnt on the server, {@link #NO_CHANGE} if nothing has to be changed.
+	 */
 	/*package for test*/ @CheckForNull
-	RoleChange calculateRoleChanges(final @CheckForNull Set<String> allActualRoles, final Set<String> expectedRoles) {
+	RoleChange calculateRoleChanges(final @CheckForNull Set<String> allActualRoles, final long expectedRoles) {
 		if (allActualRoles == null) {
 			// We cant set any roles, because the user isnt on the server anymore.
 			return null;
 		}
 
-		final Set<String> actualRoles = new HashSet<>(allActualRoles);
-		// First we remove all roles that we dont manage
-		actualRoles.retainAll(allGroups);
+		// Roles that we dont manage have no bit
+		final long actualRoles = rankRoleTable.maskForRoles(allActualRoles);
 
-		if (expectedRoles.isEmpty() && !actualRoles.isEmpty()) {
+		if (expectedRoles == 0 && actualRoles != 0) {
 			// User has been removed -> Add former group and remove all other roles
 			if (remoteSystem.formerMemberGroup != null) {
-				return new RoleChange(Collections.singleton(remoteSystem.formerMemberGroup), actualRoles);
+				return new RoleChange(Collections.singleton(remoteSystem.formerMemberGroup),
+						rankRoleTable.names(actualRoles));
 			} else {
-				return new RoleChange(Collections.emptySet(), actualRoles);
+				return new RoleChange(Collections.emptySet(), rankRoleTable.names(actualRoles));
 			}
 		}
-		final Set<String> toAdd = new HashSet<>(expectedRoles);
 		// Add all roles that are expected but not yet assigned
-		toAdd.removeAll(actualRoles);
-		final Set<String> toRemove = new HashSet<>(actualRoles);
-		// Remove all roles that are expected
-		toRemove.removeAll(expectedRoles);
-		if (remoteSystem.formerMemberGroup != null && allActualRoles.contains(remoteSystem.formerMemberGroup)) {
-			toRemove.add(remoteSystem.formerMemberGroup);
+		final long toAdd = expectedRoles & ~actualRoles;
+		// Remove all roles that are assigned but not expected
+		final long toRemove = actualRoles & ~expectedRoles;
+		final boolean removeFormerMemberGroup = remoteSystem.formerMemberGroup != null
+				&& allActualRoles.contains(remoteSystem.formerMemberGroup);
+		if (toAdd == 0 && toRemove == 0 && !removeFormerMemberGroup) {
+			return NO_CHANGE;
+		}
+		final Set<String> toRemoveNames = rankRoleTable.names(toRemove);
+		if (removeFormerMemberGroup) {
+			toRemoveNames.add(remoteSystem.formerMemberGroup);
 		}
-		return new RoleChange(toAdd, toRemove);
+		return new RoleChange(rankRoleTable.names(toAdd), toRemoveNames);
 	}
 
 	public int deleteInactiveUsers() {
@@ -179,12 +218,12 @@ public class DbToModuleSync {
 			final LocalDate today = LocalDate.now(Clock.systemUTC());
 			final LocalDate kickOfflineBefore = LocalDate.now(Clock.systemUTC())
 					.minusDays(deleteUsersAfterInactiveDays);
-			final Map<Long, Set<String>> usersWithRoles = module.getAllUsersWithRoles();
-			final Set<Long> inactiveUsersWithoutManagedGroup = usersWithRoles.entrySet().stream()
+			final Set<Long> inactiveUsersWithoutManagedGroup = new HashSet<>();
+			module.forEachUsersPage(pageSize, usersWithRoles -> usersWithRoles.entrySet().stream()
 					.filter(u -> usersLastOnlineById.getOrDefault(u.getKey(), today).isBefore(kickOfflineBefore))
 					// Disjoint -> User has no managed group
-					.filter(u -> Collections.disjoint(u.getValue(), allGroups)).map(Map.Entry::getKey)
-					.collect(Collectors.toUnmodifiableSet());
+					.filter(u -> Collections.disjoint(u.getValue(), rankRoleTable.allRoles())).map(Map.Entry::getKey)
+					.forEach(inactiveUsersWithoutManagedGroup::add));
 
 			if (!inactiveUsersWithoutManagedGroup.isEmpty()) {
 				return module.deleteInactiveUsers(inactiveUsersWithoutManagedGroup);
@@ -0,0 +1,59 @@
+package eu._4fh.wowsync.sync;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.database.data.RemoteSystem;
+import eu._4fh.wowsync.util.Config;
+import eu._4fh.wowsync.util.Singletons;
+
+/**
+ * Decides per remote system if the next role sync compares all users or only the changed users. A full sync is due
+ * after some time and when the rank to group mapping changed, that changes the expected roles of users that werent
+ * marked as changed. The last full sync is only kept in memory, so the first sync after a restart is always a full
+ * sync.
+ */
+@DefaultAnnotation(NonNull.class)
+/*package*/ class FullRoleSyncSchedule {
+	private final Duration fullSyncEvery;
+	private final Map<Long, FullSync> lastFullSyncs = new ConcurrentHashMap<>();
+
+	private static class FullSync {
+		private final Instant startedAt;
+		private final RankRoleTable rankRoleTable;
+
+		private FullSync(final Instant startedAt, final RankRoleTable rankRoleTable) {
+			this.startedAt = startedAt;
+			this.rankRoleTable = rankRoleTable;
+		}
+	}
+
+	private FullRoleSyncSchedule() {
+		this(Singletons.instance(Config.class).fullRoleSyncEveryHours);
+	}
+
+	/*package for test*/ FullRoleSyncSchedule(final int fullSyncEveryHours) {
+		this.fullSyncEvery = Duration.ofHours(fullSyncEveryHours);
+	}
+
+	/*package*/ boolean isFullSyncDue(final RemoteSystem remoteSystem, final RankRoleTable rankRoleTable,
+			final Instant now) {
+		final @CheckForNull FullSync lastFullSync = lastFullSyncs.get(remoteSystem.id);
+		return lastFullSync == null || !lastFullSync.startedAt.plus(fullSyncEvery).isAfter(now)
+				|| !lastFullSync.rankRoleTable.hasSameRoles(rankRoleTable);
+	}
+
+	/**
+	 * @param rankRoleTable The table the full sync compared the roles with.
+	 * @param startedAt Changes after the start of the full sync are synced by the incremental syncs.
+	 */
+	/*package*/ void fullSyncDone(final RemoteSystem remoteSystem, final RankRoleTable rankRoleTable,
+			final Instant startedAt) {
+		lastFullSyncs.put(remoteSystem.id, new FullSync(startedAt, rankRoleTable));
+	}
+}
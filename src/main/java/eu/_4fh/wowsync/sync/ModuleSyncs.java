@@ -0,0 +1,147 @@
+package eu._4fh.wowsync.sync;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.database.data.RemoteSystem;
+import eu._4fh.wowsync.util.Config;
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.Statistics;
+
+/**
+ * Runs the role sync for many remote systems at once. When a full sync is due (see {@link FullRoleSyncSchedule}),
+ * {@link DbToModuleSync#deleteInactiveUsers()} and {@link DbToModuleSync#syncToModule()} run, otherwise only
+ * {@link DbToModuleSync#syncChangedUsers()}. Most of the time is spent waiting for the remote system, so a slow remote
+ * system doesnt delay the others. A failing remote system doesnt stop the others, every remote system has its own
+ * result.
+ */
+@DefaultAnnotation(NonNull.class)
+public class ModuleSyncs {
+	public static class Result {
+		public final RemoteSystem remoteSystem;
+		public final boolean fullSync;
+		public final int numChangedUsers;
+		public final int numDeletedUsers;
+		public final @CheckForNull Throwable failure;
+
+		private Result(final RemoteSystem remoteSystem, final boolean fullSync, final int numChangedUsers,
+				final int numDeletedUsers, final @CheckForNull Throwable failure) {
+			this.remoteSystem = remoteSystem;
+			this.fullSync = fullSync;
+			this.numChangedUsers = numChangedUsers;
+			this.numDeletedUsers = numDeletedUsers;
+			this.failure = failure;
+		}
+
+		public boolean isSuccess() {
+			return failure == null;
+		}
+
+		@Override
+		public String toString() {
+			final String name = remoteSystem.type + " " + remoteSystem.systemId + " (" + remoteSystem.id + ")";
+			if (failure == null) {
+				return name + ": OK, " + (fullSync ? "full" : "incremental") + " sync, " + numChangedUsers
+						+ " users changed, " + numDeletedUsers + " inactive users deleted";
+			}
+			return name + ": FAILED, " + failure;
+		}
+	}
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+	private final Statistics statistics;
+	private final int parallelism;
+	private final FullRoleSyncSchedule fullSyncSchedule;
+	private final Function<RemoteSystem, DbToModuleSync> syncFactory;
+
+	public ModuleSyncs() {
+		this(Singletons.instance(Config.class).parallelRemoteSystems, Singletons.instance(FullRoleSyncSchedule.class),
+				DbToModuleSync::new);
+	}
+
+	/*package for test*/ ModuleSyncs(final int parallelism, final FullRoleSyncSchedule fullSyncSchedule,
+			final Function<RemoteSystem, DbToModuleSync> syncFactory) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be at least 1, but is " + parallelism);
+		}
+		this.statistics = Singletons.instance(Statistics.class);
+		this.parallelism = parallelism;
+		this.fullSyncSchedule = fullSyncSchedule;
+		this.syncFactory = syncFactory;
+	}
+
+	/**
+	 * @return One result per remote system, in the order of remoteSystems.
+	 */
+	public List<Result> syncAll(final List<RemoteSystem> remoteSystems) {
+		if (remoteSystems.isEmpty()) {
+			return List.of();
+		}
+		final ExecutorService threadPool = Executors.newFixedThreadPool(Math.min(parallelism, remoteSystems.size()));
+		try {
+			final List<Future<Result>> futures = new ArrayList<>(remoteSystems.size());
+			for (final RemoteSystem remoteSystem : remoteSystems) {
+				futures.add(threadPool.submit(() -> sync(remoteSystem)));
+			}
+			final List<Result> results = new ArrayList<>(remoteSystems.size());
+			for (int i = 0; i < futures.size(); ++i) {
+				results.add(await(remoteSystems.get(i), futures.get(i)));
+			}
+			return results;
+		} finally {
+			threadPool.shutdownNow();
+		}
+	}
+
+	private Result sync(final RemoteSystem remoteSystem) {
+		final Instant now = Instant.now();
+		boolean fullSync = false;
+		try {
+			final DbToModuleSync sync = syncFactory.apply(remoteSystem);
+			fullSync = fullSyncSchedule.isFullSyncDue(remoteSystem, sync.rankRoleTable(), now);
+			final Result result;
+			if (fullSync) {
+				// Inactivity is counted in days, so it is enough to delete inactive users with the full sync
+				final int numDeletedUsers = sync.deleteInactiveUsers();
+				final int numChangedUsers = sync.syncToModule();
+				fullSyncSchedule.fullSyncDone(remoteSystem, sync.rankRoleTable(), now);
+				result = new Result(remoteSystem, true, numChangedUsers, numDeletedUsers, null);
+			} else {
+				result = new Result(remoteSystem, false, sync.syncChangedUsers(), 0, null);
+			}
+			statistics.increment(fullSync ? "sync.module.full" : "sync.module.incremental");
+			statistics.increment("sync.module.succeeded");
+			return result;
+		} catch (RuntimeException e) {
+			log.error("Cant sync remote system " + remoteSystem, e);
+			statistics.increment("sync.module.failed");
+			return new Result(remoteSystem, fullSync, 0, 0, e);
+		}
+	}
+
+	private Result await(final RemoteSystem remoteSystem, final Future<Result> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new Result(remoteSystem, false, 0, 0, e);
+		} catch (ExecutionException e) {
+			// Errors, sync catches all RuntimeExceptions
+			log.error("Cant sync remote system " + remoteSystem, e.getCause());
+			statistics.increment("sync.module.failed");
+			return new Result(remoteSystem, false, 0, 0, e.getCause());
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package eu._4fh.wowsync.sync;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.sync.BattleNetToDbSync.RequestExecutionFailure;
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.Statistics;
+
+/**
+ * Two stage pipeline: maxInFlight fetch workers execute the requests on a thread pool and put the results into a
+ * bounded queue. The calling thread is the writer, it takes up to maxBatchSize results at once from the queue and hands
+ * them to the handler, so everything that touches the database stays on the thread that owns the transaction. When
+ * the writer falls behind, the queue fills up and the fetch workers wait before they start the next request.
+ */
+@DefaultAnnotation(NonNull.class)
+/*package*/ class ParallelRequests<I, R> {
+	@FunctionalInterface
+	/*package*/ interface Request<I, R> {
+		R execute(I input) throws RequestExecutionFailure;
+	}
+
+	/*package*/ interface ResultHandler<I, R> {
+		void onResult(I input, R result);
+
+		void onFailure(I input, RequestExecutionFailure failure);
+
+		/**
+		 * Called after every batch of results and failures, a good place to commit.
+		 */
+		default void onBatchDone() {
+		}
+	}
+
+	private static class Outcome<I, R> {
+		private final I input;
+		private final @CheckForNull R result;
+		private final @CheckForNull RequestExecutionFailure failure;
+		private final @CheckForNull Throwable unexpected;
+
+		private Outcome(final I input, final @CheckForNull R result,
+				final @CheckForNull RequestExecutionFailure failure, final @CheckForNull Throwable unexpected) {
+			this.input = input;
+			this.result = result;
+			this.failure = failure;
+			this.unexpected = unexpected;
+		}
+	}
+
+	private static final long WORKER_CHECK_MILLIS = 1000;
+	// The queues of the running executions per name, so every gauge is registered once
+	private static final Map<String, AtomicReference<BlockingQueue<?>>> currentQueues = new ConcurrentHashMap<>();
+
+	private final Statistics statistics;
+	private final String name;
+	private final AtomicReference<BlockingQueue<?>> currentQueue;
+	private final ExecutorService threadPool;
+	private final int maxInFlight;
+	private final int queueCapacity;
+	private final int maxBatchSize;
+
+	/**
+	 * @param name Used for the metrics sync.&lt;name&gt;.*
+	 */
+	/*package*/ ParallelRequests(final String name, final ExecutorService threadPool, final int maxInFlight,
+			final int queueCapacity, final int maxBatchSize) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be at least 1, but is " + maxInFlight);
+		}
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("queueCapacity must be at least 1, but is " + queueCapacity);
+		}
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be at least 1, but is " + maxBatchSize);
+		}
+		this.statistics = Singletons.instance(Statistics.class);
+		this.name = name;
+		this.threadPool = threadPool;
+		this.maxInFlight = maxInFlight;
+		this.queueCapacity = queueCapacity;
+		this.maxBatchSize = maxBatchSize;
+		this.currentQueue = currentQueues.computeIfAbsent(name, n -> {
+			final AtomicReference<BlockingQueue<?>> queue = new AtomicReference<>();
+			statistics.registerGauge(metricName("queue-depth"), () -> {
+				final @CheckForNull BlockingQueue<?> current = queue.get();
+				return current == null ? 0 : current.size();
+			});
+			return queue;
+		});
+	}
+
+	private String metricName(final String metric) {
+		return "sync." + name + "." + metric;
+	}
+
+	/*package*/ void execute(final Collection<I> inputs, final Request<I, R> request,
+			final ResultHandler<I, R> handler) {
+		final Iterator<I> inputIt = inputs.iterator();
+		final BlockingQueue<Outcome<I, R>> queue = new ArrayBlockingQueue<>(queueCapacity);
+		currentQueue.set(queue);
+		final int numWorkers = Math.min(maxInFlight, inputs.size());
+		final List<Future<?>> workers = new ArrayList<>(numWorkers);
+		try {
+			for (int i = 0; i < numWorkers; ++i) {
+				workers.add(threadPool.submit(() -> fetch(inputIt, request, queue)));
+			}
+			write(inputs.size(), queue, workers, handler);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for requests", e);
+		} finally {
+			// Only does something if the writer failed, then the workers may wait for space in the queue
+			workers.forEach(worker -> worker.cancel(true));
+			currentQueue.compareAndSet(queue, null);
+		}
+	}
+
+	private void write(final int numInputs, final BlockingQueue<Outcome<I, R>> queue, final List<Future<?>> workers,
+			final ResultHandler<I, R> handler) throws InterruptedException {
+		final List<Outcome<I, R>> batch = new ArrayList<>(maxBatchSize);
+		int remaining = numInputs;
+		while (remaining > 0) {
+			final @CheckForNull Outcome<I, R> first = queue.poll(WORKER_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+			if (first == null) {
+				checkWorkers(queue, workers, remaining);
+				continue;
+			}
+			batch.add(first);
+			queue.drainTo(batch, maxBatchSize - 1);
+			final long start = System.nanoTime();
+			for (final Outcome<I, R> outcome : batch) {
+				if (outcome.unexpected != null) {
+					throw new IllegalStateException("Unexpected failure while executing request", outcome.unexpected);
+				} else if (outcome.failure != null) {
+					handler.onFailure(outcome.input, outcome.failure);
+				} else {
+					handler.onResult(outcome.input, outcome.result);
+				}
+			}
+			handler.onBatchDone();
+			statistics.add(metricName("written"), batch.size());
+			statistics.increment(metricName("batches"));
+			statistics.add(metricName("write-millis"), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			remaining -= batch.size();
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Fails if a worker died, otherwise the writer would wait forever for its results.
+	 */
+	private static void checkWorkers(final BlockingQueue<?> queue, final List<Future<?>> workers,
+			final int remaining) throws InterruptedException {
+		boolean allDone = true;
+		for (final Future<?> worker : workers) {
+			if (!worker.isDone()) {
+				allDone = false;
+			} else if (!worker.isCancelled()) {
+				try {
+					worker.get();
+				} catch (ExecutionException e) {
+					throw new IllegalStateException("Worker failed while executing requests", e.getCause());
+				}
+			}
+		}
+		// The workers put their last outcome into the queue before they are done
+		if (allDone && queue.isEmpty()) {
+			throw new IllegalStateException("All workers are done, but " + remaining + " results are missing");
+		}
+	}
+
+	private @CheckForNull Void fetch(final Iterator<I> inputIt, final Request<I, R> request,
+			final BlockingQueue<Outcome<I, R>> queue) throws InterruptedException {
+		@CheckForNull
+		I input;
+		while ((input = next(inputIt)) != null) {
+			final long start = System.nanoTime();
+			Outcome<I, R> outcome;
+			try {
+				outcome = new Outcome<>(input, request.execute(input), null, null);
+			} catch (RequestExecutionFailure e) {
+				outcome = new Outcome<>(input, null, e, null);
+			} catch (RuntimeException | Error e) {
+				outcome = new Outcome<>(input, null, null, e);
+			}
+			final long fetched = System.nanoTime();
+			queue.put(outcome);
+			statistics.increment(metricName("fetched"));
+			statistics.add(metricName("fetch-millis"), TimeUnit.NANOSECONDS.toMillis(fetched - start));
+			statistics.add(metricName("backpressure-millis"),
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - fetched));
+		}
+		return null;
+	}
+
+	private static @CheckForNull <I> I next(final Iterator<I> inputIt) {
+		synchronized (inputIt) {
+			return inputIt.hasNext() ? inputIt.next() : null;
+		}
+	}
+}
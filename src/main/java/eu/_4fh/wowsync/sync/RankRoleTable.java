@@ -0,0 +1,154 @@
+package eu._4fh.wowsync.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.database.data.RemoteSystem;
+import eu._4fh.wowsync.database.data.RemoteSystemRankToGroup;
+import eu._4fh.wowsync.util.Range;
+
+/**
+ * The rank to group mapping of one remote system, compiled into one bitmask of roles per possible rank. Every managed
+ * role (the member group and the groups of the rank ranges) gets a bit, so expected, actual, added and removed roles
+ * of a user are plain longs. Role names are only created again for the {@link eu._4fh.wowsync.modules.Module}.
+ */
+@DefaultAnnotation(NonNull.class)
+/*package*/ class RankRoleTable {
+	private static final int MAX_ROLES = Long.SIZE;
+
+	private final List<RemoteSystemRankToGroup> source;
+	private final String memberGroup;
+	private final @CheckForNull String formerMemberGroup;
+	private final String[] roleNames;
+	private final Map<String, Integer> roleIds;
+	private final Set<String> allRoles;
+	// Indexed by rank & 0xFF
+	private final long[] rankMasks = new long[256];
+	private final byte maxConfiguredRank;
+
+	/*package*/ RankRoleTable(final RemoteSystem remoteSystem, final List<RemoteSystemRankToGroup> rankToGroups) {
+		this.source = rankToGroups;
+		this.memberGroup = remoteSystem.memberGroup;
+		this.formerMemberGroup = remoteSystem.formerMemberGroup;
+
+		final List<String> names = new ArrayList<>();
+		final Map<String, Integer> ids = new HashMap<>();
+		names.add(memberGroup);
+		ids.put(memberGroup, 0);
+		for (final RemoteSystemRankToGroup rankToGroup : rankToGroups) {
+			if (!ids.containsKey(rankToGroup.groupName())) {
+				ids.put(rankToGroup.groupName(), names.size());
+				names.add(rankToGroup.groupName());
+			}
+		}
+		if (names.size() > MAX_ROLES) {
+			throw new IllegalStateException("Remote system " + remoteSystem.id + " has " + names.size()
+					+ " managed roles, only " + MAX_ROLES + " are supported");
+		}
+		roleNames = names.toArray(new String[0]);
+		roleIds = Collections.unmodifiableMap(ids);
+		allRoles = Collections.unmodifiableSet(new HashSet<>(names));
+
+		byte maxRank = -1;
+		for (final RemoteSystemRankToGroup rankToGroup : rankToGroups) {
+			maxRank = (byte) Math.max(maxRank, rankToGroup.getGuildRankTo());
+		}
+		maxConfiguredRank = maxRank;
+		// Every rank gets the member group, it has the role id 0
+		Arrays.fill(rankMasks, 1L);
+		for (final RemoteSystemRankToGroup rankToGroup : rankToGroups) {
+			final Range<Byte> range = new Range<>(rankToGroup.guildRankFrom(), rankToGroup.getGuildRankTo());
+			final long groupMask = 1L << roleIds.get(rankToGroup.groupName());
+			// Guild ranks are never negative
+			for (int rank = 0; rank <= maxConfiguredRank; ++rank) {
+				if (range.fits((byte) rank)) {
+					rankMasks[rank] |= groupMask;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if this table was compiled from exactly these (cached) rank to group entries and the member groups
+	 *         didnt change.
+	 */
+	/*package*/ boolean isCompiledFrom(final RemoteSystem remoteSystem,
+			final List<RemoteSystemRankToGroup> rankToGroups) {
+		return source == rankToGroups && memberGroup.equals(remoteSystem.memberGroup)
+				&& Objects.equals(formerMemberGroup, remoteSystem.formerMemberGroup);
+	}
+
+	/**
+	 * @return true if both tables expect the same roles for every rank, even if they were compiled from different
+	 *         entries.
+	 */
+	/*package*/ boolean hasSameRoles(final RankRoleTable other) {
+		return Arrays.equals(roleNames, other.roleNames) && Arrays.equals(rankMasks, other.rankMasks)
+				&& Objects.equals(formerMemberGroup, other.formerMemberGroup);
+	}
+
+	/*package*/ long maskForRank(final byte rank) {
+		return rankMasks[rank & 0xFF];
+	}
+
+	/*package*/ long maskForRanks(final Collection<Byte> ranks) {
+		long mask = 0;
+		for (final Byte rank : ranks) {
+			mask |= rankMasks[rank & 0xFF];
+		}
+		return mask;
+	}
+
+	/**
+	 * Roles that are not managed by us dont have a bit and are ignored.
+	 */
+	/*package*/ long maskForRoles(final Collection<String> roles) {
+		long mask = 0;
+		for (final String role : roles) {
+			final @CheckForNull Integer roleId = roleIds.get(role);
+			if (roleId != null) {
+				mask |= 1L << roleId;
+			}
+		}
+		return mask;
+	}
+
+	/*package*/ Set<String> names(final long mask) {
+		final Set<String> result = new HashSet<>(Long.bitCount(mask) * 2);
+		long remaining = mask;
+		while (remaining != 0) {
+			result.add(roleNames[Long.numberOfTrailingZeros(remaining)]);
+			remaining &= remaining - 1;
+		}
+		return result;
+	}
+
+	/**
+	 * All managed roles: the member group and all groups of the rank ranges.
+	 */
+	/*package*/ Set<String> allRoles() {
+		return allRoles;
+	}
+
+	/**
+	 * @return The roles of all configured ranks, empty if there is no rank to group entry.
+	 */
+	/*package for test*/ Map<Byte, Set<String>> toRankToGroupsMap() {
+		final Map<Byte, Set<String>> result = new HashMap<>();
+		for (int rank = 0; rank <= maxConfiguredRank; ++rank) {
+			result.put((byte) rank, Collections.unmodifiableSet(names(rankMasks[rank])));
+		}
+		return Collections.unmodifiableMap(result);
+	}
+}
@@ -0,0 +1,44 @@
+package eu._4fh.wowsync.sync;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.database.Db;
+import eu._4fh.wowsync.database.data.RemoteSystem;
+import eu._4fh.wowsync.database.data.RemoteSystemRankToGroup;
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.Statistics;
+
+/**
+ * Keeps the compiled {@link RankRoleTable} of every remote system across {@link DbToModuleSync} instances. A table is
+ * compiled again when the rank to group entries from the cache in {@link Db} are a new list, so expiry and
+ * invalidation of that cache also apply here.
+ */
+@DefaultAnnotation(NonNull.class)
+/*package*/ class RankRoleTables {
+	private final Db db;
+	private final Statistics statistics;
+	private final Map<Long, RankRoleTable> tables = new ConcurrentHashMap<>();
+
+	private RankRoleTables() {
+		db = Singletons.instance(Db.class);
+		statistics = Singletons.instance(Statistics.class);
+	}
+
+	/*package*/ RankRoleTable get(final RemoteSystem remoteSystem) {
+		final List<RemoteSystemRankToGroup> rankToGroups = db.remoteSystemRankToGroup.byRemoteSystem(remoteSystem);
+		final @CheckForNull RankRoleTable table = tables.get(remoteSystem.id);
+		if (table != null && table.isCompiledFrom(remoteSystem, rankToGroups)) {
+			statistics.increment("sync.rank-role-table.reused");
+			return table;
+		}
+		statistics.increment("sync.rank-role-table.compiled");
+		final RankRoleTable newTable = new RankRoleTable(remoteSystem, rankToGroups);
+		tables.put(remoteSystem.id, newTable);
+		return newTable;
+	}
+}
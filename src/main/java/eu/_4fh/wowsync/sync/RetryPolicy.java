@@ -0,0 +1,54 @@
+package eu._4fh.wowsync.sync;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.LoggerFactory;
+
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.sync.BattleNetToDbSync.RequestExecutionFailure;
+
+@DefaultAnnotation(NonNull.class)
+/*package*/ interface RetryPolicy {
+	@FunctionalInterface
+	/*package*/ interface Attempt<R> {
+		R execute() throws Exception;
+	}
+
+	/**
+	 * @param failedTries How often the request failed, including this failure.
+	 * @return Milliseconds to wait before the next try. A negative value when the request must not be tried again.
+	 */
+	long retryDelayMillis(int failedTries, Throwable failure);
+
+	/**
+	 * Runs the attempt until it succeeds or the policy gives up. A {@link RequestExecutionFailure} thrown by the
+	 * attempt itself is passed on without retrying.
+	 */
+	default <R> R execute(final String description, final Attempt<R> attempt) throws RequestExecutionFailure {
+		int failedTries = 0;
+		while (true) {
+			final Exception failure;
+			try {
+				return attempt.execute();
+			} catch (RequestExecutionFailure e) {
+				throw e;
+			} catch (Exception e) {
+				failure = e;
+			}
+			failedTries++;
+			final long delayMillis = retryDelayMillis(failedTries, failure);
+			LoggerFactory.getLogger(getClass()).debug("Cant execute " + description + ". Try " + failedTries
+					+ ", retry " + (delayMillis >= 0 ? "in " + delayMillis + "ms" : "false"), failure);
+			if (delayMillis < 0) {
+				throw new RequestExecutionFailure(failure);
+			}
+			try {
+				TimeUnit.MILLISECONDS.sleep(delayMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RequestExecutionFailure(failure);
+			}
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package eu._4fh.wowsync.sync;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.abstract_bnet_api.restclient.data.BattleNetWowCharacter;
+
+/**
+ * Compact hash over all fields of a character list that end up in the database. The order of the list doesnt matter.
+ */
+@DefaultAnnotation(NonNull.class)
+/*package*/ class RosterFingerprint {
+	private RosterFingerprint() {
+	}
+
+	/*package*/ static long of(final Collection<BattleNetWowCharacter> characters) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		final List<BattleNetWowCharacter> sorted = characters.stream()
+				.sorted(Comparator.comparingLong(c -> c.id)).collect(Collectors.toList());
+		final ByteBuffer numbers = ByteBuffer.allocate(Long.BYTES + 1);
+		for (final BattleNetWowCharacter character : sorted) {
+			numbers.clear();
+			numbers.putLong(character.id);
+			// -1 is no valid rank, so it cant be confused with an existing rank
+			numbers.put(character.guildRank == null ? (byte) -1 : character.guildRank);
+			digest.update(numbers.array());
+			digest.update(String.valueOf(character.name).getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+			digest.update(String.valueOf(character.realmSlug).getBytes(StandardCharsets.UTF_8));
+			digest.update((byte) 0);
+		}
+		return ByteBuffer.wrap(digest.digest()).getLong();
+	}
+}
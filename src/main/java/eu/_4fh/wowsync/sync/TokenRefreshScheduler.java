@@ -0,0 +1,113 @@
+package eu._4fh.wowsync.sync;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.util.Config;
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.Statistics;
+
+/**
+ * Chooses the user tokens that are refreshed in a run. Tokens that were not refreshed within the max age come first,
+ * then tokens of accounts with characters in our guilds, then the tokens with the oldest refresh. A token only tells
+ * us its account after the first refresh, so tokens we have not seen since the start count as overdue.
+ */
+@DefaultAnnotation(NonNull.class)
+/*package*/ class TokenRefreshScheduler {
+	private static final long UNKNOWN_BNET_ID = -1;
+
+	private static class ClientState {
+		private long bnetId = UNKNOWN_BNET_ID;
+		private Instant lastAttempt = Instant.MIN;
+	}
+
+	private static class Candidate<C> {
+		private final C client;
+		private final boolean overdue;
+		private final boolean tracked;
+		private final Instant lastAttempt;
+
+		private Candidate(final C client, final boolean overdue, final boolean tracked, final Instant lastAttempt) {
+			this.client = client;
+			this.overdue = overdue;
+			this.tracked = tracked;
+			this.lastAttempt = lastAttempt;
+		}
+	}
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+	private final Statistics statistics;
+	private final int refreshesPerRun;
+	private final Duration maxAge;
+	private final Map<Object, ClientState> states = new WeakHashMap<>();
+
+	private TokenRefreshScheduler() {
+		this(Singletons.instance(Config.class).tokenRefreshesPerRun,
+				Duration.ofHours(Singletons.instance(Config.class).tokenMaxAgeHours));
+	}
+
+	/**
+	 * @param refreshesPerRun 0 refreshes every token in every run.
+	 */
+	/*package for test*/ TokenRefreshScheduler(final int refreshesPerRun, final Duration maxAge) {
+		this.statistics = Singletons.instance(Statistics.class);
+		this.refreshesPerRun = refreshesPerRun;
+		this.maxAge = maxAge;
+		statistics.add("bnet.token-refresh.selected", 0);
+		statistics.add("bnet.token-refresh.deferred", 0);
+		statistics.add("bnet.token-refresh.overdue-deferred", 0);
+	}
+
+	/**
+	 * @param trackedBnetIds Accounts that have characters in one of our guilds.
+	 * @return The clients to refresh in this run, most important first.
+	 */
+	/*package*/ synchronized <C> List<C> select(final List<C> clients, final Set<Long> trackedBnetIds,
+			final Instant now) {
+		final Instant overdueBefore = now.minus(maxAge);
+		final List<Candidate<C>> candidates = new ArrayList<>(clients.size());
+		for (final C client : clients) {
+			final ClientState state = states.computeIfAbsent(client, c -> new ClientState());
+			candidates.add(new Candidate<>(client, !state.lastAttempt.isAfter(overdueBefore),
+					trackedBnetIds.contains(state.bnetId), state.lastAttempt));
+		}
+		candidates.sort(Comparator.<Candidate<C>, Boolean>comparing(c -> !c.overdue)
+				.thenComparing(c -> !c.tracked).thenComparing(c -> c.lastAttempt));
+
+		final int numSelected = refreshesPerRun <= 0 ? candidates.size() : Math.min(refreshesPerRun, candidates.size());
+		final long numOverdue = candidates.stream().filter(c -> c.overdue).count();
+		if (numOverdue > numSelected) {
+			statistics.add("bnet.token-refresh.overdue-deferred", numOverdue - numSelected);
+			log.warn("{} tokens were not refreshed within {}h, but only {} are refreshed per run", numOverdue,
+					maxAge.toHours(), numSelected);
+		}
+		statistics.add("bnet.token-refresh.selected", numSelected);
+		statistics.add("bnet.token-refresh.deferred", candidates.size() - numSelected);
+		return candidates.subList(0, numSelected).stream().map(c -> c.client).collect(Collectors.toList());
+	}
+
+	/*package*/ synchronized void refreshed(final Object client, final long bnetId, final Instant now) {
+		final ClientState state = states.computeIfAbsent(client, c -> new ClientState());
+		state.bnetId = bnetId;
+		state.lastAttempt = now;
+	}
+
+	/**
+	 * Failed tokens move to the end of the queue, so they dont block the other tokens.
+	 */
+	/*package*/ synchronized void failed(final Object client, final Instant now) {
+		states.computeIfAbsent(client, c -> new ClientState()).lastAttempt = now;
+	}
+}
@@ -0,0 +1,104 @@
+package eu._4fh.wowsync.util;
+
+import java.util.Arrays;
+
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Thread safe set of primitive longs with open addressing and linear probing. Adding and testing doesnt box and
+ * doesnt allocate, only growing the table does. 0 is used to mark empty slots and cant be added. Discord and Battle.net
+ * ids are never 0.
+ */
+@DefaultAnnotation(NonNull.class)
+public class ConcurrentLongSet {
+	private static final float MAX_LOAD = 0.5f;
+
+	private long[] table;
+	private int size = 0;
+
+	/**
+	 * @param expectedSize Number of elements that fit without growing the table.
+	 */
+	public ConcurrentLongSet(final int expectedSize) {
+		if (expectedSize < 0) {
+			throw new IllegalArgumentException("expectedSize must not be negative, but is " + expectedSize);
+		}
+		table = new long[tableSizeFor(expectedSize)];
+	}
+
+	private static int tableSizeFor(final int numElements) {
+		final int minSize = Math.max(8, (int) Math.ceil(numElements / MAX_LOAD));
+		return Integer.highestOneBit(minSize - 1) << 1;
+	}
+
+	private static int slot(final long value, final int mask) {
+		// The low bits of snowflake ids are mostly 0, so the bits are mixed before masking
+		final long hash = value * 0x9E3779B97F4A7C15L;
+		return (int) (hash ^ (hash >>> 32)) & mask;
+	}
+
+	/**
+	 * @return true if the value was not in the set before.
+	 */
+	public synchronized boolean add(final long value) {
+		if (value == 0) {
+			throw new IllegalArgumentException("0 cant be added");
+		}
+		final int mask = table.length - 1;
+		int index = slot(value, mask);
+		while (table[index] != 0) {
+			if (table[index] == value) {
+				return false;
+			}
+			index = (index + 1) & mask;
+		}
+		table[index] = value;
+		if (++size > table.length * MAX_LOAD) {
+			grow();
+		}
+		return true;
+	}
+
+	public synchronized boolean contains(final long value) {
+		if (value == 0) {
+			return false;
+		}
+		final int mask = table.length - 1;
+		int index = slot(value, mask);
+		while (table[index] != 0) {
+			if (table[index] == value) {
+				return true;
+			}
+			index = (index + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * Keeps the capacity, so the next filling doesnt grow the table again.
+	 */
+	public synchronized void clear() {
+		Arrays.fill(table, 0);
+		size = 0;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private void grow() {
+		final long[] oldTable = table;
+		table = new long[oldTable.length * 2];
+		final int mask = table.length - 1;
+		for (final long value : oldTable) {
+			if (value != 0) {
+				int index = slot(value, mask);
+				while (table[index] != 0) {
+					index = (index + 1) & mask;
+				}
+				table[index] = value;
+			}
+		}
+	}
+}
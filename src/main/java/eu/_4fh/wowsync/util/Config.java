@@ -38,8 +38,11 @@ import eu._4fh.wowsync.database.data.Character;
 import eu._4fh.wowsync.database.data.DiscordOnlineUser;
 import eu._4fh.wowsync.database.data.DiscordSettings;
 import eu._4fh.wowsync.database.data.Guild;
+import eu._4fh.wowsync.database.data.GuildRosterState;
 import eu._4fh.wowsync.database.data.RemoteSystem;
 import eu._4fh.wowsync.database.data.RemoteSystemRankToGroup;
+import eu._4fh.wowsync.database.data.RoleSyncDirtyEntry;
+import eu._4fh.wowsync.database.data.RosterStagingEntry;
 import jakarta.persistence.EntityManagerFactory;
 
 @DefaultAnnotation(NonNull.class)
@@ -59,8 +62,35 @@ public class Config implements ClosableSingleton {
 	public final URI rootUri;
 	public final String cssStyle;
 	public final byte bnetNumRequestRetries;
+	public final byte bnetParallelGuildRequests;
+	public final byte bnetParallelUserRequests;
+	public final short bnetRequestsPerSecond;
+	public final int bnetRequestsPerHour;
+	public final byte bnetInteractiveReservedPercent;
+	public final short bnetMaxRateLimitWaitSeconds;
+	public final long bnetRetryBaseDelayMillis;
+	public final long bnetRetryMaxDelayMillis;
+	public final long bnetRetryThrottledDelayMillis;
+	public final short bnetCircuitBreakerFailures;
 	public final short keepNewAccountsWithoutGuildsForDays;
 	public final short keepCharactersWithAccountButWithoutGuildForDays;
+	public final boolean rosterMergeWithStagingTable;
+	public final short accountsPerTransaction;
+	public final short guildsPerTransaction;
+	public final short syncWriteQueueSize;
+	public final int tokenRefreshesPerRun;
+	public final short tokenMaxAgeHours;
+	public final byte parallelRemoteSystems;
+	public final short fullRoleSyncEveryHours;
+	public final short roleSyncPageSize;
+	public final short configCacheTtlSeconds;
+	public final short configCacheMaxSize;
+	public final short discordOnlineUsersFlushSeconds;
+	public final short discordMemberIndexReconcileMinutes;
+	public final short discordMutationIntervalMillis;
+	public final short discordMutationsInFlight;
+	public final short discordMutationBatchQueueSize;
+	public final short discordMutationTimeoutSeconds;
 
 	@CreatesObligation
 	private Config() {
@@ -102,6 +132,56 @@ public class Config implements ClosableSingleton {
 			throw new IllegalStateException(
 					"Invalid value for bnet.rest.num-retries: " + bnetNumRequestRetries + " < 1");
 		}
+		bnetParallelGuildRequests = Byte.parseByte(nonNull(main, "bnet.rest.parallel-guild-requests"));
+		if (bnetParallelGuildRequests < 1) {
+			throw new IllegalStateException(
+					"Invalid value for bnet.rest.parallel-guild-requests: " + bnetParallelGuildRequests + " < 1");
+		}
+		bnetParallelUserRequests = Byte.parseByte(nonNull(main, "bnet.rest.parallel-user-requests"));
+		if (bnetParallelUserRequests < 1) {
+			throw new IllegalStateException(
+					"Invalid value for bnet.rest.parallel-user-requests: " + bnetParallelUserRequests + " < 1");
+		}
+		bnetRequestsPerSecond = Short.parseShort(nonNull(main, "bnet.rest.requests-per-second"));
+		if (bnetRequestsPerSecond < 1) {
+			throw new IllegalStateException(
+					"Invalid value for bnet.rest.requests-per-second: " + bnetRequestsPerSecond + " < 1");
+		}
+		bnetRequestsPerHour = Integer.parseInt(nonNull(main, "bnet.rest.requests-per-hour"));
+		if (bnetRequestsPerHour < 1) {
+			throw new IllegalStateException(
+					"Invalid value for bnet.rest.requests-per-hour: " + bnetRequestsPerHour + " < 1");
+		}
+		bnetInteractiveReservedPercent = Byte.parseByte(nonNull(main, "bnet.rest.interactive-reserved-percent"));
+		if (bnetInteractiveReservedPercent < 0 || bnetInteractiveReservedPercent > 90) {
+			throw new IllegalStateException("Invalid value for bnet.rest.interactive-reserved-percent: "
+					+ bnetInteractiveReservedPercent + " not in 0-90");
+		}
+		bnetMaxRateLimitWaitSeconds = Short.parseShort(nonNull(main, "bnet.rest.max-rate-limit-wait-seconds"));
+		if (bnetMaxRateLimitWaitSeconds < 1) {
+			throw new IllegalStateException("Invalid value for bnet.rest.max-rate-limit-wait-seconds: "
+					+ bnetMaxRateLimitWaitSeconds + " < 1");
+		}
+		bnetRetryBaseDelayMillis = Long.parseLong(nonNull(main, "bnet.rest.retry-base-delay-millis"));
+		if (bnetRetryBaseDelayMillis < 1) {
+			throw new IllegalStateException(
+					"Invalid value for bnet.rest.retry-base-delay-millis: " + bnetRetryBaseDelayMillis + " < 1");
+		}
+		bnetRetryMaxDelayMillis = Long.parseLong(nonNull(main, "bnet.rest.retry-max-delay-millis"));
+		if (bnetRetryMaxDelayMillis < bnetRetryBaseDelayMillis) {
+			throw new IllegalStateException("Invalid value for bnet.rest.retry-max-delay-millis: "
+					+ bnetRetryMaxDelayMillis + " < " + bnetRetryBaseDelayMillis);
+		}
+		bnetRetryThrottledDelayMillis = Long.parseLong(nonNull(main, "bnet.rest.retry-throttled-delay-millis"));
+		if (bnetRetryThrottledDelayMillis < 0) {
+			throw new IllegalStateException("Invalid value for bnet.rest.retry-throttled-delay-millis: "
+					+ bnetRetryThrottledDelayMillis + " < 0");
+		}
+		bnetCircuitBreakerFailures = Short.parseShort(nonNull(main, "bnet.rest.circuit-breaker-failures"));
+		if (bnetCircuitBreakerFailures < 1) {
+			throw new IllegalStateException(
+					"Invalid value for bnet.rest.circuit-breaker-failures: " + bnetCircuitBreakerFailures + " < 1");
+		}
 		keepNewAccountsWithoutGuildsForDays = Short
 				.parseShort(nonNull(main, "eu._4fh.wowsync.sync.keepNewAccountsWithoutGuildsForDays"));
 		if (keepNewAccountsWithoutGuildsForDays < 1) {
@@ -116,8 +196,90 @@ public class Config implements ClosableSingleton {
 					"Invalid value for eu._4fh.wowsync.sync.keepCharactersWithAccountButWithoutGuildForDays "
 							+ keepCharactersWithAccountButWithoutGuildForDays + " < 1");
 		}
+		rosterMergeWithStagingTable = Boolean
+				.parseBoolean(nonNull(main, "eu._4fh.wowsync.sync.rosterMergeWithStagingTable"));
+		accountsPerTransaction = Short.parseShort(nonNull(main, "eu._4fh.wowsync.sync.accountsPerTransaction"));
+		if (accountsPerTransaction < 1) {
+			throw new IllegalStateException(
+					"Invalid value for eu._4fh.wowsync.sync.accountsPerTransaction " + accountsPerTransaction + " < 1");
+		}
+		guildsPerTransaction = Short.parseShort(nonNull(main, "eu._4fh.wowsync.sync.guildsPerTransaction"));
+		if (guildsPerTransaction < 1) {
+			throw new IllegalStateException(
+					"Invalid value for eu._4fh.wowsync.sync.guildsPerTransaction " + guildsPerTransaction + " < 1");
+		}
+		syncWriteQueueSize = Short.parseShort(nonNull(main, "eu._4fh.wowsync.sync.writeQueueSize"));
+		if (syncWriteQueueSize < 1) {
+			throw new IllegalStateException(
+					"Invalid value for eu._4fh.wowsync.sync.writeQueueSize " + syncWriteQueueSize + " < 1");
+		}
+		tokenRefreshesPerRun = Integer.parseInt(nonNull(main, "eu._4fh.wowsync.sync.tokenRefreshesPerRun"));
+		if (tokenRefreshesPerRun < 0) {
+			throw new IllegalStateException(
+					"Invalid value for eu._4fh.wowsync.sync.tokenRefreshesPerRun " + tokenRefreshesPerRun + " < 0");
+		}
+		tokenMaxAgeHours = Short.parseShort(nonNull(main, "eu._4fh.wowsync.sync.tokenMaxAgeHours"));
+		if (tokenMaxAgeHours < 1) {
+			throw new IllegalStateException(
+					"Invalid value for eu._4fh.wowsync.sync.tokenMaxAgeHours " + tokenMaxAgeHours + " < 1");
+		}
+		parallelRemoteSystems = Byte.parseByte(nonNull(main, "eu._4fh.wowsync.sync.parallelRemoteSystems"));
+		if (parallelRemoteSystems < 1) {
+			throw new IllegalStateException(
+					"Invalid value for eu._4fh.wowsync.sync.parallelRemoteSystems " + parallelRemoteSystems + " < 1");
+		}
+		fullRoleSyncEveryHours = Short.parseShort(nonNull(main, "eu._4fh.wowsync.sync.fullRoleSyncEveryHours"));
+		if (fullRoleSyncEveryHours < 0) {
+			throw new IllegalStateException(
+					"Invalid value for eu._4fh.wowsync.sync.fullRoleSyncEveryHours " + fullRoleSyncEveryHours + " < 0");
+		}
+		roleSyncPageSize = Short.parseShort(nonNull(main, "eu._4fh.wowsync.sync.roleSyncPageSize"));
+		if (roleSyncPageSize < 1) {
+			throw new IllegalStateException(
+					"Invalid value for eu._4fh.wowsync.sync.roleSyncPageSize " + roleSyncPageSize + " < 1");
+		}
+		configCacheTtlSeconds = Short.parseShort(nonNull(main, "eu._4fh.wowsync.database.configCacheTtlSeconds"));
+		if (configCacheTtlSeconds < 0) {
+			throw new IllegalStateException("Invalid value for eu._4fh.wowsync.database.configCacheTtlSeconds "
+					+ configCacheTtlSeconds + " < 0");
+		}
+		configCacheMaxSize = Short.parseShort(nonNull(main, "eu._4fh.wowsync.database.configCacheMaxSize"));
+		if (configCacheMaxSize < 1) {
+			throw new IllegalStateException(
+					"Invalid value for eu._4fh.wowsync.database.configCacheMaxSize " + configCacheMaxSize + " < 1");
+		}
 
 		discordToken = nonNull(main, "discord.token");
+		discordOnlineUsersFlushSeconds = Short.parseShort(nonNull(main, "discord.onlineUsersFlushSeconds"));
+		if (discordOnlineUsersFlushSeconds < 1) {
+			throw new IllegalStateException(
+					"Invalid value for discord.onlineUsersFlushSeconds " + discordOnlineUsersFlushSeconds + " < 1");
+		}
+		discordMemberIndexReconcileMinutes = Short.parseShort(nonNull(main, "discord.memberIndexReconcileMinutes"));
+		if (discordMemberIndexReconcileMinutes < 1) {
+			throw new IllegalStateException("Invalid value for discord.memberIndexReconcileMinutes "
+					+ discordMemberIndexReconcileMinutes + " < 1");
+		}
+		discordMutationIntervalMillis = Short.parseShort(nonNull(main, "discord.mutationIntervalMillis"));
+		if (discordMutationIntervalMillis < 0) {
+			throw new IllegalStateException(
+					"Invalid value for discord.mutationIntervalMillis " + discordMutationIntervalMillis + " < 0");
+		}
+		discordMutationsInFlight = Short.parseShort(nonNull(main, "discord.mutationsInFlight"));
+		if (discordMutationsInFlight < 1) {
+			throw new IllegalStateException(
+					"Invalid value for discord.mutationsInFlight " + discordMutationsInFlight + " < 1");
+		}
+		discordMutationBatchQueueSize = Short.parseShort(nonNull(main, "discord.mutationBatchQueueSize"));
+		if (discordMutationBatchQueueSize < 1) {
+			throw new IllegalStateException(
+					"Invalid value for discord.mutationBatchQueueSize " + discordMutationBatchQueueSize + " < 1");
+		}
+		discordMutationTimeoutSeconds = Short.parseShort(nonNull(main, "discord.mutationTimeoutSeconds"));
+		if (discordMutationTimeoutSeconds < 1) {
+			throw new IllegalStateException(
+					"Invalid value for discord.mutationTimeoutSeconds " + discordMutationTimeoutSeconds + " < 1");
+		}
 
 		String rootUrlStr = nonNull(main, "rootUrl");
 		if (rootUrlStr.endsWith("/")) {
@@ -166,7 +328,8 @@ public class Config implements ClosableSingleton {
 			throw new RuntimeException(e);
 		}*/
 		return new Class<?>[] { Account.class, AccountRemoteId.class, Character.class, DiscordOnlineUser.class,
-				Guild.class, RemoteSystem.class, RemoteSystemRankToGroup.class, DiscordSettings.class };
+				Guild.class, RemoteSystem.class, RemoteSystemRankToGroup.class, DiscordSettings.class,
+				GuildRosterState.class, RosterStagingEntry.class, RoleSyncDirtyEntry.class };
 	}
 
 	private Properties readFile(final Path configDir, final String fileName) {
@@ -0,0 +1,47 @@
+package eu._4fh.wowsync.util;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Process wide counters and gauges. Counters only ever grow, gauges are read when a snapshot is taken.
+ */
+@DefaultAnnotation(NonNull.class)
+public class Statistics {
+	private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+	private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+	private Statistics() {
+	}
+
+	public void increment(final String name) {
+		add(name, 1);
+	}
+
+	public void add(final String name, final long value) {
+		counters.computeIfAbsent(name, n -> new LongAdder()).add(value);
+	}
+
+	public long get(final String name) {
+		final LongAdder counter = counters.get(name);
+		return counter == null ? 0 : counter.sum();
+	}
+
+	public void registerGauge(final String name, final LongSupplier gauge) {
+		gauges.put(name, gauge);
+	}
+
+	public SortedMap<String, Long> snapshot() {
+		final SortedMap<String, Long> result = new TreeMap<>();
+		counters.forEach((name, counter) -> result.put(name, counter.sum()));
+		gauges.forEach((name, gauge) -> result.put(name, gauge.getAsLong()));
+		return result;
+	}
+}
@@ -1,17 +1,24 @@
 package eu._4fh.wowsync.database;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.api.Assertions.entry;
 
 import java.security.Key;
 import java.time.Clock;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
+import org.hibernate.Hibernate;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.Test;
 
 import eu._4fh.abstract_bnet_api.oauth2.BattleNetRegion;
@@ -23,6 +30,8 @@ import eu._4fh.wowsync.database.data.DiscordOnlineUser;
 import eu._4fh.wowsync.database.data.Guild;
 import eu._4fh.wowsync.database.data.RemoteSystem;
 import eu._4fh.wowsync.database.data.RemoteSystem.RemoteSystemType;
+import eu._4fh.wowsync.database.data.RemoteSystemRankToGroup;
+import eu._4fh.wowsync.util.Config;
 import eu._4fh.wowsync.util.Singletons;
 import eu._4fh.wowsync.util.TestBase;
 
@@ -55,6 +64,62 @@ class DbTest implements TestBase {
 				entry(user3Id, today));
 	}
 
+	@Test
+	void testSetLastOnlineBatch() {
+		final long guildId = nextId();
+		final long otherGuildId = nextId();
+		final long user1Id = nextId();
+		final long user2Id = nextId();
+		final long user3Id = nextId();
+		final LocalDate today = LocalDate.now(Clock.systemUTC());
+		final LocalDate yesterday = today.minusDays(1);
+		final LocalDate tomorrow = today.plusDays(1);
+		try (TransCnt trans = db.createTransaction()) {
+			trans.em.persist(new DiscordOnlineUser(guildId, user1Id, "old1", yesterday));
+			trans.em.persist(new DiscordOnlineUser(guildId, user2Id, "old2", yesterday));
+			trans.em.persist(new DiscordOnlineUser(otherGuildId, user3Id, "other3", yesterday));
+			trans.commit();
+		}
+
+		db.discordOnlineUsers.updateLastOnline(guildId, Map.of(user2Id, "new2", user3Id, "new3"));
+
+		final Map<Long, DiscordOnlineUser> users = db.discordOnlineUsers.getLastOnlineBefore(guildId, tomorrow)
+				.stream().collect(Collectors.toMap(dou -> dou.memberId, dou -> dou));
+		assertThat(users).containsOnlyKeys(user1Id, user2Id, user3Id);
+		assertThat(users.get(user1Id).lastOnline).isEqualTo(yesterday);
+		assertThat(users.get(user2Id).lastOnline).isEqualTo(today);
+		assertThat(users.get(user2Id).memberName).as("Names of known members are kept").isEqualTo("old2");
+		assertThat(users.get(user3Id).lastOnline).isEqualTo(today);
+		assertThat(users.get(user3Id).memberName).isEqualTo("new3");
+		assertThat(db.discordOnlineUsers.getLastOnlineBefore(otherGuildId, tomorrow)).singleElement()
+				.satisfies(dou -> assertThat(dou.lastOnline).isEqualTo(yesterday));
+	}
+
+	@Test
+	void testSetLastOnlineMoreMembersThanOneChunk() {
+		final long guildId = nextId();
+		final LocalDate today = LocalDate.now(Clock.systemUTC());
+		final LocalDate yesterday = today.minusDays(1);
+		final Map<Long, String> memberNames = new HashMap<>();
+		// More than two chunks, the known members are spread over all of them
+		try (TransCnt trans = db.createTransaction()) {
+			for (int i = 0; i < 2500; ++i) {
+				final long memberId = nextId();
+				memberNames.put(memberId, "new" + memberId);
+				if (i % 2 == 0) {
+					trans.em.persist(new DiscordOnlineUser(guildId, memberId, "old" + memberId, yesterday));
+				}
+			}
+			trans.commit();
+		}
+
+		db.discordOnlineUsers.updateLastOnline(guildId, memberNames);
+
+		final List<DiscordOnlineUser> users = db.discordOnlineUsers.getLastOnlineBefore(guildId, today.plusDays(1));
+		assertThat(users).hasSize(2500).allMatch(dou -> today.equals(dou.lastOnline));
+		assertThat(users).filteredOn(dou -> dou.memberName.startsWith("old")).hasSize(1250);
+	}
+
 	@Test
 	void testGetRemoteSystemByTypeAndRemoteId() {
 		final String keyBase64 = "pHHnUG2t7Jbsf9N11aQ7/itzdSJ7hXkMzdoT9LLXpiKcXNUzleOoaE3M9Fn7d1qYvyEKYvkReJlMeRh6eZCVZQ==";
@@ -155,11 +220,11 @@ class DbTest implements TestBase {
 		}
 	}
 
-	@Test
-	void testRemoteIdAndCharactersByGuild() {
-		final long accountRemoteSystemId = nextId();
-		final Guild guild = new Guild();
-		final RemoteSystem remoteSystem = new RemoteSystem();
+	/**
+	 * Saves an account with two characters in the guild (rank 7 and 5) and one character without guild.
+	 */
+	private List<Character> saveAccountWithCharacters(final long accountRemoteSystemId, final Guild guild,
+			final RemoteSystem remoteSystem) {
 		final Account account = new Account();
 		final AccountRemoteId accountRemoteId = new AccountRemoteId();
 		final Character char1 = new Character();
@@ -200,12 +265,209 @@ class DbTest implements TestBase {
 			db.save(guild, remoteSystem, account, accountRemoteId, char1, char2, char3);
 			trans.commit();
 		}
+		return List.of(char1, char2, char3);
+	}
+
+	@Test
+	void testRemoteIdAndCharactersByGuild() {
+		final long accountRemoteSystemId = nextId();
+		final Guild guild = new Guild();
+		final RemoteSystem remoteSystem = new RemoteSystem();
+		final List<Character> characters = saveAccountWithCharacters(accountRemoteSystemId, guild, remoteSystem);
 
 		final Map<Long, List<Character>> result = db.accountRemoteIds
 				.remoteIdWithCharactersByGuildAndRemoteSystem(guild, remoteSystem);
 		assertThat(result).hasSize(1);
 		assertThat(result).extractingByKey(accountRemoteSystemId).asList().hasSize(2);
-		assertThat(result.get(accountRemoteSystemId)).map(c -> c.name).containsExactlyInAnyOrder(char1.name,
-				char2.name);
+		assertThat(result.get(accountRemoteSystemId)).map(c -> c.name).containsExactlyInAnyOrder(characters.get(0).name,
+				characters.get(1).name);
+	}
+
+	@Test
+	void testProjectionAndFetchGraphStatementCount() {
+		final long accountRemoteSystemId = nextId();
+		final Guild guild = new Guild();
+		final RemoteSystem remoteSystem = new RemoteSystem();
+		final List<Character> characters = saveAccountWithCharacters(accountRemoteSystemId, guild, remoteSystem);
+		final List<Long> bnetIds = characters.stream().map(c -> c.bnetId).collect(Collectors.toList());
+		final Statistics statistics = Singletons.instance(Config.class).hibernateSessionFactory
+				.unwrap(SessionFactory.class).getStatistics();
+		statistics.setStatisticsEnabled(true);
+		try {
+			statistics.clear();
+			final Map<Long, Set<Byte>> ranks = db.accountRemoteIds.remoteIdWithRanksByGuildAndRemoteSystem(guild,
+					remoteSystem);
+			assertThat(ranks).containsExactly(entry(accountRemoteSystemId, Set.of((byte) 7, (byte) 5)));
+			assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+			assertThat(statistics.getEntityLoadCount()).isZero();
+
+			statistics.clear();
+			try (TransCnt trans = db.createTransaction()) {
+				final List<Character> loaded = db.characters.byBnetIds(BattleNetRegion.EU, bnetIds,
+						Character.GRAPH_WITH_GUILD);
+				assertThat(loaded).hasSize(3);
+				assertThat(loaded).allMatch(c -> c.guild == null || Hibernate.isInitialized(c.guild));
+				assertThat(loaded).noneMatch(c -> c.account != null && Hibernate.isInitialized(c.account));
+			}
+			assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+
+			statistics.clear();
+			try (TransCnt trans = db.createTransaction()) {
+				final List<Character> loaded = db.characters.byBnetIds(BattleNetRegion.EU, bnetIds,
+						Character.GRAPH_WITH_ACCOUNT);
+				assertThat(loaded).hasSize(3);
+				assertThat(loaded).allMatch(c -> c.account == null || Hibernate.isInitialized(c.account));
+			}
+			assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+
+			statistics.clear();
+			try (TransCnt trans = db.createTransaction()) {
+				assertThat(db.characters.byBnetIds(BattleNetRegion.EU, bnetIds)).hasSize(3);
+			}
+			assertThat(statistics.getPrepareStatementCount()).as("Without fetch plan the eager associations are "
+					+ "loaded with additional statements").isGreaterThan(1);
+		} finally {
+			statistics.setStatisticsEnabled(false);
+		}
+	}
+
+	@Test
+	void testChunkedTransaction() {
+		final List<Guild> guilds = new ArrayList<>();
+		try (ChunkedTransaction trans = db.createChunkedTransaction()) {
+			for (int i = 0; i < 3; ++i) {
+				final Guild guild = new Guild();
+				guild.setRegion(BattleNetRegion.EU);
+				guild.setServer(nextStr());
+				guild.setName(nextStr());
+				db.save(guild);
+				guilds.add(guild);
+				if (guilds.size() == 2) {
+					trans.commit();
+				}
+			}
+			// The last guild is not committed and must be rolled back
+		}
+
+		assertThat(db.find(Guild.class, guilds.get(0).id())).isNotNull();
+		assertThat(db.find(Guild.class, guilds.get(1).id())).isNotNull();
+		assertThat(db.find(Guild.class, guilds.get(2).id())).isNull();
+	}
+
+	@Test
+	void testConfigCacheInvalidatedAfterCommit() {
+		final RemoteSystem system = new RemoteSystem();
+		try (TransCnt trans = db.createTransaction()) {
+			final Guild guild = new Guild();
+			guild.setRegion(BattleNetRegion.EU);
+			guild.setServer(nextStr());
+			guild.setName(nextStr());
+			system.guild = guild;
+			system.type = RemoteSystemType.Discord;
+			system.systemId = nextId();
+			system.nameOrLink = nextStr();
+			system.memberGroup = "member";
+			system.forTestSetKey(
+					"pHHnUG2t7Jbsf9N11aQ7/itzdSJ7hXkMzdoT9LLXpiKcXNUzleOoaE3M9Fn7d1qYvyEKYvkReJlMeRh6eZCVZQ==");
+			db.save(guild, system);
+			trans.commit();
+		}
+		final List<RemoteSystemRankToGroup> cached = db.remoteSystemRankToGroup.byRemoteSystem(system);
+		assertThat(cached).isEmpty();
+		assertThat(db.remoteSystemRankToGroup.byRemoteSystem(system)).isSameAs(cached);
+
+		final String groupName = nextStr();
+		try (TransCnt trans = db.createTransaction()) {
+			final RemoteSystemRankToGroup rolledBack = new RemoteSystemRankToGroup();
+			rolledBack.setRemoteSystem(system);
+			rolledBack.setGroupName(nextStr());
+			db.save(rolledBack);
+		}
+		assertThat(db.remoteSystemRankToGroup.byRemoteSystem(system)).as("Rollback keeps the cache").isSameAs(cached);
+
+		try (TransCnt trans = db.createTransaction()) {
+			final RemoteSystemRankToGroup rankToGroup = new RemoteSystemRankToGroup();
+			rankToGroup.setRemoteSystem(system);
+			rankToGroup.setGroupName(groupName);
+			db.save(rankToGroup);
+			assertThat(db.remoteSystemRankToGroup.byRemoteSystem(system)).as("Not committed yet").isSameAs(cached);
+			trans.commit();
+		}
+		assertThat(db.remoteSystemRankToGroup.byRemoteSystem(system)).extracting(RemoteSystemRankToGroup::groupName)
+				.containsExactly(groupName);
+	}
+
+	@Test
+	void testInsertCharactersBatch() {
+		final Guild guild = new Guild();
+		guild.setRegion(BattleNetRegion.EU);
+		guild.setServer(nextStr());
+		guild.setName(nextStr());
+		final List<Character> characters = new ArrayList<>();
+		for (int i = 0; i < 1200; ++i) {
+			final Character character = new Character();
+			character.bnetId = nextId();
+			character.region = BattleNetRegion.EU;
+			character.server = nextStr();
+			character.name = nextStr();
+			character.rank = (byte) (i % 10);
+			character.guild = i % 2 == 0 ? guild : null;
+			characters.add(character);
+		}
+		try (TransCnt trans = db.createTransaction()) {
+			db.save(guild);
+			assertThat(db.characters.insertBatch(characters)).isEqualTo(characters.size());
+			assertThat(db.characters.insertBatch(Collections.emptyList())).isZero();
+			trans.commit();
+		}
+
+		final List<Character> inserted = db.characters.byBnetIds(BattleNetRegion.EU,
+				characters.stream().map(c -> c.bnetId).collect(Collectors.toList()));
+		assertThat(inserted).hasSize(characters.size());
+		final Map<Long, Character> insertedByBnetId = inserted.stream()
+				.collect(Collectors.toMap(c -> c.bnetId, c -> c));
+		for (final Character character : characters) {
+			final Character insertedCharacter = insertedByBnetId.get(character.bnetId);
+			assertThat(insertedCharacter.name).isEqualTo(character.name);
+			assertThat(insertedCharacter.rank).isEqualTo(character.rank);
+			assertThat(insertedCharacter.account).isNull();
+			assertThat(insertedCharacter.guild == null).isEqualTo(character.guild == null);
+		}
+	}
+
+	@Test
+	void testReadOnlyTransactionAndCheckpoint() {
+		final Guild guild = new Guild();
+		guild.setRegion(BattleNetRegion.EU);
+		guild.setServer(nextStr());
+		guild.setName(nextStr());
+		try (TransCnt trans = db.createTransaction()) {
+			db.save(guild);
+			trans.commit();
+		}
+		final String name = guild.name();
+
+		try (TransCnt trans = db.createReadOnlyTransaction()) {
+			assertThat(trans.isReadOnly()).isTrue();
+			final Guild readOnlyGuild = db.find(Guild.class, guild.id());
+			readOnlyGuild.setName(nextStr());
+			try (TransCnt nested = db.createReadOnlyTransaction()) {
+				assertThat(nested.isReadOnly()).isTrue();
+			}
+			assertThatThrownBy(() -> db.save(new Guild())).as("Writes would be dropped")
+					.isInstanceOf(IllegalStateException.class);
+			trans.commit();
+		}
+		assertThat(db.find(Guild.class, guild.id()).name()).as("Read only changes are not written").isEqualTo(name);
+
+		final String newName = nextStr();
+		try (TransCnt trans = db.createTransaction()) {
+			final Guild managedGuild = db.find(Guild.class, guild.id());
+			managedGuild.setName(newName);
+			trans.checkpoint();
+			assertThat(trans.em.contains(managedGuild)).isFalse();
+			trans.commit();
+		}
+		assertThat(db.find(Guild.class, guild.id()).name()).isEqualTo(newName);
 	}
 }
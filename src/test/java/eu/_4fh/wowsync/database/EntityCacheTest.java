@@ -0,0 +1,111 @@
+package eu._4fh.wowsync.database;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.Statistics;
+
+class EntityCacheTest {
+	private static class TestClock extends Clock {
+		private Instant now = Instant.parse("2020-01-01T00:00:00Z");
+
+		@Override
+		public ZoneId getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(final ZoneId zone) {
+			return this;
+		}
+
+		@Override
+		public Instant instant() {
+			return now;
+		}
+	}
+
+	private final Statistics statistics = Singletons.instance(Statistics.class);
+	private final TestClock clock = new TestClock();
+	private final AtomicInteger loads = new AtomicInteger(0);
+
+	private String load(final Long key) {
+		loads.incrementAndGet();
+		return "value" + key;
+	}
+
+	@Test
+	void testHitsMissesAndTtl() {
+		final EntityCache<Long, String> cache = new EntityCache<>("test-ttl", clock, Duration.ofSeconds(10), 10);
+		final long hitsBefore = statistics.get("db.cache.test-ttl.hits");
+		final long missesBefore = statistics.get("db.cache.test-ttl.misses");
+
+		assertThat(cache.get(1L, this::load)).isEqualTo("value1");
+		assertThat(cache.get(1L, this::load)).isEqualTo("value1");
+		clock.now = clock.now.plusSeconds(9);
+		assertThat(cache.get(1L, this::load)).isEqualTo("value1");
+		assertThat(loads.get()).isEqualTo(1);
+
+		clock.now = clock.now.plusSeconds(1);
+		assertThat(cache.get(1L, this::load)).isEqualTo("value1");
+		assertThat(loads.get()).as("Expired entries are loaded again").isEqualTo(2);
+		assertThat(statistics.get("db.cache.test-ttl.hits") - hitsBefore).isEqualTo(2);
+		assertThat(statistics.get("db.cache.test-ttl.misses") - missesBefore).isEqualTo(2);
+	}
+
+	@Test
+	void testMaxSizeEvictsLeastRecentlyUsed() {
+		final EntityCache<Long, String> cache = new EntityCache<>("test-size", clock, Duration.ofHours(1), 2);
+		cache.get(1L, this::load);
+		cache.get(2L, this::load);
+		cache.get(1L, this::load);
+		cache.get(3L, this::load);
+		assertThat(cache.size()).isEqualTo(2);
+		assertThat(loads.get()).isEqualTo(3);
+
+		cache.get(1L, this::load);
+		assertThat(loads.get()).isEqualTo(3);
+		cache.get(2L, this::load);
+		assertThat(loads.get()).as("2 was evicted").isEqualTo(4);
+	}
+
+	@Test
+	void testInvalidate() {
+		final EntityCache<Long, String> cache = new EntityCache<>("test-invalidate", clock, Duration.ofHours(1), 10);
+		cache.get(1L, this::load);
+		cache.get(2L, this::load);
+		cache.invalidate(1L);
+		cache.get(1L, this::load);
+		cache.get(2L, this::load);
+		assertThat(loads.get()).isEqualTo(3);
+
+		cache.invalidateAll();
+		assertThat(cache.size()).isZero();
+		cache.get(2L, this::load);
+		assertThat(loads.get()).isEqualTo(4);
+	}
+
+	@Test
+	void testLoadRacingInvalidationIsNotCached() {
+		final EntityCache<Long, String> cache = new EntityCache<>("test-race", clock, Duration.ofHours(1), 10);
+		assertThat(cache.get(1L, key -> {
+			// Another thread changes the entity and invalidates while this load reads the old row
+			cache.invalidateAll();
+			return load(key);
+		})).isEqualTo("value1");
+		assertThat(cache.size()).isZero();
+
+		cache.get(1L, this::load);
+		assertThat(loads.get()).isEqualTo(2);
+		assertThat(cache.size()).isOne();
+	}
+}
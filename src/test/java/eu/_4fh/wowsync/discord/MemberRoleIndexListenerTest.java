@@ -0,0 +1,83 @@
+package eu._4fh.wowsync.discord;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.easymock.EasyMock;
+import org.junit.jupiter.api.Test;
+
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.ISnowflake;
+import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.Role;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleAddEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRoleRemoveEvent;
+
+class MemberRoleIndexListenerTest {
+	private static final long GUILD = 1;
+
+	private final Guild guild = mockWithId(Guild.class, GUILD);
+
+	private static <T extends ISnowflake> T mockWithId(final Class<T> type, final long id) {
+		final T mock = EasyMock.niceMock(type);
+		EasyMock.expect(mock.getIdLong()).andStubReturn(id);
+		EasyMock.replay(mock);
+		return mock;
+	}
+
+	private GuildMemberRoleAddEvent roleAdd(final long memberId, final long roleId) {
+		final GuildMemberRoleAddEvent event = EasyMock.niceMock(GuildMemberRoleAddEvent.class);
+		EasyMock.expect(event.getGuild()).andStubReturn(guild);
+		EasyMock.expect(event.getMember()).andStubReturn(mockWithId(Member.class, memberId));
+		EasyMock.expect(event.getRoles()).andStubReturn(List.of(mockWithId(Role.class, roleId)));
+		EasyMock.replay(event);
+		return event;
+	}
+
+	private GuildMemberRoleRemoveEvent roleRemove(final long memberId, final long roleId) {
+		final GuildMemberRoleRemoveEvent event = EasyMock.niceMock(GuildMemberRoleRemoveEvent.class);
+		EasyMock.expect(event.getGuild()).andStubReturn(guild);
+		EasyMock.expect(event.getMember()).andStubReturn(mockWithId(Member.class, memberId));
+		EasyMock.expect(event.getRoles()).andStubReturn(List.of(mockWithId(Role.class, roleId)));
+		EasyMock.replay(event);
+		return event;
+	}
+
+	@Test
+	void testRoleEvents() {
+		final MemberRoleIndex index = new MemberRoleIndex();
+		final MemberRoleIndexListener listener = new MemberRoleIndexListener(index);
+		index.startLoad(GUILD);
+		index.finishLoad(GUILD, Map.of(10L, List.of(100L)));
+
+		// Dispatched by JDA like gateway events
+		listener.onEvent(roleAdd(10, 101));
+		listener.onEvent(roleRemove(10, 100));
+		assertThat(index.roleIdsByMember(GUILD)).containsOnly(entry(10L, Set.of(101L)));
+
+		// Only the changed role is known, the other roles of these members arent
+		listener.onEvent(roleAdd(20, 101));
+		listener.onEvent(roleRemove(21, 100));
+		assertThat(index.roleIds(GUILD, 20)).as("Not added with only one role").isNull();
+		assertThat(index.roleIds(GUILD, 21)).isNull();
+		assertThat(index.roleIdsByMember(GUILD)).containsOnlyKeys(10L);
+	}
+
+	@Test
+	void testIgnoredEventDuringLoad() {
+		final MemberRoleIndex index = new MemberRoleIndex();
+		final MemberRoleIndexListener listener = new MemberRoleIndexListener(index);
+		index.startLoad(GUILD);
+		index.finishLoad(GUILD, Map.of());
+
+		index.startLoad(GUILD);
+		listener.onEvent(roleAdd(20, 101));
+		index.finishLoad(GUILD, Map.of(20L, List.of(100L, 101L)));
+		assertThat(index.roleIdsByMember(GUILD)).as("The load has all roles of the member")
+				.containsOnly(entry(20L, Set.of(100L, 101L)));
+	}
+}
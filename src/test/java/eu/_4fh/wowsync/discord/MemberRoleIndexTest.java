@@ -0,0 +1,81 @@
+package eu._4fh.wowsync.discord;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class MemberRoleIndexTest {
+	private static final long GUILD = 1;
+
+	@Test
+	void testNotLoaded() {
+		final MemberRoleIndex index = new MemberRoleIndex();
+		index.setRoles(GUILD, 10, List.of(100L));
+		assertThat(index.isLoaded(GUILD)).isFalse();
+		assertThat(index.roleIdsByMember(GUILD)).isNull();
+		assertThat(index.memberIds(GUILD)).isNull();
+		assertThat(index.roleIds(GUILD, 10)).isNull();
+	}
+
+	@Test
+	void testEventsAfterLoad() {
+		final MemberRoleIndex index = new MemberRoleIndex();
+		index.startLoad(GUILD);
+		assertThat(index.finishLoad(GUILD, Map.of(10L, List.of(100L), 11L, List.of(100L, 101L)))).isZero();
+		assertThat(index.isLoaded(GUILD)).isTrue();
+
+		index.setRoles(GUILD, 12, List.of());
+		index.addRoles(GUILD, 10, List.of(101L));
+		index.removeRoles(GUILD, 11, List.of(100L));
+		assertThat(index.roleIdsByMember(GUILD)).containsOnly(entry(10L, Set.of(100L, 101L)), entry(11L, Set.of(101L)),
+				entry(12L, Set.of()));
+
+		index.removeRole(GUILD, 101);
+		index.removeMember(GUILD, 12);
+		assertThat(index.roleIdsByMember(GUILD)).containsOnly(entry(10L, Set.of(100L)), entry(11L, Set.of()));
+		assertThat(index.roleIds(GUILD, 12)).as("Left the server").isNull();
+		assertThat(index.memberIds(GUILD)).containsExactlyInAnyOrder(10L, 11L);
+
+		index.removeGuild(GUILD);
+		assertThat(index.isLoaded(GUILD)).isFalse();
+	}
+
+	@Test
+	void testReconcileCorrectsMissedEvents() {
+		final MemberRoleIndex index = new MemberRoleIndex();
+		index.startLoad(GUILD);
+		index.finishLoad(GUILD, Map.of(10L, List.of(100L), 11L, List.of(100L), 12L, List.of()));
+
+		index.startLoad(GUILD);
+		// 10 is unchanged, 11 lost a role, 12 left and 13 joined without events
+		assertThat(index.finishLoad(GUILD, Map.of(10L, List.of(100L), 11L, List.of(), 13L, List.of(100L))))
+				.isEqualTo(3);
+		assertThat(index.roleIdsByMember(GUILD)).containsOnly(entry(10L, Set.of(100L)), entry(11L, Set.of()),
+				entry(13L, Set.of(100L)));
+	}
+
+	@Test
+	void testEventsDuringLoadWin() {
+		final MemberRoleIndex index = new MemberRoleIndex();
+		index.startLoad(GUILD);
+		index.finishLoad(GUILD, Map.of(10L, List.of(100L), 11L, List.of(100L)));
+
+		index.startLoad(GUILD);
+		// The fetch started before these events, so it contains the old state
+		index.addRoles(GUILD, 10, List.of(101L));
+		index.removeMember(GUILD, 11);
+		index.setRoles(GUILD, 12, List.of(100L));
+		assertThat(index.finishLoad(GUILD, Map.of(10L, List.of(100L), 11L, List.of(100L)))).isZero();
+		assertThat(index.roleIdsByMember(GUILD)).containsOnly(entry(10L, Set.of(100L, 101L)),
+				entry(12L, Set.of(100L)));
+
+		index.startLoad(GUILD);
+		index.abortLoad(GUILD);
+		assertThat(index.isLoaded(GUILD)).as("Failed fetch keeps the index").isTrue();
+	}
+}
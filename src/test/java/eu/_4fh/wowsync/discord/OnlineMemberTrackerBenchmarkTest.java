@@ -0,0 +1,75 @@
+package eu._4fh.wowsync.discord;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongBinaryOperator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.abstract_bnet_api.util.Pair;
+
+/**
+ * Simulates a presence firehose and compares the allocated bytes per event of the old set of Pairs with the
+ * {@link OnlineMemberTracker}. Only runs with -Dwowsync.benchmark=true, the results are printed to stdout.
+ */
+@DefaultAnnotation(NonNull.class)
+@EnabledIfSystemProperty(named = "wowsync.benchmark", matches = "true")
+class OnlineMemberTrackerBenchmarkTest {
+	private static final int GUILDS = 5;
+	private static final int MEMBERS_PER_GUILD = 20_000;
+	private static final int EVENTS = 5_000_000;
+	private static final long NOW = System.currentTimeMillis();
+
+	private final long[] guildIds = new long[GUILDS];
+	private final long[] memberIds = new long[GUILDS * MEMBERS_PER_GUILD];
+
+	@Test
+	void benchmarkPresenceEvents() {
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < guildIds.length; ++i) {
+			guildIds[i] = random.nextLong(1L << 50, 1L << 60);
+		}
+		for (int i = 0; i < memberIds.length; ++i) {
+			memberIds[i] = random.nextLong(1L << 50, 1L << 60);
+		}
+
+		final Set<Pair<Long, Long>> pairs = ConcurrentHashMap.newKeySet();
+		final OnlineMemberTracker tracker = new OnlineMemberTracker(NOW);
+		for (int run = 0; run < 2; ++run) {
+			// The first run fills the sets and warms up the JIT, the second run is the steady state of one day
+			final long pairBytes = measure("Set<Pair<Long, Long>>",
+					(guildId, memberId) -> pairs.add(new Pair<>(guildId, memberId)) ? 1 : 0);
+			final long trackerBytes = measure("OnlineMemberTracker",
+					(guildId, memberId) -> tracker.markOnline(guildId, memberId, NOW) ? 1 : 0);
+			if (run == 1) {
+				assertThat(trackerBytes).isLessThan(pairBytes);
+			}
+		}
+	}
+
+	private long measure(final String name, final LongBinaryOperator markOnline) {
+		final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		final long threadId = Thread.currentThread().getId();
+		final long bytesBefore = threadBean.getThreadAllocatedBytes(threadId);
+		final long start = System.nanoTime();
+		long added = 0;
+		for (int event = 0; event < EVENTS; ++event) {
+			// Members are spread over the guilds, every event is for a random member
+			final int member = (int) ((event * 2_654_435_761L) % memberIds.length);
+			added += markOnline.applyAsLong(guildIds[member % GUILDS], memberIds[member]);
+		}
+		final long nanos = System.nanoTime() - start;
+		final long bytes = threadBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+		System.out.printf("%s: %d events, %d new, %.1f bytes/event, %d ns/event%n", name, EVENTS, added,
+				(double) bytes / EVENTS, nanos / EVENTS);
+		return bytes;
+	}
+}
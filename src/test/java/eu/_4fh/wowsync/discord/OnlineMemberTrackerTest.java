@@ -0,0 +1,36 @@
+package eu._4fh.wowsync.discord;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Instant;
+
+import org.junit.jupiter.api.Test;
+
+class OnlineMemberTrackerTest {
+	private static final long DAY1 = Instant.parse("2020-01-01T00:00:00Z").toEpochMilli();
+	private static final long DAY1_LATE = Instant.parse("2020-01-01T23:59:59Z").toEpochMilli();
+	private static final long DAY2 = Instant.parse("2020-01-02T00:00:00Z").toEpochMilli();
+
+	@Test
+	void testOncePerGuildAndDay() {
+		final OnlineMemberTracker tracker = new OnlineMemberTracker(DAY1);
+		assertThat(tracker.markOnline(1, 10, DAY1)).isTrue();
+		assertThat(tracker.markOnline(1, 10, DAY1_LATE)).isFalse();
+		assertThat(tracker.markOnline(2, 10, DAY1)).as("Other guild").isTrue();
+		assertThat(tracker.markOnline(1, 11, DAY1)).isTrue();
+
+		assertThat(tracker.markOnline(1, 10, DAY2)).as("Next day").isTrue();
+		assertThat(tracker.markOnline(2, 10, DAY2)).isTrue();
+		assertThat(tracker.markOnline(1, 10, DAY2)).isFalse();
+	}
+
+	@Test
+	void testLateEventOfPreviousDay() {
+		final OnlineMemberTracker tracker = new OnlineMemberTracker(DAY1);
+		assertThat(tracker.markOnline(1, 10, DAY2)).isTrue();
+		assertThat(tracker.markOnline(1, 11, DAY1_LATE)).as("Still counted").isTrue();
+		assertThat(tracker.markOnline(1, 10, DAY1_LATE)).as("Doesnt go back to the previous day").isFalse();
+		assertThat(tracker.markOnline(1, 10, DAY2)).isFalse();
+		assertThat(tracker.markOnline(1, 11, DAY2)).isFalse();
+	}
+}
@@ -0,0 +1,83 @@
+package eu._4fh.wowsync.discord;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import eu._4fh.wowsync.database.Db;
+import eu._4fh.wowsync.database.data.DiscordOnlineUser;
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.Statistics;
+import eu._4fh.wowsync.util.TestBase;
+
+class OnlineUserBufferTest implements TestBase {
+	private final Db db = Singletons.instance(Db.class);
+
+	@Test
+	void testWritesOnFlushAndClose() {
+		final Statistics statistics = Singletons.instance(Statistics.class);
+		final long flushedBefore = statistics.get("discord.online-users.flushed");
+		final long guild1Id = nextId();
+		final long guild2Id = nextId();
+		final long user1Id = nextId();
+		final long user2Id = nextId();
+		final LocalDate tomorrow = LocalDate.now(Clock.systemUTC()).plusDays(1);
+
+		final OnlineUserBuffer buffer = new OnlineUserBuffer(db, 0);
+		try {
+			buffer.touch(guild1Id, user1Id, "first");
+			buffer.touch(guild1Id, user1Id, "second");
+			buffer.touch(guild1Id, user2Id, "user2");
+			assertThat(db.discordOnlineUsers.getLastOnlineBefore(guild1Id, tomorrow)).as("Nothing written before flush")
+					.isEmpty();
+
+			buffer.flush();
+			final Map<Long, String> names = db.discordOnlineUsers.getLastOnlineBefore(guild1Id, tomorrow).stream()
+					.collect(Collectors.toMap(dou -> dou.memberId, dou -> dou.memberName));
+			assertThat(names).containsOnly(Map.entry(user1Id, "second"), Map.entry(user2Id, "user2"));
+			assertThat(statistics.get("discord.online-users.flushed") - flushedBefore).isEqualTo(2);
+
+			buffer.touch(guild2Id, user1Id, "guild2");
+		} finally {
+			buffer.close();
+		}
+		assertThat(db.discordOnlineUsers.getLastOnlineBefore(guild2Id, tomorrow)).as("Close writes pending members")
+				.extracting((DiscordOnlineUser dou) -> dou.memberId).containsExactly(user1Id);
+	}
+
+	@Test
+	void testFailedGuildDoesntStopOtherGuilds() {
+		final long failingGuildId = nextId();
+		final long guild1Id = nextId();
+		final long guild2Id = nextId();
+		final long userId = nextId();
+		final LocalDate tomorrow = LocalDate.now(Clock.systemUTC()).plusDays(1);
+
+		final OnlineUserBuffer buffer = new OnlineUserBuffer(db, 0);
+		try {
+			// Longer than the member_name column
+			buffer.touch(failingGuildId, userId, "x".repeat(100));
+			buffer.touch(guild1Id, userId, "guild1");
+			buffer.touch(guild2Id, userId, "guild2");
+
+			assertThatThrownBy(buffer::flush).isInstanceOf(RuntimeException.class);
+			assertThat(db.discordOnlineUsers.getLastOnlineBefore(guild1Id, tomorrow)).hasSize(1);
+			assertThat(db.discordOnlineUsers.getLastOnlineBefore(guild2Id, tomorrow)).hasSize(1);
+			assertThat(Singletons.instance(Statistics.class).snapshot().get("discord.online-users.pending"))
+					.as("Kept for the next flush").isOne();
+
+			buffer.touch(guild1Id, nextId(), "afterFailure");
+			assertThatThrownBy(buffer::flush).as("Still too long").isInstanceOf(RuntimeException.class);
+			assertThat(db.discordOnlineUsers.getLastOnlineBefore(guild1Id, tomorrow)).hasSize(2);
+		} finally {
+			buffer.close();
+		}
+		assertThat(db.discordOnlineUsers.getLastOnlineBefore(failingGuildId, tomorrow)).isEmpty();
+	}
+}
@@ -0,0 +1,276 @@
+package eu._4fh.wowsync.modules;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.modules.MutationScheduler.Priority;
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.Statistics;
+
+@DefaultAnnotation(NonNull.class)
+class MutationSchedulerTest {
+	private static final AtomicInteger nextName = new AtomicInteger();
+	private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	private static class RecordingCallback implements MutationScheduler.Callback {
+		private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+		private volatile @CheckForNull Throwable failure;
+
+		@Override
+		public void succeeded() {
+			result.complete(true);
+		}
+
+		@Override
+		public void failed(final Throwable failure) {
+			this.failure = failure;
+			result.complete(false);
+		}
+
+		private boolean await() throws Exception {
+			return result.get(10, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Doesnt finish until {@link #finish()} is called.
+	 */
+	private static class BlockedMutation implements MutationScheduler.Mutation {
+		private final CountDownLatch started = new CountDownLatch(1);
+		private volatile @CheckForNull Runnable onSuccess;
+
+		@Override
+		public void start(final Runnable onSuccess, final Consumer<Throwable> onFailure) {
+			this.onSuccess = onSuccess;
+			started.countDown();
+		}
+
+		private boolean awaitStart() throws InterruptedException {
+			return started.await(10, TimeUnit.SECONDS);
+		}
+
+		private void finish() {
+			onSuccess.run();
+		}
+	}
+
+	private static String nextName() {
+		return MutationSchedulerTest.class.getSimpleName() + nextName.incrementAndGet();
+	}
+
+	@Test
+	void testInteractiveBeforeQueuedBatch() throws Exception {
+		final List<String> started = Collections.synchronizedList(new ArrayList<>());
+		try (MutationScheduler scheduler = new MutationScheduler(nextName(), 0, 1, 10, TIMEOUT_MILLIS)) {
+			final BlockedMutation blocker = new BlockedMutation();
+			scheduler.submit(Priority.Batch, "blocker", blocker, new RecordingCallback());
+			assertThat(blocker.awaitStart()).isTrue();
+
+			final RecordingCallback lastCallback = new RecordingCallback();
+			scheduler.submit(Priority.Batch, "batch1", (ok, fail) -> {
+				started.add("batch1");
+				ok.run();
+			}, new RecordingCallback());
+			scheduler.submit(Priority.Batch, "batch2", (ok, fail) -> {
+				started.add("batch2");
+				ok.run();
+			}, lastCallback);
+			scheduler.submit(Priority.Interactive, "interactive", (ok, fail) -> {
+				started.add("interactive");
+				ok.run();
+			}, new RecordingCallback());
+			blocker.finish();
+
+			assertThat(lastCallback.await()).isTrue();
+			// No batch change is taken from the queue while the blocker keeps the only place
+			assertThat(started).containsExactly("interactive", "batch1", "batch2");
+			assertThat(scheduler.awaitIdle(10, TimeUnit.SECONDS)).isTrue();
+			assertThat(scheduler.progress(Priority.Batch).succeeded).isEqualTo(3);
+			assertThat(scheduler.progress(Priority.Interactive).succeeded).isOne();
+		}
+	}
+
+	@Test
+	void testMaxInFlight() throws Exception {
+		try (MutationScheduler scheduler = new MutationScheduler(nextName(), 0, 2, 10, TIMEOUT_MILLIS)) {
+			final BlockedMutation first = new BlockedMutation();
+			final BlockedMutation second = new BlockedMutation();
+			final BlockedMutation third = new BlockedMutation();
+			scheduler.submit(Priority.Batch, "first", first, new RecordingCallback());
+			scheduler.submit(Priority.Batch, "second", second, new RecordingCallback());
+			scheduler.submit(Priority.Batch, "third", third, new RecordingCallback());
+			assertThat(first.awaitStart()).isTrue();
+			assertThat(second.awaitStart()).isTrue();
+			assertThat(third.started.await(200, TimeUnit.MILLISECONDS)).as("Only two changes at once").isFalse();
+			assertThat(scheduler.progress(Priority.Batch).pending()).isEqualTo(3);
+
+			first.finish();
+			assertThat(third.awaitStart()).isTrue();
+			second.finish();
+			third.finish();
+			assertThat(scheduler.awaitIdle(10, TimeUnit.SECONDS)).isTrue();
+		}
+	}
+
+	@Test
+	void testFailures() throws Exception {
+		final String name = nextName();
+		try (MutationScheduler scheduler = new MutationScheduler(name, 0, 1, 10, TIMEOUT_MILLIS)) {
+			final RecordingCallback failed = new RecordingCallback();
+			final RecordingCallback thrown = new RecordingCallback();
+			final RecordingCallback succeeded = new RecordingCallback();
+			scheduler.submit(Priority.Batch, "failed", (ok, fail) -> fail.accept(new IllegalStateException("failed")),
+					failed);
+			scheduler.submit(Priority.Batch, "thrown", (ok, fail) -> {
+				throw new IllegalStateException("thrown");
+			}, thrown);
+			scheduler.submit(Priority.Batch, "succeeded", (ok, fail) -> ok.run(), succeeded);
+
+			assertThat(failed.await()).isFalse();
+			assertThat(failed.failure).hasMessage("failed");
+			assertThat(thrown.await()).isFalse();
+			assertThat(thrown.failure).hasMessage("thrown");
+			assertThat(succeeded.await()).as("A failed change doesnt block the queue").isTrue();
+			assertThat(scheduler.awaitIdle(10, TimeUnit.SECONDS)).isTrue();
+			final MutationScheduler.Progress progress = scheduler.progress(Priority.Batch);
+			assertThat(progress.submitted).isEqualTo(3);
+			assertThat(progress.succeeded).isOne();
+			assertThat(progress.failed).isEqualTo(2);
+			assertThat(Singletons.instance(Statistics.class).get(name + ".mutations.Batch.failed")).isEqualTo(2);
+		}
+	}
+
+	@Test
+	void testMinInterval() throws Exception {
+		final List<Long> startTimes = Collections.synchronizedList(new ArrayList<>());
+		try (MutationScheduler scheduler = new MutationScheduler(nextName(), 50, 10, 10, TIMEOUT_MILLIS)) {
+			for (int i = 0; i < 3; ++i) {
+				scheduler.submit(Priority.Batch, "change" + i, (ok, fail) -> {
+					startTimes.add(System.nanoTime());
+					ok.run();
+				}, new RecordingCallback());
+			}
+			assertThat(scheduler.awaitIdle(10, TimeUnit.SECONDS)).isTrue();
+		}
+		assertThat(startTimes).hasSize(3);
+		assertThat(TimeUnit.NANOSECONDS.toMillis(startTimes.get(2) - startTimes.get(0))).isGreaterThanOrEqualTo(100);
+	}
+
+	@Test
+	void testFullBatchQueueBlocksSubmit() throws Exception {
+		final String name = nextName();
+		try (MutationScheduler scheduler = new MutationScheduler(name, 0, 1, 1, TIMEOUT_MILLIS)) {
+			final BlockedMutation running = new BlockedMutation();
+			scheduler.submit(Priority.Batch, "running", running, new RecordingCallback());
+			assertThat(running.awaitStart()).isTrue();
+			// Stays in the queue until the running change is finished
+			scheduler.submit(Priority.Batch, "queued", (ok, fail) -> ok.run(), new RecordingCallback());
+
+			final CompletableFuture<Void> blockedSubmit = CompletableFuture.runAsync(() -> scheduler
+					.submit(Priority.Batch, "blocked", (ok, fail) -> ok.run(), new RecordingCallback()));
+			final RecordingCallback interactive = new RecordingCallback();
+			scheduler.submit(Priority.Interactive, "interactive", (ok, fail) -> ok.run(), interactive);
+			TimeUnit.MILLISECONDS.sleep(200);
+			assertThat(blockedSubmit).as("Queue is full").isNotDone();
+
+			running.finish();
+			blockedSubmit.get(10, TimeUnit.SECONDS);
+			assertThat(interactive.await()).isTrue();
+			assertThat(scheduler.awaitIdle(10, TimeUnit.SECONDS)).isTrue();
+			assertThat(scheduler.progress(Priority.Batch).succeeded).isEqualTo(3);
+			assertThat(Singletons.instance(Statistics.class).get(name + ".mutations.backpressure")).isOne();
+		}
+	}
+
+	@Test
+	void testTimeoutFreesPlace() throws Exception {
+		final String name = nextName();
+		try (MutationScheduler scheduler = new MutationScheduler(name, 0, 1, 10, 100)) {
+			final BlockedMutation lost = new BlockedMutation();
+			final RecordingCallback lostCallback = new RecordingCallback();
+			scheduler.submit(Priority.Batch, "lost", lost, lostCallback);
+			assertThat(lost.awaitStart()).isTrue();
+			final RecordingCallback next = new RecordingCallback();
+			scheduler.submit(Priority.Interactive, "next", (ok, fail) -> ok.run(), next);
+
+			assertThat(lostCallback.await()).isFalse();
+			assertThat(lostCallback.failure).isInstanceOf(TimeoutException.class).hasMessageContaining("lost");
+			assertThat(next.await()).as("Started after the timeout").isTrue();
+
+			lost.finish();
+			assertThat(scheduler.awaitIdle(10, TimeUnit.SECONDS)).isTrue();
+			assertThat(scheduler.progress(Priority.Batch).failed).as("The late callback is ignored").isOne();
+			assertThat(scheduler.progress(Priority.Batch).succeeded).isZero();
+			final Statistics statistics = Singletons.instance(Statistics.class);
+			assertThat(statistics.get(name + ".mutations.timeouts")).isOne();
+			assertThat(statistics.snapshot().get(name + ".mutations.in-flight")).isZero();
+		}
+	}
+
+	@Test
+	void testCloseCancelsQueued() throws Exception {
+		final BlockedMutation running = new BlockedMutation();
+		final RecordingCallback runningCallback = new RecordingCallback();
+		final RecordingCallback queued = new RecordingCallback();
+		final MutationScheduler scheduler = new MutationScheduler(nextName(), 0, 1, 10, TIMEOUT_MILLIS);
+		try {
+			scheduler.submit(Priority.Batch, "running", running, runningCallback);
+			assertThat(running.awaitStart()).isTrue();
+			scheduler.submit(Priority.Batch, "queued", (ok, fail) -> ok.run(), queued);
+		} finally {
+			scheduler.close();
+		}
+		assertThat(queued.await()).isFalse();
+		assertThat(queued.failure).isInstanceOf(CancellationException.class);
+
+		running.finish();
+		assertThat(runningCallback.await()).as("Started changes still finish").isTrue();
+
+		final RecordingCallback afterClose = new RecordingCallback();
+		scheduler.submit(Priority.Interactive, "afterClose", (ok, fail) -> ok.run(), afterClose);
+		assertThat(afterClose.await()).isFalse();
+	}
+
+	@Test
+	void testCloseCancelsSubmitWaitingForBatchSlot() throws Exception {
+		final BlockedMutation running = new BlockedMutation();
+		final RecordingCallback queued = new RecordingCallback();
+		final RecordingCallback waiting = new RecordingCallback();
+		final MutationScheduler scheduler = new MutationScheduler(nextName(), 0, 1, 1, TIMEOUT_MILLIS);
+		final CompletableFuture<Void> waitingSubmit;
+		try {
+			scheduler.submit(Priority.Batch, "running", running, new RecordingCallback());
+			assertThat(running.awaitStart()).isTrue();
+			scheduler.submit(Priority.Batch, "queued", (ok, fail) -> ok.run(), queued);
+			waitingSubmit = CompletableFuture.runAsync(
+					() -> scheduler.submit(Priority.Batch, "waiting", (ok, fail) -> ok.run(), waiting));
+			TimeUnit.MILLISECONDS.sleep(200);
+			assertThat(waitingSubmit).as("Queue is full").isNotDone();
+		} finally {
+			// Frees the batch slot of the queued change, so the waiting submit adds its change after the drain
+			scheduler.close();
+		}
+		waitingSubmit.get(10, TimeUnit.SECONDS);
+		assertThat(queued.await()).isFalse();
+		assertThat(waiting.await()).isFalse();
+		assertThat(waiting.failure).isInstanceOf(CancellationException.class);
+
+		running.finish();
+		assertThat(scheduler.awaitIdle(10, TimeUnit.SECONDS)).isTrue();
+	}
+}
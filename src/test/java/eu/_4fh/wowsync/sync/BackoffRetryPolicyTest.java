@@ -0,0 +1,151 @@
+package eu._4fh.wowsync.sync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dmfs.httpessentials.HttpStatus;
+import org.dmfs.httpessentials.exceptions.UnexpectedStatusException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import eu._4fh.wowsync.sync.BattleNetToDbSync.RequestExecutionFailure;
+
+class BackoffRetryPolicyTest {
+	private static final long THROTTLED_DELAY = 50;
+
+	private final BackoffRetryPolicy policy = new BackoffRetryPolicy(4, 1, 10, THROTTLED_DELAY, () -> 0.5);
+
+	private HttpServer server;
+	private final List<Integer> responses = new CopyOnWriteArrayList<>();
+	private final List<Long> requestTimes = new CopyOnWriteArrayList<>();
+	private final AtomicInteger numRequests = new AtomicInteger(0);
+
+	@BeforeEach
+	void setup() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> {
+			requestTimes.add(System.nanoTime());
+			final int index = numRequests.getAndIncrement();
+			final int status = responses.get(Math.min(index, responses.size() - 1));
+			final byte[] body = Integer.toString(status).getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(status, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+	}
+
+	@AfterEach
+	void teardown() {
+		server.stop(0);
+	}
+
+	/**
+	 * Fails like the RequestExecutor of the Battle.net client library, with the exceptions of httpessentials.
+	 */
+	private static UnexpectedStatusException unexpectedStatus(final int status) {
+		switch (status) {
+			case 404:
+				return new UnexpectedStatusException(HttpStatus.NOT_FOUND, "Not found");
+			case 429:
+				return new UnexpectedStatusException(HttpStatus.TOO_MANY_REQUESTS, "Too many requests");
+			case 500:
+				return new UnexpectedStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Internal server error");
+			case 502:
+				return new UnexpectedStatusException(HttpStatus.BAD_GATEWAY, "Bad gateway");
+			case 503:
+				return new UnexpectedStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Service unavailable");
+			default:
+				throw new IllegalArgumentException("Unexpected status " + status);
+		}
+	}
+
+	private String request() throws IOException, UnexpectedStatusException {
+		final HttpURLConnection connection = (HttpURLConnection) new URL(
+				"http://127.0.0.1:" + server.getAddress().getPort() + "/").openConnection();
+		try {
+			final int status = connection.getResponseCode();
+			if (status != 200) {
+				throw unexpectedStatus(status);
+			}
+			try (InputStream in = connection.getInputStream()) {
+				return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	@Test
+	void testRetryServerErrors() throws RequestExecutionFailure {
+		responses.addAll(List.of(500, 502, 200));
+		assertThat(policy.execute("test", this::request)).isEqualTo("200");
+		assertThat(numRequests.get()).isEqualTo(3);
+	}
+
+	@Test
+	void testNoRetryForNotFound() {
+		responses.add(404);
+		assertThatThrownBy(() -> policy.execute("test", this::request)).isInstanceOf(RequestExecutionFailure.class)
+				.hasCauseInstanceOf(UnexpectedStatusException.class);
+		assertThat(numRequests.get()).isOne();
+	}
+
+	@Test
+	void testThrottlingSlowsDownAndGivesUp() {
+		responses.add(429);
+		assertThatThrownBy(() -> policy.execute("test", this::request)).isInstanceOf(RequestExecutionFailure.class);
+		assertThat(numRequests.get()).as("Stops after max tries").isEqualTo(4);
+		for (int i = 1; i < requestTimes.size(); ++i) {
+			assertThat((requestTimes.get(i) - requestTimes.get(i - 1)) / 1_000_000)
+					.isGreaterThanOrEqualTo(THROTTLED_DELAY);
+		}
+	}
+
+	@Test
+	void testRetryServiceUnavailableWithThrottledDelay() throws RequestExecutionFailure {
+		responses.addAll(List.of(503, 200));
+		assertThat(policy.execute("test", this::request)).isEqualTo("200");
+		assertThat(numRequests.get()).isEqualTo(2);
+		assertThat((requestTimes.get(1) - requestTimes.get(0)) / 1_000_000).isGreaterThanOrEqualTo(THROTTLED_DELAY);
+	}
+
+	@Test
+	void testHttpStatusCode() {
+		assertThat(BackoffRetryPolicy.httpStatusCode(unexpectedStatus(429))).isEqualTo(429);
+		assertThat(BackoffRetryPolicy.httpStatusCode(unexpectedStatus(503))).isEqualTo(503);
+		assertThat(BackoffRetryPolicy.httpStatusCode(unexpectedStatus(404))).isEqualTo(404);
+		assertThat(BackoffRetryPolicy.httpStatusCode(new IllegalStateException(unexpectedStatus(503))))
+				.as("Wrapped").isEqualTo(503);
+		assertThat(BackoffRetryPolicy.httpStatusCode(new IOException())).isEqualTo(BackoffRetryPolicy.NO_STATUS);
+	}
+
+	@Test
+	void testExponentialDelay() {
+		final BackoffRetryPolicy delays = new BackoffRetryPolicy(10, 100, 1000, 0, () -> 1.0);
+		final IOException failure = new IOException();
+		assertThat(delays.retryDelayMillis(1, failure)).isEqualTo(100);
+		assertThat(delays.retryDelayMillis(2, failure)).isEqualTo(200);
+		assertThat(delays.retryDelayMillis(3, failure)).isEqualTo(400);
+		assertThat(delays.retryDelayMillis(5, failure)).isEqualTo(1000);
+		assertThat(delays.retryDelayMillis(10, failure)).isNegative();
+		assertThat(delays.retryDelayMillis(1, unexpectedStatus(404))).isNegative();
+		assertThat(delays.retryDelayMillis(1, unexpectedStatus(429))).isEqualTo(100);
+		assertThat(delays.retryDelayMillis(1, unexpectedStatus(503))).isEqualTo(100);
+	}
+}
@@ -0,0 +1,99 @@
+package eu._4fh.wowsync.sync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatNoException;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+
+import org.dmfs.httpessentials.HttpStatus;
+import org.dmfs.httpessentials.exceptions.UnexpectedStatusException;
+import org.junit.jupiter.api.Test;
+
+import eu._4fh.abstract_bnet_api.oauth2.BattleNetRegion;
+import eu._4fh.wowsync.sync.BattleNetCircuitBreaker.CircuitOpenFailure;
+import eu._4fh.wowsync.sync.BattleNetCircuitBreaker.State;
+import eu._4fh.wowsync.sync.BattleNetRateLimiter.Priority;
+
+class BattleNetCircuitBreakerTest {
+	private final BattleNetCircuitBreaker breaker = new BattleNetCircuitBreaker(3);
+
+	@Test
+	void testOpensAfterConsecutiveFailures() {
+		breaker.onFailure(BattleNetRegion.EU, new IOException());
+		breaker.onFailure(BattleNetRegion.EU, new IOException());
+		breaker.onSuccess(BattleNetRegion.EU);
+		breaker.onFailure(BattleNetRegion.EU, new IOException());
+		breaker.onFailure(BattleNetRegion.EU, new IOException());
+		assertThat(breaker.state(BattleNetRegion.EU)).isEqualTo(State.Closed);
+		breaker.onFailure(BattleNetRegion.EU, new IOException());
+		assertThat(breaker.state(BattleNetRegion.EU)).isEqualTo(State.Open);
+		assertThatThrownBy(() -> breaker.checkClosed(BattleNetRegion.EU, Priority.Batch))
+				.isInstanceOf(CircuitOpenFailure.class);
+		assertThatNoException().as("Other regions are not affected")
+				.isThrownBy(() -> breaker.checkClosed(BattleNetRegion.US, Priority.Batch));
+	}
+
+	@Test
+	void testOpensAfterServerErrors() {
+		for (int i = 0; i < 3; ++i) {
+			breaker.onFailure(BattleNetRegion.EU,
+					new UnexpectedStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Service unavailable"));
+		}
+		assertThat(breaker.state(BattleNetRegion.EU)).isEqualTo(State.Open);
+	}
+
+	@Test
+	void testIsOutage() {
+		assertThat(BattleNetCircuitBreaker
+				.isOutage(new UnexpectedStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Internal server error")))
+				.isTrue();
+		assertThat(BattleNetCircuitBreaker.isOutage(new RuntimeException(
+				new UnexpectedStatusException(HttpStatus.BAD_GATEWAY, "Bad gateway")))).as("Wrapped").isTrue();
+		assertThat(BattleNetCircuitBreaker.isOutage(new RuntimeException(new IOException()))).isTrue();
+		assertThat(BattleNetCircuitBreaker.isOutage(new UnexpectedStatusException(HttpStatus.NOT_FOUND, "Not found")))
+				.isFalse();
+		assertThat(BattleNetCircuitBreaker
+				.isOutage(new UnexpectedStatusException(HttpStatus.TOO_MANY_REQUESTS, "Too many requests"))).isFalse();
+	}
+
+	@Test
+	void testIgnoresFailuresThatAreNoOutage() {
+		for (int i = 0; i < 5; ++i) {
+			breaker.onFailure(BattleNetRegion.EU, new IllegalStateException("Invalid response"));
+			breaker.onFailure(BattleNetRegion.EU, new UnexpectedStatusException(HttpStatus.NOT_FOUND, "Not found"));
+		}
+		assertThat(breaker.state(BattleNetRegion.EU)).isEqualTo(State.Closed);
+	}
+
+	@Test
+	void testHalfOpenOnNextRun() {
+		for (int i = 0; i < 3; ++i) {
+			breaker.onFailure(BattleNetRegion.EU, new IOException());
+		}
+		breaker.startRun();
+		assertThat(breaker.state(BattleNetRegion.EU)).isEqualTo(State.HalfOpen);
+		assertThatNoException().isThrownBy(() -> breaker.checkClosed(BattleNetRegion.EU, Priority.Batch));
+		breaker.onFailure(BattleNetRegion.EU, new IOException());
+		assertThat(breaker.state(BattleNetRegion.EU)).as("One failure is enough when half open").isEqualTo(State.Open);
+
+		breaker.startRun();
+		breaker.onSuccess(BattleNetRegion.EU);
+		assertThat(breaker.state(BattleNetRegion.EU)).isEqualTo(State.Closed);
+	}
+
+	@Test
+	void testInteractiveRequestsProbeOpenCircuit() {
+		for (int i = 0; i < 3; ++i) {
+			breaker.onFailure(BattleNetRegion.EU, new IOException());
+		}
+		// An auth of a user between two runs
+		assertThatNoException().isThrownBy(() -> breaker.checkClosed(BattleNetRegion.EU, Priority.Interactive));
+		breaker.onFailure(BattleNetRegion.EU, new IOException());
+		assertThat(breaker.state(BattleNetRegion.EU)).isEqualTo(State.Open);
+		assertThatNoException().isThrownBy(() -> breaker.checkClosed(BattleNetRegion.EU, Priority.Interactive));
+		breaker.onSuccess(BattleNetRegion.EU);
+		assertThat(breaker.state(BattleNetRegion.EU)).isEqualTo(State.Closed);
+		assertThatNoException().isThrownBy(() -> breaker.checkClosed(BattleNetRegion.EU, Priority.Batch));
+	}
+}
@@ -0,0 +1,61 @@
+package eu._4fh.wowsync.sync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import eu._4fh.abstract_bnet_api.oauth2.BattleNetRegion;
+import eu._4fh.wowsync.sync.BattleNetRateLimiter.Priority;
+import eu._4fh.wowsync.sync.BattleNetToDbSync.RequestExecutionFailure;
+
+class BattleNetRateLimiterTest {
+	private final AtomicLong now = new AtomicLong(0);
+
+	@Test
+	void testBatchCantUseReservedShare() {
+		final BattleNetRateLimiter limiter = new BattleNetRateLimiter(10, 1000, (byte) 20, 0, now::get);
+		for (int i = 0; i < 8; ++i) {
+			assertThat(limiter.tryAcquire(BattleNetRegion.EU, Priority.Batch)).isZero();
+		}
+		assertThat(limiter.tryAcquire(BattleNetRegion.EU, Priority.Batch)).isPositive();
+		assertThat(limiter.tryAcquire(BattleNetRegion.EU, Priority.Interactive)).isZero();
+		assertThat(limiter.tryAcquire(BattleNetRegion.EU, Priority.Interactive)).isZero();
+		assertThat(limiter.tryAcquire(BattleNetRegion.EU, Priority.Interactive)).isPositive();
+		assertThat(limiter.tryAcquire(BattleNetRegion.US, Priority.Batch)).as("Regions are independent").isZero();
+	}
+
+	@Test
+	void testRefill() {
+		final BattleNetRateLimiter limiter = new BattleNetRateLimiter(10, 1000, (byte) 0, 0, now::get);
+		for (int i = 0; i < 10; ++i) {
+			assertThat(limiter.tryAcquire(BattleNetRegion.EU, Priority.Batch)).isZero();
+		}
+		final long waitNanos = limiter.tryAcquire(BattleNetRegion.EU, Priority.Batch);
+		assertThat(waitNanos).isPositive().isLessThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+		now.addAndGet(waitNanos);
+		assertThat(limiter.tryAcquire(BattleNetRegion.EU, Priority.Batch)).isZero();
+	}
+
+	@Test
+	void testHourlyQuota() {
+		final BattleNetRateLimiter limiter = new BattleNetRateLimiter(100, 5, (byte) 0, 0, now::get);
+		for (int i = 0; i < 5; ++i) {
+			assertThat(limiter.tryAcquire(BattleNetRegion.EU, Priority.Batch)).isZero();
+		}
+		assertThat(limiter.tryAcquire(BattleNetRegion.EU, Priority.Batch))
+				.isGreaterThan(TimeUnit.MINUTES.toNanos(1));
+	}
+
+	@Test
+	void testRejectWhenWaitTooLong() throws RequestExecutionFailure {
+		final BattleNetRateLimiter limiter = new BattleNetRateLimiter(1, 1000, (byte) 0,
+				TimeUnit.MILLISECONDS.toNanos(10), now::get);
+		limiter.acquire(BattleNetRegion.EU, Priority.Batch);
+		assertThatThrownBy(() -> limiter.acquire(BattleNetRegion.EU, Priority.Batch))
+				.isInstanceOf(RequestExecutionFailure.class);
+	}
+}
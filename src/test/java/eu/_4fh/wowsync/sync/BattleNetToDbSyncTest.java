@@ -2,12 +2,20 @@ package eu._4fh.wowsync.sync;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatNoException;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 import java.time.Clock;
 import java.time.LocalDate;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
@@ -24,6 +32,9 @@ import eu._4fh.wowsync.database.data.Character;
 import eu._4fh.wowsync.database.data.Guild;
 import eu._4fh.wowsync.database.data.RemoteSystem;
 import eu._4fh.wowsync.database.data.RemoteSystem.RemoteSystemType;
+import eu._4fh.wowsync.database.data.RosterStagingEntry;
+import eu._4fh.wowsync.sync.BattleNetToDbSync.RequestExecutionFailure;
+import eu._4fh.wowsync.sync.BattleNetToDbSync.UserData;
 import eu._4fh.wowsync.util.Singletons;
 import eu._4fh.wowsync.util.TestBase;
 
@@ -31,6 +42,7 @@ import eu._4fh.wowsync.util.TestBase;
 class BattleNetToDbSyncTest implements TestBase {
 	private final BattleNetToDbSync sync;
 	private final Db db;
+	private final ExecutorService threadPool = Executors.newFixedThreadPool(4);
 
 	private static LocalDate today() {
 		return LocalDate.now(Clock.systemUTC());
@@ -41,6 +53,11 @@ class BattleNetToDbSyncTest implements TestBase {
 		db = Singletons.instance(Db.class);
 	}
 
+	@AfterEach
+	void teardown() {
+		threadPool.shutdownNow();
+	}
+
 	@Test
 	void testInsertAndUpdateAccount() throws InterruptedException {
 		final long bnetId = nextId();
@@ -111,6 +128,8 @@ class BattleNetToDbSyncTest implements TestBase {
 			assertThat(accRemoteId).isNotNull();
 			assertThat(accRemoteId.remoteId).isEqualTo(remoteUserId2);
 		}
+		assertThat(db.roleSyncDirty.remoteIds(remote)).as("Old and new remote user are synced")
+				.containsExactlyInAnyOrder(remoteUserId1, remoteUserId2);
 	}
 
 	@Test
@@ -172,6 +191,47 @@ class BattleNetToDbSyncTest implements TestBase {
 		assertThat(db.find(Character.class, charWithoutGuild.id)).isNull();
 	}
 
+	@Test
+	void testRemovedCharactersAreLinkedAgainAfterReauth() {
+		final Account acc = createAccount(nextId());
+		acc.setAdded(today().minusDays(90));
+		acc.setLastUpdate(today().minusDays(90));
+		final Character alt = createChar(acc, null);
+		final List<BattleNetWowCharacter> bnetCharacters = List
+				.of(new BattleNetWowCharacter(alt.bnetId, alt.name, alt.server, (byte) 1));
+		acc.setCharactersHash(RosterFingerprint.of(bnetCharacters));
+		try (TransCnt trans = db.createTransaction()) {
+			db.save(acc, alt);
+			trans.commit();
+		}
+		try (TransCnt trans = db.createTransaction()) {
+			sync.removeUnusedCharacters();
+			trans.commit();
+		}
+		assertThat(db.find(Character.class, alt.id)).isNull();
+		assertThat(db.accounts.byBnetId(acc.bnetId()).charactersHash()).isNull();
+
+		// The alt joins the guild again and comes in with the roster, without account
+		final Guild guild = createGuild(nextStr());
+		final Character rejoined = createChar(null, guild);
+		rejoined.bnetId = alt.bnetId;
+		rejoined.server = alt.server;
+		rejoined.name = alt.name;
+		try (TransCnt trans = db.createTransaction()) {
+			db.save(guild, rejoined);
+			trans.commit();
+		}
+		try (TransCnt trans = db.createTransaction()) {
+			sync.updateAccounts(BattleNetRegion.EU,
+					List.of(new UserData(new BattleNetProfileInfo(acc.bnetId(), acc.bnetTag()), bnetCharacters)));
+			trans.commit();
+		}
+
+		final Character linked = db.characters.byBnetIds(BattleNetRegion.EU, List.of(alt.bnetId)).get(0);
+		assertThat(linked.account).isNotNull();
+		assertThat(linked.account.id()).isEqualTo(acc.id());
+	}
+
 	private Character createChar(final @CheckForNull Account account, final @CheckForNull Guild guild) {
 		final Character c = new Character();
 		c.bnetId = nextId();
@@ -281,4 +341,226 @@ class BattleNetToDbSyncTest implements TestBase {
 			assertThat(changedChar.guild.id()).as("Sanity").isEqualTo(guild.id());
 		}
 	}
+
+	@Test
+	void testMergeGuildRosterWithStagingTable() {
+		final Guild guild = createGuild(nextStr());
+		final Guild otherGuild = createGuild(nextStr());
+		final Account acc = createAccount(nextId());
+		final Character rankChar = createChar(acc, guild);
+		final Character movedChar = createChar(null, otherGuild);
+		final Character leftChar = createChar(acc, guild);
+		final long newCharBnetId = nextId();
+		try (TransCnt trans = db.createTransaction()) {
+			db.save(acc, guild, otherGuild, rankChar, movedChar, leftChar);
+			trans.commit();
+		}
+
+		final int removedFromGuild;
+		try (TransCnt trans = db.createTransaction()) {
+			removedFromGuild = sync.mergeGuildRoster(BattleNetRegion.EU, guild,
+					List.of(new BattleNetWowCharacter(rankChar.bnetId, rankChar.name, rankChar.server, (byte) 7),
+							new BattleNetWowCharacter(movedChar.bnetId, movedChar.name, movedChar.server, (byte) 2),
+							new BattleNetWowCharacter(newCharBnetId, "new", "server", (byte) 3)),
+					true);
+			trans.commit();
+		}
+
+		assertThat(removedFromGuild).isOne();
+		try (TransCnt trans = db.createTransaction()) {
+			final Character rankTest = db.find(Character.class, rankChar.id);
+			assertThat(rankTest.rank).isEqualTo((byte) 7);
+			assertThat(rankTest.account.id()).as("Account is kept").isEqualTo(acc.id());
+			final Character movedTest = db.find(Character.class, movedChar.id);
+			assertThat(movedTest.guild.id()).isEqualTo(guild.id());
+			assertThat(movedTest.rank).isEqualTo((byte) 2);
+			assertThat(db.find(Character.class, leftChar.id).guild).isNull();
+			final Character newTest = db.characters.byBnetIds(BattleNetRegion.EU, List.of(newCharBnetId)).get(0);
+			assertThat(newTest.guild.id()).isEqualTo(guild.id());
+			assertThat(newTest.name).isEqualTo("new");
+			assertThat(newTest.rank).isEqualTo((byte) 3);
+			assertThat(newTest.account).isNull();
+		}
+		assertThat(db.forTestQuery(RosterStagingEntry.class, "FROM RosterStagingEntry")).as("Staging is cleaned up")
+				.isEmpty();
+	}
+
+	private RemoteSystem createRemoteSystem(final Guild guild) {
+		final RemoteSystem remote = new RemoteSystem();
+		remote.type = RemoteSystemType.Discord;
+		remote.guild = guild;
+		remote.memberGroup = "memberGroup";
+		remote.nameOrLink = "TestDiscord";
+		remote.systemId = nextId();
+		remote.forTestSetKey(nextStr());
+		return remote;
+	}
+
+	private AccountRemoteId createAccountRemoteId(final Account account, final RemoteSystem remote) {
+		final AccountRemoteId accountRemoteId = new AccountRemoteId();
+		accountRemoteId.account = account;
+		accountRemoteId.remoteSystem = remote;
+		accountRemoteId.remoteId = nextId();
+		return accountRemoteId;
+	}
+
+	private void testMergeGuildRosterMarksChangedRemoteUsers(final boolean useStagingTable) {
+		final Guild guild = createGuild(nextStr());
+		final RemoteSystem remote = createRemoteSystem(guild);
+		final Account rankAcc = createAccount(nextId());
+		final Account nameAcc = createAccount(nextId());
+		final Account leftAcc = createAccount(nextId());
+		final Character rankChar = createChar(rankAcc, guild);
+		final Character nameChar = createChar(nameAcc, guild);
+		final Character leftChar = createChar(leftAcc, guild);
+		final AccountRemoteId rankRemoteId = createAccountRemoteId(rankAcc, remote);
+		final AccountRemoteId nameRemoteId = createAccountRemoteId(nameAcc, remote);
+		final AccountRemoteId leftRemoteId = createAccountRemoteId(leftAcc, remote);
+		try (TransCnt trans = db.createTransaction()) {
+			db.save(guild, remote, rankAcc, nameAcc, leftAcc, rankChar, nameChar, leftChar, rankRemoteId,
+					nameRemoteId, leftRemoteId);
+			trans.commit();
+		}
+
+		try (TransCnt trans = db.createTransaction()) {
+			sync.mergeGuildRoster(BattleNetRegion.EU, guild,
+					List.of(new BattleNetWowCharacter(rankChar.bnetId, rankChar.name, rankChar.server, (byte) 7),
+							new BattleNetWowCharacter(nameChar.bnetId, nextStr(), nameChar.server, nameChar.rank)),
+					useStagingTable);
+			trans.commit();
+		}
+
+		assertThat(db.roleSyncDirty.remoteIds(remote)).as("Name changes dont change roles")
+				.containsExactlyInAnyOrder(rankRemoteId.remoteId, leftRemoteId.remoteId);
+		db.roleSyncDirty.delete(remote, db.roleSyncDirty.marks(remote));
+		assertThat(db.roleSyncDirty.remoteIds(remote)).isEmpty();
+	}
+
+	@Test
+	void testMergeGuildRosterMarksChangedRemoteUsers() {
+		testMergeGuildRosterMarksChangedRemoteUsers(false);
+	}
+
+	@Test
+	void testMergeGuildRosterWithStagingTableMarksChangedRemoteUsers() {
+		testMergeGuildRosterMarksChangedRemoteUsers(true);
+	}
+
+	@Test
+	void testUpdateCharactersMarksOldAndNewAccount() {
+		final Guild guild = createGuild(nextStr());
+		final RemoteSystem remote = createRemoteSystem(guild);
+		final Account oldAcc = createAccount(nextId());
+		final Account newAcc = createAccount(nextId());
+		final Character character = createChar(oldAcc, guild);
+		final AccountRemoteId oldRemoteId = createAccountRemoteId(oldAcc, remote);
+		final AccountRemoteId newRemoteId = createAccountRemoteId(newAcc, remote);
+		try (TransCnt trans = db.createTransaction()) {
+			db.save(guild, remote, oldAcc, newAcc, character, oldRemoteId, newRemoteId);
+			trans.commit();
+		}
+
+		try (TransCnt trans = db.createTransaction()) {
+			sync.updateCharacters(BattleNetRegion.EU, newAcc, null, Collections.singleton(
+					new BattleNetWowCharacter(character.bnetId, character.name, character.server, character.rank)));
+			trans.commit();
+		}
+
+		assertThat(db.roleSyncDirty.remoteIds(remote)).containsExactlyInAnyOrder(oldRemoteId.remoteId,
+				newRemoteId.remoteId);
+	}
+
+	@Test
+	void testUpdateAccountsBatch() {
+		final Account existing = createAccount(nextId());
+		try (TransCnt trans = db.createTransaction()) {
+			db.save(existing);
+			trans.commit();
+		}
+		final long newBnetId = nextId();
+		final long newCharBnetId = nextId();
+		final String newTag = nextStr();
+		try (TransCnt trans = db.createTransaction()) {
+			sync.updateAccounts(BattleNetRegion.EU, List.of(
+					new BattleNetToDbSync.UserData(new BattleNetProfileInfo(existing.bnetId(), newTag),
+							Collections.emptyList()),
+					new BattleNetToDbSync.UserData(new BattleNetProfileInfo(newBnetId, "new"),
+							List.of(new BattleNetWowCharacter(newCharBnetId, "char", "server", null)))));
+			trans.commit();
+		}
+
+		assertThat(db.accounts.byBnetId(existing.bnetId()).bnetTag()).isEqualTo(newTag);
+		final Account newAccount = db.accounts.byBnetId(newBnetId);
+		assertThat(newAccount).isNotNull();
+		assertThat(newAccount.bnetTag()).isEqualTo("new");
+		assertThat(newAccount.added()).isEqualTo(today());
+		final Character newChar = db.characters.byBnetIds(BattleNetRegion.EU, List.of(newCharBnetId)).get(0);
+		assertThat(newChar.account.id()).isEqualTo(newAccount.id());
+		assertThat(db.accounts.upsert(Collections.emptyList())).isEmpty();
+	}
+
+	@Test
+	void testFailedUserDoesntAbortOtherUsers() {
+		final long bnetId1 = nextId();
+		final long bnetId2 = nextId();
+		final long bnetId3 = nextId();
+		final List<Long> clients = List.of(bnetId1, bnetId2, bnetId3);
+		sync.updateAccountsFromTokens(BattleNetRegion.EU, threadPool, clients, bnetId -> {
+			if (bnetId == bnetId2) {
+				throw new RequestExecutionFailure(new IllegalStateException("Test"));
+			}
+			return new UserData(new BattleNetProfileInfo(bnetId, "tag" + bnetId), Collections.emptyList());
+		});
+
+		assertThat(db.accounts.byBnetId(bnetId1)).isNotNull();
+		assertThat(db.accounts.byBnetId(bnetId2)).isNull();
+		assertThat(db.accounts.byBnetId(bnetId3)).isNotNull();
+	}
+
+	@Test
+	void testFailedProfileRequestWaitsForCharactersRequest() throws Exception {
+		final CountDownLatch charactersStarted = new CountDownLatch(1);
+		final CountDownLatch finishCharacters = new CountDownLatch(1);
+		final AtomicBoolean charactersFinished = new AtomicBoolean(false);
+		final CompletableFuture<UserData> result = CompletableFuture.supplyAsync(() -> {
+			try {
+				return BattleNetToDbSync.fetchUserData(threadPool, () -> {
+					throw new RequestExecutionFailure(new IllegalStateException("Profile"));
+				}, () -> {
+					charactersStarted.countDown();
+					try {
+						finishCharacters.await();
+					} catch (InterruptedException e) {
+						throw new RequestExecutionFailure(e);
+					}
+					charactersFinished.set(true);
+					throw new RequestExecutionFailure(new IllegalStateException("Characters"));
+				});
+			} catch (RequestExecutionFailure e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		assertThat(charactersStarted.await(10, TimeUnit.SECONDS)).isTrue();
+		TimeUnit.MILLISECONDS.sleep(200);
+		assertThat(result).as("Characters request is still running").isNotDone();
+
+		finishCharacters.countDown();
+		final Throwable failure = result.handle((userData, e) -> e.getCause().getCause()).get(10, TimeUnit.SECONDS);
+		assertThat(charactersFinished).isTrue();
+		assertThat(failure).isInstanceOf(RequestExecutionFailure.class).rootCause().hasMessage("Profile");
+		assertThat(failure.getSuppressed()).singleElement().satisfies(
+				suppressed -> assertThat(suppressed).isInstanceOf(RequestExecutionFailure.class).rootCause()
+						.hasMessage("Characters"));
+	}
+
+	@Test
+	void testFailedCharactersRequest() {
+		final BattleNetProfileInfo profileInfo = new BattleNetProfileInfo(nextId(), nextStr());
+		assertThatThrownBy(() -> BattleNetToDbSync.fetchUserData(threadPool, () -> profileInfo, () -> {
+			throw new RequestExecutionFailure(new IllegalStateException("Characters"));
+		})).isInstanceOf(RequestExecutionFailure.class).rootCause().hasMessage("Characters");
+		assertThatThrownBy(() -> BattleNetToDbSync.fetchUserData(threadPool, () -> profileInfo, () -> {
+			throw new IllegalArgumentException("Unexpected");
+		})).isInstanceOf(RequestExecutionFailure.class).hasCauseInstanceOf(IllegalArgumentException.class);
+	}
 }
@@ -7,10 +7,18 @@ import static org.easymock.EasyMock.expectLastCall;
 
 import java.time.Clock;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.easymock.Capture;
 import org.easymock.CaptureType;
@@ -33,6 +41,8 @@ import eu._4fh.wowsync.database.data.RemoteSystem.RemoteSystemType;
 import eu._4fh.wowsync.database.data.RemoteSystemRankToGroup;
 import eu._4fh.wowsync.modules.Module;
 import eu._4fh.wowsync.modules.Module.RoleChange;
+import eu._4fh.wowsync.modules.MutationScheduler;
+import eu._4fh.wowsync.modules.MutationScheduler.Priority;
 import eu._4fh.wowsync.util.Singletons;
 import eu._4fh.wowsync.util.TestBase;
 
@@ -91,6 +101,28 @@ class DbToModuleSyncTest implements TestBase {
 		return rankToGroup;
 	}
 
+	private void markRemoteUser(final long remoteUserId) {
+		try (TransCnt trans = db.createTransaction()) {
+			db.roleSyncDirty.markRemoteUser(remoteSystem, remoteUserId);
+			trans.commit();
+		}
+	}
+
+	/**
+	 * The module calls the page handler once per given page.
+	 */
+	@SafeVarargs
+	private static void expectUsersPages(final Module module, final Map<Long, Set<String>>... pages) {
+		module.forEachUsersPage(EasyMock.anyInt(), EasyMock.anyObject());
+		EasyMock.expectLastCall().andStubAnswer(() -> {
+			final Consumer<Map<Long, Set<String>>> pageHandler = EasyMock.getCurrentArgument(1);
+			for (final Map<Long, Set<String>> page : pages) {
+				pageHandler.accept(page);
+			}
+			return null;
+		});
+	}
+
 	@Test
 	void testBuildRankToGroupsMap() {
 		final RemoteSystemRankToGroup r5Group = createRankToGroup(0, 5, nextStr());
@@ -98,23 +130,39 @@ class DbToModuleSyncTest implements TestBase {
 		final Set<String> r5Groups = Set.of(MEMBER_GROUP, r5Group.groupName());
 		final Set<String> r2Groups = Set.of(MEMBER_GROUP, r5Group.groupName(), r2Group.groupName());
 
-		final Map<Byte, Set<String>> map = new DbToModuleSync(remoteSystem, testModule)
-				.buildRankToGroupsMap(remoteSystem);
+		final Map<Byte, Set<String>> map = new DbToModuleSync(remoteSystem, testModule).buildRankToGroupsMap();
 		assertThat(map).containsOnly(entry((byte) 5, r5Groups), entry((byte) 4, r5Groups), entry((byte) 3, r5Groups),
 				entry((byte) 2, r2Groups), entry((byte) 1, r2Groups), entry((byte) 0, r2Groups));
 	}
 
+	@Test
+	void testRankRoleTableIsShared() {
+		createRankToGroup(0, 2, "group1");
+		final RankRoleTable table = new DbToModuleSync(remoteSystem, testModule).rankRoleTable();
+		assertThat(new DbToModuleSync(remoteSystem, testModule).rankRoleTable()).isSameAs(table);
+		assertThat(table.names(table.maskForRank((byte) 1))).containsExactlyInAnyOrder(MEMBER_GROUP, "group1");
+		assertThat(table.names(table.maskForRank((byte) 3))).containsExactlyInAnyOrder(MEMBER_GROUP);
+
+		createRankToGroup(3, 3, "group2");
+		final RankRoleTable changedTable = new DbToModuleSync(remoteSystem, testModule).rankRoleTable();
+		assertThat(changedTable).as("Saved rank groups invalidate the table").isNotSameAs(table);
+		assertThat(changedTable.names(changedTable.maskForRank((byte) 3))).containsExactlyInAnyOrder(MEMBER_GROUP,
+				"group2");
+		assertThat(changedTable.maskForRoles(Set.of("group1", "notManagedGroup")))
+				.isEqualTo(changedTable.maskForRoles(Set.of("group1")));
+	}
+
 	@Test
 	void testCalculateRolesUserNotOnServer() {
 		final DbToModuleSync sync = new DbToModuleSync(remoteSystem, testModule);
-		assertThat(sync.calculateRoleChanges(null, Set.of(MEMBER_GROUP, "group1"))).isNull();
+		assertThat(sync.calculateRoleChanges(null, sync.rankRoleTable().maskForRoles(Set.of(MEMBER_GROUP))))
+				.isNull();
 	}
 
 	@Test
 	void testCalculateRolesForRemovedUserNoFormerGroup() {
 		final DbToModuleSync sync = new DbToModuleSync(remoteSystem, testModule);
-		final RoleChange change = sync.calculateRoleChanges(Set.of(MEMBER_GROUP, "notManagedGroup"),
-				Collections.emptySet());
+		final RoleChange change = sync.calculateRoleChanges(Set.of(MEMBER_GROUP, "notManagedGroup"), 0L);
 		assertThat(change).isNotNull();
 		assertThat(change.toRemove).containsExactlyInAnyOrder(MEMBER_GROUP);
 		assertThat(change.toAdd).containsExactlyInAnyOrder(FORMER_MEMBER_GROUP);
@@ -130,8 +178,7 @@ class DbToModuleSyncTest implements TestBase {
 			trans.commit();
 		}
 		final DbToModuleSync sync = new DbToModuleSync(remoteSystem, testModule);
-		final RoleChange change = sync.calculateRoleChanges(Set.of(MEMBER_GROUP, "notManagedGroup"),
-				Collections.emptySet());
+		final RoleChange change = sync.calculateRoleChanges(Set.of(MEMBER_GROUP, "notManagedGroup"), 0L);
 		assertThat(change).isNotNull();
 		assertThat(change.toRemove).containsExactlyInAnyOrder(MEMBER_GROUP);
 		assertThat(change.toAdd).containsExactlyInAnyOrder(formerMemberGroup);
@@ -139,9 +186,10 @@ class DbToModuleSyncTest implements TestBase {
 
 	@Test
 	void testCalculateRolesForNewUser() {
+		createRankToGroup(0, 0, "group1");
 		final DbToModuleSync sync = new DbToModuleSync(remoteSystem, testModule);
 		final RoleChange change = sync.calculateRoleChanges(Collections.singleton(FORMER_MEMBER_GROUP),
-				Set.of(MEMBER_GROUP, "group1"));
+				sync.rankRoleTable().maskForRoles(Set.of(MEMBER_GROUP, "group1")));
 		assertThat(change).isNotNull();
 		assertThat(change.toRemove).containsExactlyInAnyOrder(FORMER_MEMBER_GROUP);
 		assertThat(change.toAdd).containsExactlyInAnyOrder(MEMBER_GROUP, "group1");
@@ -162,7 +210,7 @@ class DbToModuleSyncTest implements TestBase {
 
 		final DbToModuleSync sync = new DbToModuleSync(remoteSystem, testModule);
 		final RoleChange change = sync.calculateRoleChanges(Set.of(MEMBER_GROUP, "notManagedGroup"),
-				Set.of(MEMBER_GROUP, groupName));
+				sync.rankRoleTable().maskForRoles(Set.of(MEMBER_GROUP, groupName)));
 		assertThat(change).isNotNull();
 		assertThat(change.toRemove).isEmpty();
 		assertThat(change.toAdd).containsExactlyInAnyOrder(groupName);
@@ -227,7 +275,7 @@ class DbToModuleSyncTest implements TestBase {
 		module.setCharacterNames(EasyMock.eq(remoteUserId), EasyMock.anyObject());
 		expectLastCall();
 		final Capture<Map<Long, RoleChange>> roleChangesCapture = EasyMock.newCapture(CaptureType.ALL);
-		module.changeRoles(EasyMock.capture(roleChangesCapture));
+		module.changeRoles(EasyMock.capture(roleChangesCapture), EasyMock.eq(Priority.Interactive));
 		expectLastCall();
 		EasyMock.replay(module);
 
@@ -265,7 +313,7 @@ class DbToModuleSyncTest implements TestBase {
 		module.setCharacterNames(EasyMock.eq(remoteUserId), EasyMock.anyObject());
 		expectLastCall();
 		final Capture<Map<Long, RoleChange>> roleChangesCapture = EasyMock.newCapture(CaptureType.ALL);
-		module.changeRoles(EasyMock.capture(roleChangesCapture));
+		module.changeRoles(EasyMock.capture(roleChangesCapture), EasyMock.eq(Priority.Interactive));
 		expectLastCall();
 		EasyMock.replay(module);
 
@@ -290,8 +338,7 @@ class DbToModuleSyncTest implements TestBase {
 		final Set<String> r2Groups = Set.of(MEMBER_GROUP, r2To5Group.groupName());
 		final Set<String> r3To5Groups = Set.of(MEMBER_GROUP, r2To5Group.groupName(), r3To5Group.groupName());
 
-		final Map<Byte, Set<String>> map = new DbToModuleSync(remoteSystem, testModule)
-				.buildRankToGroupsMap(remoteSystem);
+		final Map<Byte, Set<String>> map = new DbToModuleSync(remoteSystem, testModule).buildRankToGroupsMap();
 		assertThat(map).containsOnly(entry((byte) 5, r3To5Groups), entry((byte) 4, r3To5Groups),
 				entry((byte) 3, r3To5Groups), entry((byte) 2, r2Groups), entry((byte) 1, r0To1Groups),
 				entry((byte) 0, r0To1Groups));
@@ -307,10 +354,9 @@ class DbToModuleSyncTest implements TestBase {
 		final Module testModule = EasyMock.strictMock(Module.class);
 		testModule.close();
 		EasyMock.expectLastCall().asStub();
-		EasyMock.expect(testModule.getAllUsersWithRoles())
-				.andStubReturn(Map.of(user1Id, Set.of(MEMBER_GROUP), user2Id, Set.of()));
+		expectUsersPages(testModule, Map.of(user1Id, Set.of(MEMBER_GROUP), user2Id, Set.of()));
 		testModule.changeRoles(Map.of(user1Id, new RoleChange(Set.of(FORMER_MEMBER_GROUP), Set.of(MEMBER_GROUP)),
-				user2Id, new RoleChange(Set.of(MEMBER_GROUP), Set.of())));
+				user2Id, new RoleChange(Set.of(MEMBER_GROUP), Set.of())), Priority.Batch);
 		EasyMock.expectLastCall().once();
 		EasyMock.replay(testModule);
 
@@ -339,8 +385,8 @@ class DbToModuleSyncTest implements TestBase {
 		final Module testModule = EasyMock.strictMock(Module.class);
 		testModule.close();
 		EasyMock.expectLastCall().asStub();
-		EasyMock.expect(testModule.getAllUsersWithRoles()).andStubReturn(Map.of(userId, Set.of(MEMBER_GROUP)));
-		testModule.changeRoles(Map.of(userId, new RoleChange(Set.of(GROUP1, GROUP2), Set.of())));
+		expectUsersPages(testModule, Map.of(userId, Set.of(MEMBER_GROUP)));
+		testModule.changeRoles(Map.of(userId, new RoleChange(Set.of(GROUP1, GROUP2), Set.of())), Priority.Batch);
 		EasyMock.expectLastCall().once();
 		EasyMock.replay(testModule);
 
@@ -349,6 +395,164 @@ class DbToModuleSyncTest implements TestBase {
 		EasyMock.verify(testModule);
 	}
 
+	@Test
+	void testSyncToModuleChangesRolesPerPage() {
+		final long user1Id = nextId();
+		final long user2Id = nextId();
+		final long notOnServerUserId = nextId();
+		createCharacter(user1Id, remoteSystem.guild);
+		createCharacter(user2Id, remoteSystem.guild);
+		createCharacter(notOnServerUserId, remoteSystem.guild);
+
+		final Module testModule = EasyMock.strictMock(Module.class);
+		testModule.close();
+		EasyMock.expectLastCall().asStub();
+		expectUsersPages(testModule, Map.of(user1Id, Set.of()), Map.of(user2Id, Set.of()));
+		testModule.changeRoles(Map.of(user1Id, new RoleChange(Set.of(MEMBER_GROUP), Set.of())), Priority.Batch);
+		EasyMock.expectLastCall().once();
+		testModule.changeRoles(Map.of(user2Id, new RoleChange(Set.of(MEMBER_GROUP), Set.of())), Priority.Batch);
+		EasyMock.expectLastCall().once();
+		EasyMock.replay(testModule);
+
+		assertThat(new DbToModuleSync(remoteSystem, testModule, 1).syncToModule()).isEqualTo(2);
+
+		EasyMock.verify(testModule);
+	}
+
+	@Test
+	void testSyncToModuleWaitsForQueuedChanges() throws Exception {
+		final List<Long> userIds = new ArrayList<>();
+		for (int i = 0; i < 5; ++i) {
+			final long userId = nextId();
+			createCharacter(userId, remoteSystem.guild);
+			userIds.add(userId);
+		}
+		@SuppressWarnings("unchecked")
+		final Map<Long, Set<String>>[] pages = userIds.stream().map(userId -> Map.of(userId, Set.<String> of()))
+				.toArray(Map[]::new);
+
+		final CountDownLatch remoteSystemAvailable = new CountDownLatch(1);
+		final Set<Long> changedUsers = ConcurrentHashMap.newKeySet();
+		final ExecutorService remoteSystemThreads = Executors.newCachedThreadPool();
+		try (MutationScheduler mutations = new MutationScheduler(nextStr(), 0, 1, 1,
+				TimeUnit.SECONDS.toMillis(30))) {
+			final Module testModule = EasyMock.strictMock(Module.class);
+			testModule.close();
+			EasyMock.expectLastCall().asStub();
+			expectUsersPages(testModule, pages);
+			testModule.changeRoles(EasyMock.anyObject(), EasyMock.eq(Priority.Batch));
+			EasyMock.expectLastCall().andStubAnswer(() -> {
+				final Map<Long, RoleChange> roleChanges = EasyMock.getCurrentArgument(0);
+				mutations.submit(Priority.Batch, roleChanges.toString(),
+						(onSuccess, onFailure) -> remoteSystemThreads.execute(() -> {
+							try {
+								remoteSystemAvailable.await();
+								changedUsers.addAll(roleChanges.keySet());
+								onSuccess.run();
+							} catch (InterruptedException e) {
+								onFailure.accept(e);
+							}
+						}), EasyMock.createNiceMock(MutationScheduler.Callback.class));
+				return null;
+			});
+			EasyMock.replay(testModule);
+
+			final Future<Integer> numChanged = remoteSystemThreads
+					.submit(() -> new DbToModuleSync(remoteSystem, testModule, 1).syncToModule());
+			// One change running and one queued: the third page has to wait
+			TimeUnit.MILLISECONDS.sleep(200);
+			assertThat(numChanged).as("Sync waits for the remote system").isNotDone();
+			assertThat(changedUsers).isEmpty();
+
+			remoteSystemAvailable.countDown();
+			assertThat(numChanged.get(10, TimeUnit.SECONDS)).isEqualTo(5);
+			assertThat(mutations.awaitIdle(10, TimeUnit.SECONDS)).isTrue();
+			assertThat(changedUsers).containsExactlyInAnyOrderElementsOf(userIds);
+			assertThat(mutations.progress(Priority.Batch).succeeded).isEqualTo(5);
+			EasyMock.verify(testModule);
+		} finally {
+			remoteSystemThreads.shutdownNow();
+		}
+	}
+
+	@Test
+	void testSyncChangedUsers() {
+		final long addedUserId = nextId();
+		final long removedUserId = nextId();
+		final long unchangedUserId = nextId();
+		createCharacter(addedUserId, remoteSystem.guild);
+		createCharacter(removedUserId, null);
+		createCharacter(unchangedUserId, remoteSystem.guild);
+		markRemoteUser(addedUserId);
+		markRemoteUser(removedUserId);
+
+		final Module testModule = EasyMock.strictMock(Module.class);
+		testModule.close();
+		EasyMock.expectLastCall().asStub();
+		// Only the changed users are requested, not all users
+		EasyMock.expect(testModule.getRolesForUsers(EasyMock.anyObject()))
+				.andReturn(Map.of(addedUserId, Set.of(), removedUserId, Set.of(MEMBER_GROUP))).once();
+		testModule.changeRoles(Map.of(addedUserId, new RoleChange(Set.of(MEMBER_GROUP), Set.of()), removedUserId,
+				new RoleChange(Set.of(FORMER_MEMBER_GROUP), Set.of(MEMBER_GROUP))), Priority.Batch);
+		EasyMock.expectLastCall().once();
+		EasyMock.replay(testModule);
+
+		final DbToModuleSync sync = new DbToModuleSync(remoteSystem, testModule);
+		assertThat(sync.syncChangedUsers()).isEqualTo(2);
+		assertThat(db.roleSyncDirty.remoteIds(remoteSystem)).as("Synced users are no longer changed").isEmpty();
+		assertThat(sync.syncChangedUsers()).as("Nothing changed, module isnt called").isZero();
+
+		EasyMock.verify(testModule);
+	}
+
+	@Test
+	void testUserMarkedDuringSyncStaysMarked() {
+		final long userId = nextId();
+		createCharacter(userId, remoteSystem.guild);
+		markRemoteUser(userId);
+		markRemoteUser(userId);
+		assertThat(db.roleSyncDirty.marks(remoteSystem)).as("Marked again").containsExactly(entry(userId, 1L));
+
+		final Module testModule = EasyMock.strictMock(Module.class);
+		testModule.close();
+		EasyMock.expectLastCall().asStub();
+		EasyMock.expect(testModule.getRolesForUsers(List.of(userId))).andAnswer(() -> {
+			// The Battle.net sync changes the user while its roles are compared
+			markRemoteUser(userId);
+			return Map.of(userId, Set.of(MEMBER_GROUP));
+		}).once();
+		EasyMock.expect(testModule.getRolesForUsers(List.of(userId))).andReturn(Map.of(userId, Set.of(MEMBER_GROUP)))
+				.once();
+		EasyMock.replay(testModule);
+
+		final DbToModuleSync sync = new DbToModuleSync(remoteSystem, testModule);
+		assertThat(sync.syncChangedUsers()).isZero();
+		assertThat(db.roleSyncDirty.remoteIds(remoteSystem)).as("Synced by the next sync").containsExactly(userId);
+		assertThat(sync.syncChangedUsers()).isZero();
+		assertThat(db.roleSyncDirty.remoteIds(remoteSystem)).isEmpty();
+
+		EasyMock.verify(testModule);
+	}
+
+	@Test
+	void testSyncToModuleClearsChangedUsers() {
+		final long userId = nextId();
+		createCharacter(userId, remoteSystem.guild);
+		markRemoteUser(userId);
+
+		final Module testModule = EasyMock.strictMock(Module.class);
+		testModule.close();
+		EasyMock.expectLastCall().asStub();
+		// Nothing to change, so changeRoles isnt called
+		expectUsersPages(testModule, Map.of(userId, Set.of(MEMBER_GROUP)));
+		EasyMock.replay(testModule);
+
+		assertThat(new DbToModuleSync(remoteSystem, testModule).syncToModule()).isZero();
+		assertThat(db.roleSyncDirty.remoteIds(remoteSystem)).isEmpty();
+
+		EasyMock.verify(testModule);
+	}
+
 	@Test
 	void testSyncsyncForUser() {
 		final String GROUP1 = "group1";
@@ -376,7 +580,8 @@ class DbToModuleSyncTest implements TestBase {
 		EasyMock.expect(testModule.getRolesForUser(userId)).andStubReturn(Set.of());
 		testModule.setCharacterNames(userId, List.of(char3.name, char2.name, char1.name));
 		EasyMock.expectLastCall().once();
-		testModule.changeRoles(Map.of(userId, new RoleChange(Set.of(MEMBER_GROUP, GROUP1), Set.of())));
+		testModule.changeRoles(Map.of(userId, new RoleChange(Set.of(MEMBER_GROUP, GROUP1), Set.of())),
+				Priority.Interactive);
 		EasyMock.expectLastCall().once();
 		EasyMock.replay(testModule);
 
@@ -430,8 +635,8 @@ class DbToModuleSyncTest implements TestBase {
 		testModule.close();
 		EasyMock.expectLastCall().asStub();
 		EasyMock.expect(testModule.deleteUsersAfterInactiveDays()).andStubReturn(1);
-		EasyMock.expect(testModule.getAllUsersWithRoles()).andStubReturn(Map.of(userToday, Set.of(), userYesterday,
-				Set.of(), userDayBeforeYesterday, Set.of(), userInGroup, Set.of(GROUP), userNotYetSeen, Set.of()));
+		expectUsersPages(testModule, Map.of(userToday, Set.of(), userYesterday, Set.of()),
+				Map.of(userDayBeforeYesterday, Set.of(), userInGroup, Set.of(GROUP)), Map.of(userNotYetSeen, Set.of()));
 		EasyMock.expect(testModule.deleteInactiveUsers(EasyMock.eq(Set.of(userDayBeforeYesterday)))).andReturn(1)
 				.once();
 		EasyMock.replay(testModule);
@@ -0,0 +1,139 @@
+package eu._4fh.wowsync.sync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.easymock.EasyMock;
+import org.junit.jupiter.api.Test;
+
+import eu._4fh.abstract_bnet_api.oauth2.BattleNetRegion;
+import eu._4fh.wowsync.database.Db;
+import eu._4fh.wowsync.database.Transaction.TransCnt;
+import eu._4fh.wowsync.database.data.Guild;
+import eu._4fh.wowsync.database.data.RemoteSystem;
+import eu._4fh.wowsync.database.data.RemoteSystem.RemoteSystemType;
+import eu._4fh.wowsync.database.data.RemoteSystemRankToGroup;
+import eu._4fh.wowsync.modules.Module;
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.TestBase;
+
+class ModuleSyncsTest implements TestBase {
+	private final Db db = Singletons.instance(Db.class);
+
+	private RemoteSystem createRemoteSystem() {
+		final Guild guild = new Guild();
+		guild.setRegion(BattleNetRegion.EU);
+		guild.setServer(nextStr());
+		guild.setName(nextStr());
+		final RemoteSystem remoteSystem = new RemoteSystem();
+		remoteSystem.guild = guild;
+		remoteSystem.memberGroup = "member";
+		remoteSystem.nameOrLink = nextStr();
+		remoteSystem.type = RemoteSystemType.Discord;
+		remoteSystem.systemId = nextId();
+		remoteSystem.forTestSetKey(nextStr());
+		try (TransCnt trans = db.createTransaction()) {
+			db.save(guild, remoteSystem);
+			trans.commit();
+		}
+		return remoteSystem;
+	}
+
+	private Module createModule(final CountDownLatch allRunning) {
+		final Module module = EasyMock.niceMock(Module.class);
+		EasyMock.expect(module.deleteUsersAfterInactiveDays()).andStubReturn(0);
+		module.forEachUsersPage(EasyMock.anyInt(), EasyMock.anyObject());
+		EasyMock.expectLastCall().andAnswer(() -> {
+			allRunning.countDown();
+			assertThat(allRunning.await(10, TimeUnit.SECONDS)).as("All syncs run at the same time").isTrue();
+			return null;
+		}).once();
+		EasyMock.replay(module);
+		return module;
+	}
+
+	@Test
+	void testFailureDoesntStopOtherSystems() {
+		final RemoteSystem system1 = createRemoteSystem();
+		final RemoteSystem failingSystem = createRemoteSystem();
+		final RemoteSystem system3 = createRemoteSystem();
+		final CountDownLatch allRunning = new CountDownLatch(2);
+		final Module module1 = createModule(allRunning);
+		final Module module3 = createModule(allRunning);
+
+		final List<ModuleSyncs.Result> results = new ModuleSyncs(3, new FullRoleSyncSchedule(24), remoteSystem -> {
+			if (remoteSystem == failingSystem) {
+				throw new IllegalStateException("Test failure");
+			}
+			return new DbToModuleSync(remoteSystem, remoteSystem == system1 ? module1 : module3);
+		}).syncAll(List.of(system1, failingSystem, system3));
+
+		EasyMock.verify(module1, module3);
+		assertThat(results).extracting(result -> result.remoteSystem).containsExactly(system1, failingSystem,
+				system3);
+		assertThat(results).extracting(ModuleSyncs.Result::isSuccess).containsExactly(true, false, true);
+		assertThat(results.get(1).failure).isInstanceOf(IllegalStateException.class).hasMessage("Test failure");
+		assertThat(results.get(1).toString()).contains("FAILED", "Test failure");
+		assertThat(results.get(0).toString()).contains("OK", "full sync");
+	}
+
+	@Test
+	void testIncrementalSyncBetweenFullSyncs() {
+		final RemoteSystem remoteSystem = createRemoteSystem();
+		final Module fullSyncModule = createModule(new CountDownLatch(1));
+		final FullRoleSyncSchedule schedule = new FullRoleSyncSchedule(24);
+
+		final List<ModuleSyncs.Result> fullResults = new ModuleSyncs(1, schedule,
+				system -> new DbToModuleSync(system, fullSyncModule)).syncAll(List.of(remoteSystem));
+		EasyMock.verify(fullSyncModule);
+		assertThat(fullResults).extracting(result -> result.fullSync).containsExactly(true);
+
+		// Strict mock without expectations: Without changed users the incremental sync doesnt call the module
+		final Module incrementalModule = EasyMock.strictMock(Module.class);
+		EasyMock.replay(incrementalModule);
+		final List<ModuleSyncs.Result> incrementalResults = new ModuleSyncs(1, schedule,
+				system -> new DbToModuleSync(system, incrementalModule)).syncAll(List.of(remoteSystem));
+		EasyMock.verify(incrementalModule);
+		assertThat(incrementalResults).extracting(result -> result.fullSync).containsExactly(false);
+		assertThat(incrementalResults.get(0).toString()).contains("OK", "incremental sync", "0 users changed");
+
+		assertThat(new FullRoleSyncSchedule(0).isFullSyncDue(remoteSystem,
+				Singletons.instance(RankRoleTables.class).get(remoteSystem), Instant.now())).isTrue();
+	}
+
+	@Test
+	void testMappingChangeForcesFullSync() {
+		final RemoteSystem remoteSystem = createRemoteSystem();
+		final FullRoleSyncSchedule schedule = new FullRoleSyncSchedule(24);
+		final Module firstModule = createModule(new CountDownLatch(1));
+		new ModuleSyncs(1, schedule, system -> new DbToModuleSync(system, firstModule)).syncAll(List.of(remoteSystem));
+		EasyMock.verify(firstModule);
+
+		// Like the cron job: The table is compiled again, but the expected roles are the same
+		db.invalidateConfigCaches();
+		final Module unchangedModule = EasyMock.strictMock(Module.class);
+		EasyMock.replay(unchangedModule);
+		assertThat(new ModuleSyncs(1, schedule, system -> new DbToModuleSync(system, unchangedModule))
+				.syncAll(List.of(remoteSystem))).extracting(result -> result.fullSync).containsExactly(false);
+		EasyMock.verify(unchangedModule);
+
+		final RemoteSystemRankToGroup rankToGroup = new RemoteSystemRankToGroup();
+		rankToGroup.setRemoteSystem(remoteSystem);
+		rankToGroup.setGuildRankFrom((byte) 0);
+		rankToGroup.setGuildRankTo((byte) 2);
+		rankToGroup.setGroupName(nextStr());
+		try (TransCnt trans = db.createTransaction()) {
+			db.save(rankToGroup);
+			trans.commit();
+		}
+		final Module changedModule = createModule(new CountDownLatch(1));
+		assertThat(new ModuleSyncs(1, schedule, system -> new DbToModuleSync(system, changedModule))
+				.syncAll(List.of(remoteSystem))).as("Users without changes get the new roles too")
+				.extracting(result -> result.fullSync).containsExactly(true);
+		EasyMock.verify(changedModule);
+	}
+}
@@ -0,0 +1,201 @@
+package eu._4fh.wowsync.sync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import eu._4fh.wowsync.sync.BattleNetToDbSync.RequestExecutionFailure;
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.Statistics;
+
+class ParallelRequestsTest {
+	private final ExecutorService threadPool = Executors.newFixedThreadPool(8);
+
+	@AfterEach
+	void teardown() {
+		threadPool.shutdownNow();
+	}
+
+	private static void sleep(final long millis) {
+		try {
+			TimeUnit.MILLISECONDS.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Test
+	void testMaxInFlightAndResultsOnCallingThread() {
+		final AtomicInteger running = new AtomicInteger(0);
+		final AtomicInteger maxRunning = new AtomicInteger(0);
+		final List<Integer> results = new ArrayList<>();
+		final List<Integer> failures = new ArrayList<>();
+		final Thread callingThread = Thread.currentThread();
+		final List<Integer> inputs = IntStream.range(0, 20).boxed().collect(Collectors.toList());
+
+		new ParallelRequests<Integer, Integer>("test", threadPool, 3, 10, 5).execute(inputs, input -> {
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			try {
+				sleep(5);
+			} finally {
+				running.decrementAndGet();
+			}
+			if (input % 5 == 0) {
+				throw new RequestExecutionFailure(new IllegalStateException("Test " + input));
+			}
+			return input * 2;
+		}, new ParallelRequests.ResultHandler<>() {
+			@Override
+			public void onResult(final Integer input, final Integer result) {
+				assertThat(Thread.currentThread()).isSameAs(callingThread);
+				results.add(result);
+			}
+
+			@Override
+			public void onFailure(final Integer input, final RequestExecutionFailure failure) {
+				assertThat(Thread.currentThread()).isSameAs(callingThread);
+				failures.add(input);
+			}
+		});
+
+		assertThat(maxRunning.get()).isBetween(1, 3);
+		assertThat(failures).containsExactlyInAnyOrder(0, 5, 10, 15);
+		assertThat(results).hasSize(16).doesNotContain(0, 10, 20, 30);
+	}
+
+	@Test
+	void testSlowWriterBatchesAndBackpressure() {
+		final Statistics statistics = Singletons.instance(Statistics.class);
+		final long batchesBefore = statistics.get("sync.backpressure-test.batches");
+		final AtomicInteger fetched = new AtomicInteger(0);
+		final AtomicInteger written = new AtomicInteger(0);
+		final AtomicInteger maxAhead = new AtomicInteger(0);
+		final List<Integer> batchSizes = new ArrayList<>();
+		final List<Integer> inputs = IntStream.range(0, 30).boxed().collect(Collectors.toList());
+
+		new ParallelRequests<Integer, Integer>("backpressure-test", threadPool, 2, 4, 3).execute(inputs, input -> {
+			fetched.incrementAndGet();
+			return input;
+		}, new ParallelRequests.ResultHandler<>() {
+			private int batchSize = 0;
+
+			@Override
+			public void onResult(final Integer input, final Integer result) {
+				maxAhead.accumulateAndGet(fetched.get() - written.incrementAndGet(), Math::max);
+				batchSize++;
+				sleep(2);
+			}
+
+			@Override
+			public void onFailure(final Integer input, final RequestExecutionFailure failure) {
+				throw new IllegalStateException(failure);
+			}
+
+			@Override
+			public void onBatchDone() {
+				batchSizes.add(batchSize);
+				batchSize = 0;
+			}
+		});
+
+		assertThat(written.get()).isEqualTo(30);
+		// Rest of the current batch, queue capacity and one result per worker that waits for space in the queue
+		assertThat(maxAhead.get()).isLessThanOrEqualTo(2 + 4 + 2);
+		assertThat(batchSizes).allMatch(size -> size >= 1 && size <= 3);
+		assertThat(batchSizes).as("Writer took more than one result at once").anyMatch(size -> size > 1);
+		assertThat(statistics.get("sync.backpressure-test.batches") - batchesBefore).isEqualTo(batchSizes.size());
+	}
+
+	@Test
+	void testUnexpectedFailure() {
+		final List<Integer> inputs = IntStream.range(0, 5).boxed().collect(Collectors.toList());
+		assertThatThrownBy(() -> new ParallelRequests<Integer, Integer>("test", threadPool, 2, 2, 2).execute(inputs,
+				input -> {
+					throw new IllegalArgumentException("Test");
+				}, new ParallelRequests.ResultHandler<>() {
+					@Override
+					public void onResult(final Integer input, final Integer result) {
+					}
+
+					@Override
+					public void onFailure(final Integer input, final RequestExecutionFailure failure) {
+					}
+				})).isInstanceOf(IllegalStateException.class).hasCauseInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	void testErrorInRequest() {
+		final List<Integer> inputs = IntStream.range(0, 5).boxed().collect(Collectors.toList());
+		assertThatThrownBy(() -> new ParallelRequests<Integer, Integer>("test", threadPool, 2, 2, 2).execute(inputs,
+				input -> {
+					throw new AssertionError("Test");
+				}, new ParallelRequests.ResultHandler<>() {
+					@Override
+					public void onResult(final Integer input, final Integer result) {
+					}
+
+					@Override
+					public void onFailure(final Integer input, final RequestExecutionFailure failure) {
+					}
+				})).isInstanceOf(IllegalStateException.class).hasCauseInstanceOf(AssertionError.class);
+	}
+
+	@Test
+	void testWorkerDiesWithoutResult() {
+		// The worker dies while taking the second input, so it never puts an outcome for it into the queue
+		final Collection<Integer> inputs = new AbstractCollection<>() {
+			@Override
+			public Iterator<Integer> iterator() {
+				return new Iterator<>() {
+					private boolean first = true;
+
+					@Override
+					public boolean hasNext() {
+						return true;
+					}
+
+					@Override
+					public Integer next() {
+						if (first) {
+							first = false;
+							return 1;
+						}
+						throw new AssertionError("Test");
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return 2;
+			}
+		};
+		final List<Integer> results = new ArrayList<>();
+		assertThatThrownBy(() -> new ParallelRequests<Integer, Integer>("test", threadPool, 1, 2, 2).execute(inputs,
+				input -> input, new ParallelRequests.ResultHandler<>() {
+					@Override
+					public void onResult(final Integer input, final Integer result) {
+						results.add(result);
+					}
+
+					@Override
+					public void onFailure(final Integer input, final RequestExecutionFailure failure) {
+					}
+				})).isInstanceOf(IllegalStateException.class).hasCauseInstanceOf(AssertionError.class);
+		assertThat(results).containsExactly(1);
+	}
+}
@@ -0,0 +1,125 @@
+package eu._4fh.wowsync.sync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.wowsync.database.data.RemoteSystem;
+import eu._4fh.wowsync.database.data.RemoteSystemRankToGroup;
+
+/**
+ * Compares the role diff of 50k members with name sets (as DbToModuleSync did before) and with the bitmasks of the
+ * {@link RankRoleTable}. Only runs with -Dwowsync.benchmark=true, the timings are printed to stdout.
+ */
+@DefaultAnnotation(NonNull.class)
+@EnabledIfSystemProperty(named = "wowsync.benchmark", matches = "true")
+class RankRoleTableBenchmarkTest {
+	private static final int MEMBERS = 50_000;
+	private static final int RUNS = 20;
+	private static final String MEMBER_GROUP = "member";
+
+	@Test
+	void benchmarkRoleDiff() {
+		final RemoteSystem remoteSystem = new RemoteSystem();
+		remoteSystem.memberGroup = MEMBER_GROUP;
+		final List<RemoteSystemRankToGroup> rankToGroups = new ArrayList<>();
+		for (int rank = 0; rank < 10; ++rank) {
+			final RemoteSystemRankToGroup rankToGroup = new RemoteSystemRankToGroup();
+			rankToGroup.setRemoteSystem(remoteSystem);
+			rankToGroup.setGuildRankFrom((byte) 0);
+			rankToGroup.setGuildRankTo((byte) rank);
+			rankToGroup.setGroupName("group" + rank);
+			rankToGroups.add(rankToGroup);
+		}
+		final RankRoleTable table = new RankRoleTable(remoteSystem, rankToGroups);
+		final Map<Byte, Set<String>> rankToGroupsMap = table.toRankToGroupsMap();
+
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final Map<Long, Set<Byte>> ranksPerUser = new HashMap<>();
+		final Map<Long, Set<String>> actualRolesPerUser = new HashMap<>();
+		for (long user = 1; user <= MEMBERS; ++user) {
+			final Set<Byte> ranks = Set.of((byte) random.nextInt(10));
+			ranksPerUser.put(user, ranks);
+			// Most members already have the right roles, some have one role too much and all have unmanaged roles
+			final Set<String> actualRoles = new HashSet<>(rankToGroupsMap.get(ranks.iterator().next()));
+			if (user % 20 == 0) {
+				actualRoles.add("group9");
+			}
+			actualRoles.add("unmanaged" + (user % 5));
+			actualRolesPerUser.put(user, actualRoles);
+		}
+
+		for (int round = 0; round < 2; ++round) {
+			// The first round warms up the JIT
+			long setNanos = 0;
+			long maskNanos = 0;
+			int setChanges = 0;
+			int maskChanges = 0;
+			for (int run = 0; run < RUNS; ++run) {
+				long start = System.nanoTime();
+				setChanges = diffWithSets(rankToGroupsMap, table.allRoles(), ranksPerUser, actualRolesPerUser);
+				setNanos += System.nanoTime() - start;
+				start = System.nanoTime();
+				maskChanges = diffWithMasks(table, ranksPerUser, actualRolesPerUser);
+				maskNanos += System.nanoTime() - start;
+			}
+			assertThat(maskChanges).isEqualTo(setChanges);
+			System.out.printf("Role diff of %d members with %d changes: sets %dms, bitmasks %dms%n", MEMBERS,
+					maskChanges, TimeUnit.NANOSECONDS.toMillis(setNanos / RUNS),
+					TimeUnit.NANOSECONDS.toMillis(maskNanos / RUNS));
+		}
+	}
+
+	private static int diffWithSets(final Map<Byte, Set<String>> rankToGroups, final Set<String> allGroups,
+			final Map<Long, Set<Byte>> ranksPerUser, final Map<Long, Set<String>> actualRolesPerUser) {
+		final Set<String> memberGroupSet = Collections.singleton(MEMBER_GROUP);
+		int numChanges = 0;
+		for (final Map.Entry<Long, Set<Byte>> user : ranksPerUser.entrySet()) {
+			final Set<String> expectedRoles = user.getValue().stream()
+					.flatMap(rank -> rankToGroups.getOrDefault(rank, memberGroupSet).stream())
+					.collect(Collectors.toUnmodifiableSet());
+			final Set<String> actualRoles = new HashSet<>(actualRolesPerUser.get(user.getKey()));
+			actualRoles.retainAll(allGroups);
+			final Set<String> toAdd = new HashSet<>(expectedRoles);
+			toAdd.removeAll(actualRoles);
+			final Set<String> toRemove = new HashSet<>(actualRoles);
+			toRemove.removeAll(expectedRoles);
+			if (!toAdd.isEmpty() || !toRemove.isEmpty()) {
+				numChanges++;
+			}
+		}
+		return numChanges;
+	}
+
+	private static int diffWithMasks(final RankRoleTable table, final Map<Long, Set<Byte>> ranksPerUser,
+			final Map<Long, Set<String>> actualRolesPerUser) {
+		int numChanges = 0;
+		for (final Map.Entry<Long, Set<Byte>> user : ranksPerUser.entrySet()) {
+			final long expectedRoles = table.maskForRanks(user.getValue());
+			final long actualRoles = table.maskForRoles(actualRolesPerUser.get(user.getKey()));
+			final long toAdd = expectedRoles & ~actualRoles;
+			final long toRemove = actualRoles & ~expectedRoles;
+			if (toAdd != 0 || toRemove != 0) {
+				// Names are only needed for the module
+				table.names(toAdd);
+				table.names(toRemove);
+				numChanges++;
+			}
+		}
+		return numChanges;
+	}
+}
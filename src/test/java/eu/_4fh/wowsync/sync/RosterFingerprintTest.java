@@ -0,0 +1,35 @@
+package eu._4fh.wowsync.sync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import eu._4fh.abstract_bnet_api.restclient.data.BattleNetWowCharacter;
+
+class RosterFingerprintTest {
+	private final BattleNetWowCharacter char1 = new BattleNetWowCharacter(1, "Name1", "realm", (byte) 1);
+	private final BattleNetWowCharacter char2 = new BattleNetWowCharacter(2, "Name2", "realm", (byte) 2);
+
+	@Test
+	void testOrderDoesntMatter() {
+		assertThat(RosterFingerprint.of(List.of(char1, char2))).isEqualTo(RosterFingerprint.of(List.of(char2, char1)));
+	}
+
+	@Test
+	void testChangesAreDetected() {
+		final long hash = RosterFingerprint.of(List.of(char1, char2));
+		assertThat(RosterFingerprint.of(List.of(char1))).isNotEqualTo(hash);
+		assertThat(RosterFingerprint.of(List.of(char1, new BattleNetWowCharacter(2, "Name3", "realm", (byte) 2))))
+				.isNotEqualTo(hash);
+		assertThat(RosterFingerprint.of(List.of(char1, new BattleNetWowCharacter(2, "Name2", "realm2", (byte) 2))))
+				.isNotEqualTo(hash);
+		assertThat(RosterFingerprint.of(List.of(char1, new BattleNetWowCharacter(2, "Name2", "realm", (byte) 3))))
+				.isNotEqualTo(hash);
+		assertThat(RosterFingerprint.of(List.of(char1, new BattleNetWowCharacter(2, "Name2", "realm", null))))
+				.isNotEqualTo(hash);
+		assertThat(RosterFingerprint.of(Collections.emptyList())).isNotEqualTo(hash);
+	}
+}
@@ -0,0 +1,86 @@
+package eu._4fh.wowsync.sync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import edu.umd.cs.findbugs.annotations.DefaultAnnotation;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import eu._4fh.abstract_bnet_api.oauth2.BattleNetRegion;
+import eu._4fh.abstract_bnet_api.restclient.data.BattleNetWowCharacter;
+import eu._4fh.wowsync.database.Db;
+import eu._4fh.wowsync.database.Transaction.TransCnt;
+import eu._4fh.wowsync.database.data.Guild;
+import eu._4fh.wowsync.util.Singletons;
+import eu._4fh.wowsync.util.TestBase;
+
+/**
+ * Compares both roster merges. Only runs with -Dwowsync.benchmark=true, the timings are printed to stdout.
+ */
+@DefaultAnnotation(NonNull.class)
+@EnabledIfSystemProperty(named = "wowsync.benchmark", matches = "true")
+class RosterMergeBenchmarkTest implements TestBase {
+	private static final int RUNS = 3;
+
+	private final BattleNetToDbSync sync = new BattleNetToDbSync();
+	private final Db db = Singletons.instance(Db.class);
+
+	@Test
+	void benchmarkRosterMerge() {
+		for (final int size : new int[] { 100, 1_000, 10_000 }) {
+			for (final boolean useStagingTable : new boolean[] { false, true }) {
+				long firstSyncNanos = 0;
+				long changedSyncNanos = 0;
+				for (int run = 0; run < RUNS; ++run) {
+					final Guild guild = new Guild();
+					guild.setRegion(BattleNetRegion.EU);
+					guild.setServer(nextStr());
+					guild.setName(nextStr());
+					try (TransCnt trans = db.createTransaction()) {
+						db.save(guild);
+						trans.commit();
+					}
+					final List<BattleNetWowCharacter> roster = new ArrayList<>(size);
+					for (int i = 0; i < size; ++i) {
+						roster.add(new BattleNetWowCharacter(nextId(), nextStr(), "server", (byte) (i % 10)));
+					}
+					firstSyncNanos += merge(guild, roster, useStagingTable, 0);
+
+					// Every tenth character is renamed, every tenth is replaced by a new one
+					final List<BattleNetWowCharacter> changedRoster = new ArrayList<>(size);
+					for (int i = 0; i < size; ++i) {
+						final BattleNetWowCharacter character = roster.get(i);
+						if (i % 10 == 1) {
+							changedRoster.add(new BattleNetWowCharacter(character.id, nextStr(), character.realmSlug,
+									character.guildRank));
+						} else if (i % 10 == 2) {
+							changedRoster.add(new BattleNetWowCharacter(nextId(), nextStr(), "server", (byte) 1));
+						} else {
+							changedRoster.add(character);
+						}
+					}
+					changedSyncNanos += merge(guild, changedRoster, useStagingTable, size / 10);
+				}
+				System.out.printf("Roster merge size=%d stagingTable=%b: first sync %dms, changed sync %dms%n", size,
+						useStagingTable, TimeUnit.NANOSECONDS.toMillis(firstSyncNanos / RUNS),
+						TimeUnit.NANOSECONDS.toMillis(changedSyncNanos / RUNS));
+			}
+		}
+	}
+
+	private long merge(final Guild guild, final List<BattleNetWowCharacter> roster, final boolean useStagingTable,
+			final int expectedRemoved) {
+		final long start = System.nanoTime();
+		try (TransCnt trans = db.createTransaction()) {
+			final int removed = sync.mergeGuildRoster(BattleNetRegion.EU, guild, roster, useStagingTable);
+			trans.commit();
+			assertThat(removed).isEqualTo(expectedRemoved);
+		}
+		return System.nanoTime() - start;
+	}
+}
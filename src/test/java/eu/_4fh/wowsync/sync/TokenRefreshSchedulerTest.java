@@ -0,0 +1,59 @@
+package eu._4fh.wowsync.sync;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class TokenRefreshSchedulerTest {
+	private final Instant now = Instant.parse("2024-01-10T12:00:00Z");
+
+	@Test
+	void testUnlimited() {
+		final TokenRefreshScheduler scheduler = new TokenRefreshScheduler(0, Duration.ofHours(24));
+		final List<String> clients = List.of("a", "b", "c");
+		assertThat(scheduler.select(clients, Collections.emptySet(), now)).containsExactlyInAnyOrderElementsOf(clients);
+	}
+
+	@Test
+	void testOverdueAndTrackedFirst() {
+		final TokenRefreshScheduler scheduler = new TokenRefreshScheduler(2, Duration.ofHours(24));
+		final String fresh = "fresh";
+		final String freshTracked = "freshTracked";
+		final String overdue = "overdue";
+		final String unknown = "unknown";
+		scheduler.refreshed(fresh, 1, now.minus(Duration.ofHours(2)));
+		scheduler.refreshed(freshTracked, 2, now.minus(Duration.ofHours(1)));
+		scheduler.refreshed(overdue, 3, now.minus(Duration.ofHours(30)));
+		final List<String> clients = List.of(fresh, freshTracked, overdue, unknown);
+
+		assertThat(scheduler.select(clients, Set.of(2L), now)).containsExactly(unknown, overdue);
+		scheduler.refreshed(unknown, 4, now);
+		scheduler.refreshed(overdue, 3, now);
+		assertThat(scheduler.select(clients, Set.of(2L), now)).as("Tracked before older")
+				.containsExactly(freshTracked, fresh);
+	}
+
+	@Test
+	void testRotation() {
+		final TokenRefreshScheduler scheduler = new TokenRefreshScheduler(1, Duration.ofHours(24));
+		final List<String> clients = List.of("a", "b", "c");
+		for (final String client : clients) {
+			scheduler.refreshed(client, client.hashCode(), now);
+		}
+		Instant time = now;
+		for (int i = 0; i < 3; ++i) {
+			time = time.plusSeconds(60);
+			final List<String> selected = scheduler.select(clients, Collections.emptySet(), time);
+			assertThat(selected).hasSize(1);
+			scheduler.failed(selected.get(0), time);
+		}
+		assertThat(scheduler.select(clients, Collections.emptySet(), time.plusSeconds(60))).as("Round robin")
+				.containsExactly("a");
+	}
+}
@@ -0,0 +1,71 @@
+package eu._4fh.wowsync.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class ConcurrentLongSetTest {
+	@Test
+	void testAddContainsAndGrow() {
+		final ConcurrentLongSet set = new ConcurrentLongSet(2);
+		for (long value = 1; value <= 1000; ++value) {
+			assertThat(set.add(value << 22)).isTrue();
+		}
+		assertThat(set.add(5L << 22)).isFalse();
+		assertThat(set.size()).isEqualTo(1000);
+		for (long value = 1; value <= 1000; ++value) {
+			assertThat(set.contains(value << 22)).isTrue();
+		}
+		assertThat(set.contains(1001L << 22)).isFalse();
+		assertThat(set.contains(-1)).isFalse();
+		assertThat(set.add(-1)).as("Negative values are fine").isTrue();
+		assertThat(set.contains(-1)).isTrue();
+	}
+
+	@Test
+	void testClear() {
+		final ConcurrentLongSet set = new ConcurrentLongSet(10);
+		set.add(1);
+		set.add(2);
+		set.clear();
+		assertThat(set.size()).isZero();
+		assertThat(set.contains(1)).isFalse();
+		assertThat(set.add(1)).isTrue();
+	}
+
+	@Test
+	void testZeroIsRejected() {
+		final ConcurrentLongSet set = new ConcurrentLongSet(10);
+		assertThatThrownBy(() -> set.add(0)).isInstanceOf(IllegalArgumentException.class);
+		assertThat(set.contains(0)).isFalse();
+	}
+
+	@Test
+	void testConcurrentAddsAreCountedOnce() throws InterruptedException {
+		final ConcurrentLongSet set = new ConcurrentLongSet(0);
+		final AtomicInteger added = new AtomicInteger(0);
+		final ExecutorService threadPool = Executors.newFixedThreadPool(4);
+		try {
+			for (int thread = 0; thread < 4; ++thread) {
+				threadPool.execute(() -> {
+					for (long value = 1; value <= 10_000; ++value) {
+						if (set.add(value)) {
+							added.incrementAndGet();
+						}
+					}
+				});
+			}
+		} finally {
+			threadPool.shutdown();
+			assertThat(threadPool.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+		}
+		assertThat(added.get()).isEqualTo(10_000);
+		assertThat(set.size()).isEqualTo(10_000);
+	}
+}